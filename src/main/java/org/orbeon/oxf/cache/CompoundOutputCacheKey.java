@@ -21,7 +21,8 @@ public class CompoundOutputCacheKey extends OutputCacheKey {
 
     private final List<CacheKey> keys;
 
-    private final int hash;
+    // Not serialized, as it depends on Class.hashCode(), which changes between JVMs
+    private transient int hash;
 
     public CompoundOutputCacheKey(final Class clazz, final String outputName, final CacheKey[] keys) {
         super(clazz, outputName);
@@ -30,13 +31,6 @@ public class CompoundOutputCacheKey extends OutputCacheKey {
         }
         this.keys = new ArrayList<CacheKey>(keys.length);
         this.keys.addAll(Arrays.asList(keys));
-
-        int tmp = 1;
-        tmp += 31 * tmp + super.hashCode();
-        tmp += 31 * tmp + outputName.hashCode();
-        tmp += 31 * tmp + this.keys.hashCode();
-
-        hash = tmp;
     }
 
     @Override
@@ -54,6 +48,13 @@ public class CompoundOutputCacheKey extends OutputCacheKey {
 
     @Override
     public int hashCode() {
+        if (hash == 0) {
+            int tmp = 1;
+            tmp += 31 * tmp + super.hashCode();
+            tmp += 31 * tmp + outputName.hashCode();
+            tmp += 31 * tmp + keys.hashCode();
+            hash = tmp;
+        }
         return hash;
     }
 
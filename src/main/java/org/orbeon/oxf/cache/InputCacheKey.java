@@ -20,7 +20,8 @@ public class InputCacheKey extends CacheKeyImpl {
     private String inputName;
     private OutputCacheKey outputKey;
 
-    private int hash;
+    // Not serialized, as it depends on Class.hashCode(), which changes between JVMs
+    private transient int hash;
 
     public InputCacheKey(ProcessorInput input, OutputCacheKey outputKey) {
         setClazz(input.getProcessorClass());
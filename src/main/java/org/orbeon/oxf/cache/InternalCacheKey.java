@@ -24,7 +24,8 @@ public class InternalCacheKey extends CacheKeyImpl {
     private String key;
     private List<CacheKey> keys;
 
-    private int hash;
+    // Not serialized, as it depends on Class.hashCode(), which changes between JVMs
+    private transient int hash;
 
     public InternalCacheKey(String type, String key) {
         // Create a global cache key
@@ -16,7 +16,9 @@ package org.orbeon.oxf.cache;
 public class SimpleOutputCacheKey extends OutputCacheKey {
 
     private final String key;
-    private final int hash;
+
+    // Not serialized, as it depends on Class.hashCode(), which changes between JVMs
+    private transient int hash;
 
     public SimpleOutputCacheKey(final Class clazz, final String outputName, String key) {
         super(clazz, outputName);
@@ -24,13 +26,6 @@ public class SimpleOutputCacheKey extends OutputCacheKey {
 
         if (this.key == null)
             throw new IllegalArgumentException("key must not be null");
-
-        int tmp = 1;
-        tmp += 31 * tmp + super.hashCode();
-        tmp += 31 * tmp + outputName.hashCode();
-        tmp += 31 * tmp + this.key.hashCode();
-
-        hash = tmp;
     }
 
     @Override
@@ -48,6 +43,13 @@ public class SimpleOutputCacheKey extends OutputCacheKey {
 
     @Override
     public int hashCode() {
+        if (hash == 0) {
+            int tmp = 1;
+            tmp += 31 * tmp + super.hashCode();
+            tmp += 31 * tmp + outputName.hashCode();
+            tmp += 31 * tmp + key.hashCode();
+            hash = tmp;
+        }
         return hash;
     }
 
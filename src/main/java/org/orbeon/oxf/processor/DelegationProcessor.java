@@ -14,7 +14,6 @@
 package org.orbeon.oxf.processor;
 
 import org.apache.axis.client.Call;
-import org.apache.axis.client.Service;
 import org.apache.axis.message.*;
 import org.apache.axis.soap.SOAPConstants;
 import org.dom4j.*;
@@ -184,12 +183,6 @@ public class DelegationProcessor extends ProcessorImpl {
                                     if (service.type == ServiceDefinition.WEB_SERVICE_TYPE
                                             || service.type == ServiceDefinition.BUS_SERVICE_TYPE) {
 
-                                        // Call Web service
-                                        final Service axisService = new Service();
-                                        final Call call = (Call) axisService.createCall();
-                                        if (operationTimeout != null)
-                                            call.setTimeout(operationTimeout);
-
                                         // Get document containing the parameters
                                         final org.w3c.dom.Element parametersElement = getParametersDomDocument().getDocumentElement();
 
@@ -225,13 +218,26 @@ public class DelegationProcessor extends ProcessorImpl {
                                         SOAPEnvelope resultEnvelope = null;
                                         if (service.type == ServiceDefinition.WEB_SERVICE_TYPE) {
                                             // Call Web service
+                                            final WebServiceClient webServiceClient = WebServiceClient.getInstance(service.endpoint);
+                                            final Call call = webServiceClient.createCall();
+                                            if (operationTimeout != null)
+                                                call.setTimeout(operationTimeout);
+
                                             call.setTargetEndpointAddress(new URL(service.endpoint));
                                             if (operation != null && operation.soapAction != null) {
                                                 call.setUseSOAPAction(true);
                                                 call.setSOAPActionURI(operation.soapAction);
                                             }
                                             call.setReturnClass(javax.xml.soap.SOAPMessage.class);
-                                            resultEnvelope = call.invoke(requestEnvelope);
+
+                                            final long startTime = System.nanoTime();
+                                            boolean error = true;
+                                            try {
+                                                resultEnvelope = call.invoke(requestEnvelope);
+                                                error = resultEnvelope != null && resultEnvelope.getBody().getFault() != null;
+                                            } finally {
+                                                webServiceClient.callCompleted(System.nanoTime() - startTime, error);
+                                            }
                                         } else {
                                             // Call bus service
                                             javax.jms.QueueConnection requestQueueConnection = null;
@@ -0,0 +1,225 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor;
+
+import org.apache.log4j.Logger;
+import org.orbeon.oxf.common.OXFException;
+import org.orbeon.oxf.util.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Image decoding for ImageServer.
+ *
+ * Image processing is limited by the estimated memory of the decoded images rather than by number of images: several
+ * small images can be processed at the same time, while a large image waits until enough memory is available.
+ *
+ * Decoded images are kept in a cache bounded by their memory, and concurrent requests for the same image and validity
+ * share a single decode.
+ */
+class ImageDecoder {
+
+    private static final Logger logger = LoggerFactory.createLogger(ImageDecoder.class);
+
+    // Estimate for images which are not decoded yet
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private final int memoryKB;
+    private final Semaphore memory;
+
+    private final long cacheSize;
+    private final LinkedHashMap<String, BufferedImage> cache = new LinkedHashMap<String, BufferedImage>(16, 0.75f, true);
+    private long cacheWeight;
+
+    private final ConcurrentHashMap<String, FutureTask<BufferedImage>> pendingDecodes = new ConcurrentHashMap<String, FutureTask<BufferedImage>>();
+
+    private final AtomicLong decodeCount = new AtomicLong();
+    private final AtomicLong cacheHitCount = new AtomicLong();
+    private final AtomicLong sharedDecodeCount = new AtomicLong();
+    private final AtomicLong waitCount = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    /**
+     * @param memory    memory in bytes available to decoded images being processed
+     * @param cacheSize memory in bytes available to cached decoded images
+     */
+    public ImageDecoder(long memory, long cacheSize) {
+        this.memoryKB = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memory / 1024));
+        // Fair so that large images are not starved by small ones
+        this.memory = new Semaphore(memoryKB, true);
+        this.cacheSize = cacheSize;
+    }
+
+    public static long estimatedSize(int width, int height) {
+        return (long) width * (long) height * BYTES_PER_PIXEL;
+    }
+
+    /**
+     * Return the decoded image for the given key, decoding it from the stream if needed.
+     *
+     * @param key           identifies the image and its validity
+     * @param inputStream   stream to decode the image from, not used if the image is cached or decoded concurrently
+     */
+    public BufferedImage decode(final String key, final InputStream inputStream) throws IOException {
+
+        final BufferedImage cachedImage = getCached(key);
+        if (cachedImage != null) {
+            cacheHitCount.incrementAndGet();
+            if (logger.isDebugEnabled())
+                logger.debug("Found decoded image in cache");
+            return cachedImage;
+        }
+
+        final FutureTask<BufferedImage> newDecode = new FutureTask<BufferedImage>(new Callable<BufferedImage>() {
+            public BufferedImage call() throws Exception {
+                final BufferedImage image = decodeWithinMemory(inputStream);
+                putCached(key, image);
+                return image;
+            }
+        });
+
+        final FutureTask<BufferedImage> existingDecode = pendingDecodes.putIfAbsent(key, newDecode);
+        if (existingDecode == null) {
+            // Decode on this thread
+            try {
+                newDecode.run();
+            } finally {
+                pendingDecodes.remove(key);
+            }
+        } else {
+            sharedDecodeCount.incrementAndGet();
+        }
+
+        try {
+            return (existingDecode != null ? existingDecode : newDecode).get();
+        } catch (InterruptedException e) {
+            throw new OXFException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            else if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            else if (cause instanceof Error)
+                throw (Error) cause;
+            else
+                throw new OXFException(cause);
+        }
+    }
+
+    /**
+     * Wait until the given amount of memory is available and reserve it. The amount is capped to the total available,
+     * so that an image larger than that is processed alone.
+     *
+     * @return  reservation to pass to releaseMemory()
+     */
+    public int acquireMemory(long bytes) {
+        final int permits = (int) Math.max(1, Math.min(memoryKB, bytes / 1024));
+
+        final long start = System.nanoTime();
+        memory.acquireUninterruptibly(permits);
+        final long wait = System.nanoTime() - start;
+
+        waitCount.incrementAndGet();
+        totalWaitNanos.addAndGet(wait);
+        for (long max = maxWaitNanos.get(); wait > max; max = maxWaitNanos.get())
+            if (maxWaitNanos.compareAndSet(max, wait))
+                break;
+
+        return permits;
+    }
+
+    public void releaseMemory(int reservation) {
+        memory.release(reservation);
+    }
+
+    private BufferedImage decodeWithinMemory(InputStream inputStream) throws IOException {
+        final ImageInputStream imageInputStream = ImageIO.createImageInputStream(inputStream);
+        try {
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInputStream);
+            if (!readers.hasNext())
+                throw new OXFException("Unable to find a decoder for image.");
+
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(imageInputStream, true, true);
+
+                // Read the size from the header before reserving memory for the decoded image
+                final int reservation = acquireMemory(estimatedSize(reader.getWidth(0), reader.getHeight(0)));
+                try {
+                    final BufferedImage image = reader.read(0);
+                    decodeCount.incrementAndGet();
+                    if (logger.isDebugEnabled())
+                        logger.debug("Decoded image: " + image.getWidth() + "x" + image.getHeight() + ", " + getStatistics());
+                    return image;
+                } finally {
+                    releaseMemory(reservation);
+                }
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            imageInputStream.close();
+        }
+    }
+
+    private synchronized BufferedImage getCached(String key) {
+        return cache.get(key);
+    }
+
+    private synchronized void putCached(String key, BufferedImage image) {
+        final long weight = weight(image);
+        if (weight > cacheSize)
+            return;
+
+        final BufferedImage previous = cache.put(key, image);
+        if (previous != null)
+            cacheWeight -= weight(previous);
+        cacheWeight += weight;
+
+        // Evict least recently used images
+        for (final Iterator<BufferedImage> i = cache.values().iterator(); cacheWeight > cacheSize && i.hasNext();) {
+            cacheWeight -= weight(i.next());
+            i.remove();
+        }
+    }
+
+    private static long weight(BufferedImage image) {
+        final DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+        return (long) dataBuffer.getSize() * dataBuffer.getNumBanks() * DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / 8;
+    }
+
+    public String getStatistics() {
+        final long waits = waitCount.get();
+        synchronized (this) {
+            return "decodes: " + decodeCount.get()
+                    + ", cache hits: " + cacheHitCount.get()
+                    + ", shared decodes: " + sharedDecodeCount.get()
+                    + ", cached images: " + cache.size() + " (" + cacheWeight + " bytes)"
+                    + ", average memory wait: " + (waits == 0 ? 0 : totalWaitNanos.get() / waits / 1000000) + " ms"
+                    + ", max memory wait: " + (maxWaitNanos.get() / 1000000) + " ms";
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor;
+
+import org.apache.log4j.Logger;
+import org.orbeon.oxf.common.OXFException;
+import org.orbeon.oxf.util.LoggerFactory;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Disk cache of transformed images for ImageServer.
+ *
+ * - Files are written to a temporary file in the same directory, then renamed, so readers never see a partial file.
+ * - Concurrent generations of the same file are coalesced: one request generates the file, the others wait for it.
+ * - When the total size of the files goes over the maximum size, the least recently used files are removed.
+ */
+class ImageDiskCache {
+
+    private static final Logger logger = LoggerFactory.createLogger(ImageDiskCache.class);
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // After cleanup, the cache is at most this fraction of the maximum size, so that cleanup doesn't run too often
+    private static final double CLEANUP_RATIO = 0.9;
+
+    private static final Map<File, ImageDiskCache> caches = new HashMap<File, ImageDiskCache>();
+
+    public interface Generator {
+        void write(OutputStream os) throws IOException;
+    }
+
+    private final File directory;
+    private volatile long maxSize;
+
+    // Approximate total size of the cached files, computed on first use
+    private AtomicLong totalSize;
+
+    // Last access time by file, for files accessed since startup
+    private final ConcurrentHashMap<File, Long> lastAccess = new ConcurrentHashMap<File, Long>();
+
+    private final ConcurrentHashMap<File, FutureTask<File>> pendingGenerations = new ConcurrentHashMap<File, FutureTask<File>>();
+
+    /**
+     * Return the cache for the given directory.
+     *
+     * @param maxSize   maximum size in bytes, 0 for no maximum
+     */
+    public static ImageDiskCache getInstance(File directory, long maxSize) {
+        synchronized (caches) {
+            ImageDiskCache cache = caches.get(directory);
+            if (cache == null) {
+                cache = new ImageDiskCache(directory);
+                caches.put(directory, cache);
+            }
+            cache.maxSize = maxSize;
+            return cache;
+        }
+    }
+
+    private ImageDiskCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Whether the file is in the cache and more recent than the given last modification date.
+     */
+    public boolean isValid(File file, long lastModified) {
+        return file.exists() && lastModified != 0 && lastModified <= file.lastModified() && file.length() > 0;
+    }
+
+    /**
+     * Generate the given file. If another thread is already generating it, wait for it instead.
+     */
+    public void generate(final File file, final Generator generator) throws IOException {
+
+        final FutureTask<File> newGeneration = new FutureTask<File>(new Callable<File>() {
+            public File call() throws Exception {
+                write(file, generator);
+                return file;
+            }
+        });
+
+        final FutureTask<File> existingGeneration = pendingGenerations.putIfAbsent(file, newGeneration);
+        if (existingGeneration == null) {
+            try {
+                newGeneration.run();
+            } finally {
+                pendingGenerations.remove(file);
+            }
+        } else {
+            logger.debug("Waiting for concurrent generation of cached image");
+        }
+
+        try {
+            (existingGeneration != null ? existingGeneration : newGeneration).get();
+        } catch (InterruptedException e) {
+            throw new OXFException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            else if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            else if (cause instanceof Error)
+                throw (Error) cause;
+            else
+                throw new OXFException(cause);
+        }
+    }
+
+    /**
+     * Copy the given cached file to the output stream.
+     */
+    public void serve(File file, OutputStream os) throws IOException {
+        lastAccess.put(file, System.currentTimeMillis());
+
+        final FileInputStream is = new FileInputStream(file);
+        try {
+            // Let the channel implementation copy the file, which avoids copies through the heap when possible
+            final FileChannel fileChannel = is.getChannel();
+            final WritableByteChannel outputChannel = Channels.newChannel(os);
+            final long size = fileChannel.size();
+            long position = 0;
+            while (position < size)
+                position += fileChannel.transferTo(position, size - position, outputChannel);
+        } finally {
+            is.close();
+        }
+    }
+
+    private void write(File file, Generator generator) throws IOException {
+
+        final File outputDir = file.getParentFile();
+        if (!outputDir.exists() && !outputDir.mkdirs() && !outputDir.isDirectory())
+            throw new OXFException("Cannot create cache directory: " + outputDir.getCanonicalPath());
+
+        // Compute the initial total size before the file is written, so that the file is not counted twice
+        if (maxSize > 0)
+            getTotalSize();
+
+        final long previousSize = file.exists() ? file.length() : 0;
+
+        final File tempFile = File.createTempFile(file.getName(), TEMP_SUFFIX, outputDir);
+        try {
+            final OutputStream os = new BufferedOutputStream(new FileOutputStream(tempFile));
+            try {
+                generator.write(os);
+            } finally {
+                os.close();
+            }
+
+            // Renaming fails on some platforms if the destination exists
+            if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file)))
+                throw new OXFException("Cannot rename cached image to: " + file.getCanonicalPath());
+        } finally {
+            if (tempFile.exists())
+                tempFile.delete();
+        }
+
+        lastAccess.put(file, System.currentTimeMillis());
+
+        if (maxSize > 0 && getTotalSize().addAndGet(file.length() - previousSize) > maxSize)
+            cleanup();
+    }
+
+    private synchronized AtomicLong getTotalSize() {
+        if (totalSize == null) {
+            long size = 0;
+            for (final File file : listFiles(directory, new ArrayList<File>()))
+                size += file.length();
+            totalSize = new AtomicLong(size);
+        }
+        return totalSize;
+    }
+
+    // Remove least recently used files until the cache is under the cleanup size
+    private synchronized void cleanup() {
+
+        final long targetSize = (long) (maxSize * CLEANUP_RATIO);
+        if (totalSize.get() <= targetSize)
+            return;
+
+        final List<File> files = listFiles(directory, new ArrayList<File>());
+
+        // Files not accessed since startup are considered older than the others, by modification date
+        final Map<File, Long> accessTimes = new HashMap<File, Long>();
+        long size = 0;
+        for (final File file : files) {
+            final Long accessTime = lastAccess.get(file);
+            accessTimes.put(file, accessTime != null ? accessTime : file.lastModified() - Long.MAX_VALUE / 2);
+            size += file.length();
+        }
+        Collections.sort(files, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                return accessTimes.get(f1).compareTo(accessTimes.get(f2));
+            }
+        });
+
+        int removedCount = 0;
+        for (final Iterator<File> i = files.iterator(); size > targetSize && i.hasNext();) {
+            final File file = i.next();
+            // Don't remove files being generated
+            if (pendingGenerations.containsKey(file))
+                continue;
+            final long length = file.length();
+            if (file.delete()) {
+                lastAccess.remove(file);
+                size -= length;
+                removedCount++;
+            }
+        }
+
+        totalSize.set(size);
+
+        if (logger.isDebugEnabled())
+            logger.debug("Removed " + removedCount + " cached images, cache size is now " + size + " bytes");
+    }
+
+    private static List<File> listFiles(File directory, List<File> result) {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                if (file.isDirectory())
+                    listFiles(file, result);
+                else if (!file.getName().endsWith(TEMP_SUFFIX))
+                    result.add(file);
+            }
+        }
+        return result;
+    }
+}
@@ -21,7 +21,6 @@ import org.orbeon.exception.OrbeonFormatter;
 import org.orbeon.oxf.cache.CacheKey;
 import org.orbeon.oxf.cache.InternalCacheKey;
 import org.orbeon.oxf.cache.ObjectCache;
-import org.orbeon.oxf.cache.SoftCacheImpl;
 import org.orbeon.oxf.common.OXFException;
 import org.orbeon.oxf.pipeline.api.ExternalContext;
 import org.orbeon.oxf.pipeline.api.PipelineContext;
@@ -39,6 +38,7 @@ import org.orbeon.oxf.xml.dom4j.NonLazyUserDataDocument;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
 import java.awt.*;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.*;
@@ -71,7 +71,14 @@ public class ImageServer extends ProcessorImpl {
     private static final boolean DEFAULT_USE_CACHE = true;
     private static final boolean DEFAULT_SCALE_UP = true;
 
-    private SoftCacheImpl cache;
+    // Processor properties
+    private static final String DECODE_MEMORY_PROPERTY = "decode-memory";
+    private static final String DECODED_CACHE_SIZE_PROPERTY = "decoded-cache-size";
+    private static final int DEFAULT_DECODE_MEMORY = 100 * 1024 * 1024;
+    private static final int DEFAULT_DECODED_CACHE_SIZE = 50 * 1024 * 1024;
+
+    // Shared by all ImageServer instances, as memory is global
+    private static ImageDecoder decoder;
 
     public ImageServer() {
         addInputInfo(new ProcessorInputOutputInfo(INPUT_CONFIG, IMAGE_SERVER_CONFIG_NAMESPACE_URI));
@@ -82,6 +89,7 @@ public class ImageServer extends ProcessorImpl {
     private static class Config {
         public URL imageDirectoryURL;
         public File cacheDir;
+        public long cacheMaxSize;
         public float defaultQuality;
         public boolean useSandbox;
         public String cachePathEncoding;
@@ -93,7 +101,6 @@ public class ImageServer extends ProcessorImpl {
         public Boolean useCache;
         public Object transforms;
         public int transformCount;
-        public Iterator transformIterator;
     }
 
     public void processImage(PipelineContext pipelineContext, ImageResponse imageResponse) {
@@ -120,6 +127,9 @@ public class ImageServer extends ProcessorImpl {
                     if (result.cacheDir != null && !result.cacheDir.isDirectory())
                         throw new IllegalArgumentException("Invalid cache directory: " + cacheDirectoryString);
 
+                    final String cacheMaxSizeString = XPathUtils.selectStringValueNormalize(configDocument, "/config/cache/max-size");
+                    result.cacheMaxSize = (cacheMaxSizeString == null) ? 0 : Long.parseLong(cacheMaxSizeString);
+
                     result.defaultQuality = selectFloatValue(configDocument, "/config/default-quality", DEFAULT_QUALITY);
                     if (result.defaultQuality < 0.0f || result.defaultQuality > 1.0f)
                         throw new IllegalArgumentException("default-quality must be comprised between 0.0 and 1.0");
@@ -157,7 +167,6 @@ public class ImageServer extends ProcessorImpl {
                     if (transforms != null && transforms instanceof Node)
                         transforms = Collections.singletonList(transforms);
                     result.transforms = transforms;
-                    result.transformIterator = XPathUtils.selectIterator(imageConfigDocument, "/image/transform");
 
                     return result;
                 }
@@ -201,8 +210,9 @@ public class ImageServer extends ProcessorImpl {
 
                 // Cache handling
                 String cacheFileName = useCache ? computeCacheFileName(config.cachePathEncoding, imageConfig.urlString, (List<Element>) imageConfig.transforms) : null;
-                File cacheFile = useCache ? new File(config.cacheDir, cacheFileName) : null;
-                boolean cacheInvalid = !useCache || !cacheFile.exists() || lastModified == 0 || lastModified > cacheFile.lastModified() || cacheFile.length() == 0;
+                final File cacheFile = useCache ? new File(config.cacheDir, cacheFileName) : null;
+                final ImageDiskCache diskCache = useCache ? ImageDiskCache.getInstance(config.cacheDir, config.cacheMaxSize) : null;
+                boolean cacheInvalid = !useCache || !diskCache.isValid(cacheFile, lastModified);
                 boolean mustProcess = cacheInvalid;
                 boolean updateCache = useCache && cacheInvalid;
 
@@ -226,83 +236,44 @@ public class ImageServer extends ProcessorImpl {
 
                 // Process image if needed
                 if (mustProcess) {
-                    boolean closeOutputStream = false;
-                    OutputStream os = null;
-                    try {
-                        // Try to obtain decoded image from cache first
-                        Long cacheValidity = lastModified;
-                        String cacheKey = "[" + newURL.toExternalForm() + "][" + cacheValidity + "]";
-                        BufferedImage img1;
-                        // Decode one image at a time to try to minimize the memory impact
-                        // NOTE: This should probably be configurable
-                        synchronized (ImageServer.this) {
-                            img1 = (cache == null) ? null : (BufferedImage) cache.get(cacheKey);
-                            // If this failed (most common case) decode the image
-                            if (img1 == null) {
-                                // Decode image into BufferedImage
-                                img1 = ImageIO.read(urlConnectionInputStream);
-
-                                // Store the image into the soft cache
-                                if (cache == null)
-                                    cache = new SoftCacheImpl(0);
-                                cache.put(cacheKey, img1);
-                            } else {
-                                cache.refresh(cacheKey);
-                                //logger.info("Found image in cache with key: " + cacheKey);
-                                logger.info("Found decoded image in cache");
+                    final String decodedCacheKey = "[" + newURL.toExternalForm() + "][" + lastModified + "]";
+                    final InputStream imageInputStream = urlConnectionInputStream;
+                    final ImageDiskCache.Generator generator = new ImageDiskCache.Generator() {
+                        public void write(OutputStream os) throws IOException {
+                            // Obtain decoded image from cache or decode it, within the memory limit
+                            final ImageDecoder decoder = getDecoder();
+                            final BufferedImage img1 = decoder.decode(decodedCacheKey, imageInputStream);
+
+                            // Filter image, which requires memory for a copy of the image and for the result
+                            final BufferedImage img2;
+                            final int reservation = decoder.acquireMemory(2 * ImageDecoder.estimatedSize(img1.getWidth(), img1.getHeight()));
+                            try {
+                                img2 = filter(img1, ((List) imageConfig.transforms).iterator());
+                            } finally {
+                                decoder.releaseMemory(reservation);
                             }
-                        }
 
-                        // Filter image
-                        BufferedImage img2 = filter(img1, imageConfig.transformIterator);
-
-                        // Create OutputStream
-                        if (updateCache) {
-                            File outputDir = cacheFile.getParentFile();
-                            if (!outputDir.exists() && !outputDir.mkdirs()) {
-                                logger.info("Cannot create cache directory: " + outputDir.getCanonicalPath());
-                                imageResponse.setStatus(ExternalContext.SC_INTERNAL_SERVER_ERROR);
-                                return;
-                            }
-                            os = new FileOutputStream(cacheFile);
-                            closeOutputStream = true;
-                        } else {
-                            os = imageResponse.getOutputStream();
+                            encode(img2, quality, os);
                         }
+                    };
 
-                        // Encode image to OutputStream
-
-                        final Iterator writers = ImageIO.getImageWritersByFormatName("jpeg");
-                        final ImageWriter writer = (ImageWriter) writers.next();
-
-                        writer.setOutput(ImageIO.createImageOutputStream(os));
-
-                        final ImageWriteParam params = writer.getDefaultWriteParam();
-
-                        // Set quality
-                        params.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-                        params.setCompressionQuality(quality);
-
-                        writer.write(img2);
+                    try {
+                        // Generate the image into the cache, where concurrent requests for the same image wait for a
+                        // single generation, or directly to the response
+                        if (updateCache)
+                            diskCache.generate(cacheFile, generator);
+                        else
+                            generator.write(imageResponse.getOutputStream());
                     } catch (OXFException e) {
                         logger.error(OrbeonFormatter.format(e));
                         imageResponse.setStatus(ExternalContext.SC_INTERNAL_SERVER_ERROR);
                         return;
-                    } finally {
-                        if (os != null && closeOutputStream) os.close();
                     }
                 }
 
                 // Send cached image if relevant
-                if (useCache) {
-                    InputStream is = new FileInputStream(cacheFile);
-                    OutputStream os = imageResponse.getOutputStream();
-                    try {
-                        NetUtils.copyStream(is, os);
-                    } finally {
-                        is.close();
-                    }
-                }
+                if (useCache)
+                    diskCache.serve(cacheFile, imageResponse.getOutputStream());
             } finally {
                 // Make sure the connection is closed because when getting the
                 // last modified date, the stream is actually opened. When using
@@ -451,6 +422,39 @@ public class ImageServer extends ProcessorImpl {
         return output;
     }
 
+    private void encode(BufferedImage image, float quality, OutputStream os) throws IOException {
+        final Iterator writers = ImageIO.getImageWritersByFormatName("jpeg");
+        final ImageWriter writer = (ImageWriter) writers.next();
+
+        final ImageOutputStream imageOutputStream = ImageIO.createImageOutputStream(os);
+        try {
+            writer.setOutput(imageOutputStream);
+
+            final ImageWriteParam params = writer.getDefaultWriteParam();
+
+            // Set quality
+            params.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            params.setCompressionQuality(quality);
+
+            writer.write(image);
+        } finally {
+            // This flushes but doesn't close the underlying stream
+            imageOutputStream.close();
+            writer.dispose();
+        }
+    }
+
+    private ImageDecoder getDecoder() {
+        synchronized (ImageServer.class) {
+            if (decoder == null) {
+                decoder = new ImageDecoder(
+                    getPropertySet().getInteger(DECODE_MEMORY_PROPERTY, DEFAULT_DECODE_MEMORY),
+                    getPropertySet().getInteger(DECODED_CACHE_SIZE_PROPERTY, DEFAULT_DECODED_CACHE_SIZE));
+            }
+            return decoder;
+        }
+    }
+
     private static interface ImageResponse {
         public void setStatus(int status);
         public void setResourceCaching(long lastModified, long expires);
@@ -498,7 +502,7 @@ public class ImageServer extends ProcessorImpl {
         }
     }
 
-    private synchronized BufferedImage filter(BufferedImage img, Iterator transformIterator) {
+    private BufferedImage filter(BufferedImage img, Iterator transformIterator) {
         // Copy the image to RGB if necessary (is there another way? Otherwise some images fail)
         BufferedImage srcImage = img;
         if (img.getType() != BufferedImage.TYPE_INT_RGB) {
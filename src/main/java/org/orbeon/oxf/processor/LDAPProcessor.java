@@ -16,10 +16,13 @@ package org.orbeon.oxf.processor;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 import org.dom4j.*;
+import org.orbeon.oxf.cache.CacheKey;
 import org.orbeon.oxf.common.OXFException;
 import org.orbeon.oxf.pipeline.api.PipelineContext;
 import org.orbeon.oxf.xml.XMLReceiver;
 import org.orbeon.oxf.util.LoggerFactory;
+import org.orbeon.oxf.util.SecureUtils;
+import org.orbeon.oxf.xml.SAXStore;
 import org.orbeon.oxf.xml.XMLUtils;
 import org.orbeon.oxf.xml.XPathUtils;
 import org.xml.sax.ContentHandler;
@@ -28,6 +31,7 @@ import javax.naming.*;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.*;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 public class LDAPProcessor extends ProcessorImpl {
     static private Logger logger = LoggerFactory.createLogger(LDAPProcessor.class);
@@ -50,6 +54,9 @@ public class LDAPProcessor extends ProcessorImpl {
     public static final String PASSWORD_PROPERTY = "password";
     public static final String PROTOCOL_PROPERTY = "protocol";
     public static final String SCOPE_PROPERTY = "scope";
+    public static final String CACHE_PROPERTY = "cache";
+    public static final String CACHE_TTL_PROPERTY = "cache-ttl";
+    public static final String CACHE_NEGATIVE_TTL_PROPERTY = "cache-negative-ttl";
 
 
     public LDAPProcessor() {
@@ -63,7 +70,7 @@ public class LDAPProcessor extends ProcessorImpl {
             public void readImpl(PipelineContext context, XMLReceiver xmlReceiver) {
                 try {
                     // Read configuration
-                    Config config = readCacheInputAsObject(context, getInputByName(INPUT_CONFIG), new CacheableInputReader<Config>() {
+                    final Config config = readCacheInputAsObject(context, getInputByName(INPUT_CONFIG), new CacheableInputReader<Config>() {
                         public Config read(PipelineContext context, ProcessorInput input) {
                             Config config = new Config();
                             Document doc = readInputAsDOM4J(context, input);
@@ -108,7 +115,7 @@ public class LDAPProcessor extends ProcessorImpl {
                         }
                     });
 
-                    Command command = readCacheInputAsObject(context, getInputByName(INPUT_FILTER), new CacheableInputReader<Command>() {
+                    final Command command = readCacheInputAsObject(context, getInputByName(INPUT_FILTER), new CacheableInputReader<Command>() {
                         public Command read(PipelineContext context, ProcessorInput input) {
                             Command command;
                             Document filterDoc = readInputAsDOM4J(context, input);
@@ -142,6 +149,29 @@ public class LDAPProcessor extends ProcessorImpl {
                     if(logger.isDebugEnabled())
                         logger.debug("LDAP Command: "+command.toString());
 
+                    if (command instanceof Search && getPropertySet().getBoolean(CACHE_PROPERTY, false)) {
+                        // Only connect to the directory if the results are not in cache
+                        final LDAPSearchCache.Results results = LDAPSearchCache.instance().search(
+                            getSearchCacheKey(config, command.getName()),
+                            getPropertySet().getInteger(CACHE_TTL_PROPERTY, 60000),
+                            getPropertySet().getInteger(CACHE_NEGATIVE_TTL_PROPERTY, 10000),
+                            new Callable<LDAPSearchCache.Results>() {
+                                public LDAPSearchCache.Results call() {
+                                    final DirContext ctx = connect(config);
+                                    try {
+                                        final List searchResults = search(ctx, config, command.getName());
+                                        final SAXStore saxStore = new SAXStore();
+                                        serialize(searchResults, config, saxStore);
+                                        return new LDAPSearchCache.Results(saxStore, searchResults.isEmpty());
+                                    } finally {
+                                        disconnect(ctx);
+                                    }
+                                }
+                            });
+                        results.saxStore.replay(xmlReceiver);
+                        return;
+                    }
+
                     DirContext ctx = connect(config);
 
                     if (command instanceof Update) {
@@ -154,13 +184,7 @@ public class LDAPProcessor extends ProcessorImpl {
                         delete(ctx, (Delete) command);
                         outputSuccess(xmlReceiver, "delete");
                     } else if (command instanceof Search) {
-                        // There was incorrect code here earlier testing on instanceof String[], which broke stuff. For
-                        // now assume all attrs are strings.
-                        final List attributesList = config.getAttributes();
-                        final String[] attrs = new String[attributesList.size()];
-                        attributesList.toArray(attrs);
-
-                        List results = search(ctx, config.getRootDN(), config.getScope(), command.getName(), attrs);
+                        List results = search(ctx, config, command.getName());
                         serialize(results, config, xmlReceiver);
                     }
 
@@ -212,6 +236,33 @@ public class LDAPProcessor extends ProcessorImpl {
         }
     }
 
+    private List search(DirContext ctx, Config config, String filter) {
+        // There was incorrect code here earlier testing on instanceof String[], which broke stuff. For
+        // now assume all attrs are strings.
+        final List attributesList = config.getAttributes();
+        final String[] attrs = new String[attributesList.size()];
+        attributesList.toArray(attrs);
+
+        return search(ctx, config.getRootDN(), config.getScope(), filter, attrs);
+    }
+
+    // All the configuration and the filter determine the results, and the password is part of the key so that
+    // results obtained with a given bind DN are not returned if a wrong password is used. Only its HMAC is kept.
+    private CacheKey getSearchCacheKey(Config config, String filter) {
+        final List<String> components = new ArrayList<String>();
+        components.add(getProviderURL(config));
+        components.add(config.getProtocol());
+        components.add(config.getReferral());
+        components.add(config.getBindDN());
+        components.add(SecureUtils.hmacString(config.getPassword(), "hex"));
+        components.add(config.getRootDN());
+        components.add(config.getScope());
+        components.add(filter);
+        for (Iterator i = config.getAttributes().iterator(); i.hasNext();)
+            components.add((String) i.next());
+        return LDAPSearchCache.createKey(components);
+    }
+
     private List search(DirContext ctx, String rootDN, String scope, String filter, String[] attributes) {
         try {
             List listResults = new ArrayList();
@@ -311,7 +362,7 @@ public class LDAPProcessor extends ProcessorImpl {
             env.put(Context.SECURITY_CREDENTIALS, config.getPassword());
             env.put(LDAP_VERSION, DEFAULT_LDAP_VERSION);
             env.put(Context.INITIAL_CONTEXT_FACTORY, DEFAULT_CTX);
-            env.put(Context.PROVIDER_URL, "ldap://" + config.getHost() + ":" + config.getPort());
+            env.put(Context.PROVIDER_URL, getProviderURL(config));
             if (config.getReferral() != null){
               env.put(Context.REFERRAL, config.getReferral());
             }
@@ -326,6 +377,10 @@ public class LDAPProcessor extends ProcessorImpl {
         }
     }
 
+    private String getProviderURL(Config config) {
+        return "ldap://" + config.getHost() + ":" + config.getPort();
+    }
+
     private void disconnect(DirContext ctx) {
         try {
             if (ctx != null) ctx.close();
@@ -0,0 +1,179 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor;
+
+import org.apache.log4j.Logger;
+import org.orbeon.oxf.cache.*;
+import org.orbeon.oxf.common.OXFException;
+import org.orbeon.oxf.util.LoggerFactory;
+import org.orbeon.oxf.xml.SAXStore;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of LDAP search results used by LDAPProcessor.
+ *
+ * - Results are stored in the "cache.ldap" object cache, whose size is set with the oxf.cache.ldap.size property.
+ *   The validity of an entry is its expiration time.
+ * - Empty results are cached too, usually with a shorter time to live.
+ * - When results are missing or expired, a single search runs for a given key. Other requests for the same key
+ *   meanwhile get the expired results if any, or wait for the search to complete.
+ */
+class LDAPSearchCache {
+
+    private static final Logger logger = LoggerFactory.createLogger(LDAPSearchCache.class);
+
+    private static final String CACHE_NAME = "cache.ldap";
+    private static final int DEFAULT_SIZE = 1000;
+
+    private static final LDAPSearchCache instance = new LDAPSearchCache();
+
+    private final ConcurrentHashMap<CacheKey, FutureTask<Results>> pendingSearches = new ConcurrentHashMap<CacheKey, FutureTask<Results>>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong negativeHitCount = new AtomicLong();
+    private final AtomicLong expiredHitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong waitCount = new AtomicLong();
+    private final AtomicLong searchCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+
+    public static LDAPSearchCache instance() {
+        return instance;
+    }
+
+    /**
+     * Search results, as output by the processor.
+     */
+    public static class Results {
+        public final SAXStore saxStore;
+        public final boolean empty;
+
+        public Results(SAXStore saxStore, boolean empty) {
+            this.saxStore = saxStore;
+            this.empty = empty;
+        }
+    }
+
+    /**
+     * Create the key identifying a search from all the parameters which can influence its results.
+     */
+    public static CacheKey createKey(List<String> components) {
+        final StringBuilder sb = new StringBuilder();
+        for (final String component : components)
+            appendComponent(sb, component);
+        return new InternalCacheKey("LDAP search", sb.toString());
+    }
+
+    // Prefix each component with its length, as filters and DNs can contain any separator
+    private static void appendComponent(StringBuilder sb, String component) {
+        if (component == null) {
+            sb.append("-;");
+        } else {
+            sb.append(component.length());
+            sb.append(':');
+            sb.append(component);
+        }
+    }
+
+    /**
+     * Return the results of a search, from the cache if possible.
+     *
+     * @param key           key created with createKey()
+     * @param ttl           time to live of non-empty results in ms
+     * @param negativeTTL   time to live of empty results in ms, 0 not to cache them
+     * @param search        runs the search
+     * @return              search results
+     */
+    public Results search(final CacheKey key, final long ttl, final long negativeTTL, final Callable<Results> search) {
+        final Cache cache = ObjectCache.instance(CACHE_NAME, DEFAULT_SIZE);
+
+        final Results cachedResults = (Results) cache.findValid(key, System.currentTimeMillis());
+        if (cachedResults != null) {
+            (cachedResults.empty ? negativeHitCount : hitCount).incrementAndGet();
+            return cachedResults;
+        }
+
+        missCount.incrementAndGet();
+
+        final FutureTask<Results> newSearch = new FutureTask<Results>(new Callable<Results>() {
+            public Results call() throws Exception {
+                final Results results = search.call();
+                searchCount.incrementAndGet();
+
+                // Add before the search is removed from the pending searches, so that no other search starts
+                final long timeToLive = results.empty ? negativeTTL : ttl;
+                if (timeToLive > 0)
+                    cache.add(key, System.currentTimeMillis() + timeToLive, results);
+                else
+                    cache.remove(key);
+
+                return results;
+            }
+        });
+
+        final FutureTask<Results> pendingSearch = pendingSearches.putIfAbsent(key, newSearch);
+        if (pendingSearch == null) {
+            try {
+                newSearch.run();
+            } finally {
+                pendingSearches.remove(key, newSearch);
+            }
+            return getResults(newSearch);
+        } else {
+            // The search is already running: return the expired results if any rather than waiting
+            final CacheEntry expiredEntry = cache.findAny(key);
+            if (expiredEntry != null) {
+                expiredHitCount.incrementAndGet();
+                return (Results) expiredEntry.cacheable;
+            } else {
+                waitCount.incrementAndGet();
+                return getResults(pendingSearch);
+            }
+        }
+    }
+
+    private Results getResults(FutureTask<Results> search) {
+        try {
+            return search.get();
+        } catch (ExecutionException e) {
+            errorCount.incrementAndGet();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            else
+                throw new OXFException(e.getCause());
+        } catch (InterruptedException e) {
+            throw new OXFException(e);
+        } finally {
+            if (logger.isDebugEnabled())
+                logger.debug("LDAP search cache: " + getStatistics());
+        }
+    }
+
+    public String getStatistics() {
+        return "hits: " + hitCount.get()
+                + ", negative hits: " + negativeHitCount.get()
+                + ", expired hits: " + expiredHitCount.get()
+                + ", misses: " + missCount.get()
+                + ", waits: " + waitCount.get()
+                + ", searches: " + searchCount.get()
+                + ", errors: " + errorCount.get()
+                + ", size: " + ObjectCache.instance(CACHE_NAME, DEFAULT_SIZE).getCurrentSize();
+    }
+}
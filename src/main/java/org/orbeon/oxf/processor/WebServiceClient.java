@@ -0,0 +1,192 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor;
+
+import org.apache.axis.AxisFault;
+import org.apache.axis.EngineConfiguration;
+import org.apache.axis.Message;
+import org.apache.axis.MessageContext;
+import org.apache.axis.SimpleTargetedChain;
+import org.apache.axis.client.Call;
+import org.apache.axis.client.Service;
+import org.apache.axis.configuration.EngineConfigurationFactoryFinder;
+import org.apache.axis.configuration.SimpleProvider;
+import org.apache.axis.handlers.BasicHandler;
+import org.apache.axis.soap.SOAPConstants;
+import org.apache.log4j.Logger;
+import org.orbeon.oxf.common.OXFException;
+import org.orbeon.oxf.resources.URLFactory;
+import org.orbeon.oxf.resources.handler.HTTPURLConnection;
+import org.orbeon.oxf.util.LoggerFactory;
+import org.orbeon.oxf.util.NetUtils;
+
+import javax.xml.rpc.ServiceException;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Web service client used by DelegationProcessor, one per service endpoint.
+ *
+ * - The Axis service, and the engine configuration it is created from, are created once and shared by all the calls
+ *   to the endpoint. Only the Call object, which is not thread-safe, is created for each call.
+ * - HTTP requests go through HTTPURLConnection, and therefore through the same pool of persistent connections as
+ *   other HTTP connections, instead of a new connection per call.
+ * - Latency and errors are tracked per endpoint.
+ */
+class WebServiceClient {
+
+    private static final Logger logger = LoggerFactory.createLogger(WebServiceClient.class);
+
+    private static final ConcurrentHashMap<String, WebServiceClient> clients = new ConcurrentHashMap<String, WebServiceClient>();
+
+    private static EngineConfiguration engineConfiguration;
+
+    private final String endpoint;
+    private final Service axisService;
+
+    private final AtomicLong callCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Return the client for the given endpoint.
+     */
+    public static WebServiceClient getInstance(String endpoint) {
+        final WebServiceClient client = clients.get(endpoint);
+        if (client != null) {
+            return client;
+        } else {
+            final WebServiceClient newClient = new WebServiceClient(endpoint);
+            final WebServiceClient existingClient = clients.putIfAbsent(endpoint, newClient);
+            return existingClient != null ? existingClient : newClient;
+        }
+    }
+
+    private WebServiceClient(String endpoint) {
+        this.endpoint = endpoint;
+        this.axisService = new Service(getEngineConfiguration());
+    }
+
+    // Default client configuration, with the HTTP transport replaced
+    private static synchronized EngineConfiguration getEngineConfiguration() {
+        if (engineConfiguration == null) {
+            final SimpleProvider provider = new SimpleProvider(EngineConfigurationFactoryFinder.newFactory().getClientEngineConfig());
+            // Axis uses the "http" transport for both http: and https: endpoints
+            provider.deployTransport("http", new SimpleTargetedChain(new PooledHTTPSender()));
+            engineConfiguration = provider;
+        }
+        return engineConfiguration;
+    }
+
+    public Call createCall() {
+        try {
+            return (Call) axisService.createCall();
+        } catch (ServiceException e) {
+            throw new OXFException(e);
+        }
+    }
+
+    /**
+     * Record the outcome of a call to the service.
+     *
+     * @param nanos     duration of the call
+     * @param error     whether the call failed or returned a fault
+     */
+    public void callCompleted(long nanos, boolean error) {
+        callCount.incrementAndGet();
+        if (error)
+            errorCount.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        for (long max = maxNanos.get(); nanos > max; max = maxNanos.get())
+            if (maxNanos.compareAndSet(max, nanos))
+                break;
+
+        if (logger.isDebugEnabled())
+            logger.debug("Called web service " + endpoint + " in " + (nanos / 1000000) + " ms, " + getStatistics());
+    }
+
+    public String getStatistics() {
+        final long calls = callCount.get();
+        final long errors = errorCount.get();
+        return "calls: " + calls
+                + ", errors: " + errors + " (" + (calls == 0 ? 0 : errors * 100 / calls) + "%)"
+                + ", average time: " + (calls == 0 ? 0 : totalNanos.get() / calls / 1000000) + " ms"
+                + ", max time: " + (maxNanos.get() / 1000000) + " ms";
+    }
+
+    /**
+     * Axis transport sending the SOAP request with HTTPURLConnection.
+     */
+    private static class PooledHTTPSender extends BasicHandler {
+
+        public void invoke(MessageContext msgContext) throws AxisFault {
+            try {
+                final Message requestMessage = msgContext.getRequestMessage();
+                final SOAPConstants soapConstants = msgContext.getSOAPConstants();
+
+                final HTTPURLConnection connection =
+                    (HTTPURLConnection) URLFactory.createURL(msgContext.getStrProp(MessageContext.TRANS_URL)).openConnection();
+
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                connection.setReadTimeout(msgContext.getTimeout());
+
+                if (msgContext.getUsername() != null) {
+                    connection.setUsername(msgContext.getUsername());
+                    connection.setPassword(msgContext.getPassword());
+                }
+
+                connection.setRequestProperty("Content-Type", requestMessage.getContentType(soapConstants));
+                if (soapConstants != SOAPConstants.SOAP12_CONSTANTS) {
+                    // SOAP 1.1 requires the SOAPAction header, and the action is part of the content type in SOAP 1.2
+                    final String soapAction = msgContext.useSOAPAction() && msgContext.getSOAPActionURI() != null ? msgContext.getSOAPActionURI() : "";
+                    connection.setRequestProperty("SOAPAction", "\"" + soapAction + "\"");
+                }
+
+                final ByteArrayOutputStream requestBody = new ByteArrayOutputStream();
+                requestMessage.writeTo(requestBody);
+                connection.setRequestBody(requestBody.toByteArray());
+
+                connection.connect();
+
+                // Read the whole response so that the connection goes back to the pool right away
+                final int statusCode = connection.getResponseCode();
+                final String contentType = connection.getHeaderField("Content-Type");
+                final byte[] responseBody;
+                final InputStream is = connection.getInputStream();
+                try {
+                    responseBody = NetUtils.inputStreamToByteArray(is);
+                } finally {
+                    is.close();
+                }
+
+                // Faults are returned with status code 500
+                final boolean isXML = contentType != null && contentType.toLowerCase().indexOf("xml") != -1;
+                if (! NetUtils.isSuccessCode(statusCode) && ! (statusCode == 500 && isXML))
+                    throw new AxisFault("HTTP status code " + statusCode + " returned by web service " + msgContext.getStrProp(MessageContext.TRANS_URL));
+
+                final Message responseMessage = new Message(responseBody, false, contentType, connection.getHeaderField("Content-Location"));
+                responseMessage.setMessageType(Message.RESPONSE);
+                msgContext.setResponseMessage(responseMessage);
+            } catch (AxisFault e) {
+                throw e;
+            } catch (Exception e) {
+                throw AxisFault.makeFault(e);
+            }
+        }
+    }
+}
@@ -32,6 +32,7 @@ import org.orbeon.oxf.processor.impl.DigestTransformerOutputImpl;
 import org.orbeon.oxf.properties.Properties;
 import org.orbeon.oxf.properties.PropertySet;
 import org.orbeon.oxf.util.NetUtils;
+import org.orbeon.oxf.util.StreamingFileItem;
 import org.orbeon.oxf.util.SystemUtils;
 import org.orbeon.oxf.xml.*;
 import org.orbeon.oxf.xml.XMLUtils;
@@ -537,6 +538,16 @@ public class RequestGenerator extends ProcessorImpl {
                             parameterElement.addElement("content-type").addText(fileItem.getContentType());
                         parameterElement.addElement("content-length").addText(Long.toString(fileItem.getSize()));
 
+                        // Digest computed while a streaming upload was received, if any
+                        if (fileItem instanceof StreamingFileItem) {
+                            final StreamingFileItem streamingFileItem = (StreamingFileItem) fileItem;
+                            final String digest = streamingFileItem.digestOrNull();
+                            if (digest != null)
+                                parameterElement.addElement("content-digest")
+                                        .addAttribute("algorithm", streamingFileItem.digestAlgorithmOrNull())
+                                        .addText(digest);
+                        }
+
                         if (!isFileItemEmpty(fileItem)) {
                             // Create private placeholder element with parameter name as attribute
                             final Element fileItemElement = parameterElement.addElement(FILE_ITEM_ELEMENT, REQUEST_PRIVATE_NAMESPACE_URI);
@@ -22,6 +22,8 @@ import org.orbeon.oxf.processor.*;
  */
 public abstract class DependenciesProcessorInput extends DelegatingProcessorInput {
 
+    private final ProcessorInput dependencyInput;
+
     public DependenciesProcessorInput(ProcessorImpl processor, String originalName, ProcessorInput originalInput) {
         super(processor, originalName);
 
@@ -62,7 +64,7 @@ public abstract class DependenciesProcessorInput extends DelegatingProcessorInpu
         };
 
         // Create data input and output
-        final ProcessorInput dependencyInput = dependencyProcessor.createInput(ProcessorImpl.INPUT_CONFIG);
+        dependencyInput = dependencyProcessor.createInput(ProcessorImpl.INPUT_CONFIG);
         final ProcessorOutput dependencyOutput = dependencyProcessor.createOutput(ProcessorImpl.OUTPUT_DATA);
 
         setDelegateInput(dependencyInput);
@@ -75,6 +77,16 @@ public abstract class DependenciesProcessorInput extends DelegatingProcessorInpu
         }
     }
 
+    /**
+     * Return the input connected to the output providing the document. Unlike the key and validity of this input, its
+     * key and validity don't depend on the URI references, which are only known once the document has been read.
+     *
+     * @return                  input connected to the document
+     */
+    public ProcessorInput getDocumentInput() {
+        return dependencyInput;
+    }
+
     /**
      * Get URI references on which this input depends. This is called right after the original input has been read.
      *
@@ -48,6 +48,8 @@ public abstract class HttpSerializerBase extends CachedSerializer {
     private static final boolean DEFAULT_FORCE_ENCODING = false;
     private static final boolean DEFAULT_IGNORE_DOCUMENT_ENCODING = false;
 
+    private static final boolean DEFAULT_BATCH = false;
+
     private static Logger logger = LoggerFactory.createLogger(HttpSerializerBase.class);
 
     protected HttpSerializerBase() {
@@ -269,6 +271,9 @@ public abstract class HttpSerializerBase extends CachedSerializer {
                             config.indent = ProcessorUtils.selectBooleanValue(configElement, "/config/indent", DEFAULT_INDENT);
                             if (indentAmount != null) config.indentAmount = indentAmount;
 
+                            // XSL-FO configuration
+                            config.batch = ProcessorUtils.selectBooleanValue(configElement, "/config/batch", DEFAULT_BATCH);
+
                             return config;
                         } catch (Exception e) {
                             throw new OXFException(e);
@@ -304,6 +309,9 @@ public abstract class HttpSerializerBase extends CachedSerializer {
         public boolean indent = DEFAULT_INDENT;
         public int indentAmount = DEFAULT_INDENT_AMOUNT;
 
+        // XSL-FO configuration
+        public boolean batch = DEFAULT_BATCH;
+
         public void addHeader(String name, String value) {
             if (headers == null) headers = new ArrayList<String>();
             headers.add(name);
@@ -36,7 +36,7 @@ public abstract class HttpBinarySerializer extends HttpSerializerBase {
         Config config = (Config) _config;
 
         // Set content type
-        String contentType = getContentType(config, null, getDefaultContentType());
+        String contentType = getContentType(config, null, getDefaultContentType(config));
         if (contentType != null)
             response.setContentType(contentType);
 
@@ -48,6 +48,13 @@ public abstract class HttpBinarySerializer extends HttpSerializerBase {
         }
     }
 
+    /**
+     * Return the default content type for the given configuration. Can be overridden by subclasses.
+     */
+    protected String getDefaultContentType(HttpSerializerBase.Config config) {
+        return getDefaultContentType();
+    }
+
     /**
      * This must be overridden by subclasses.
      */
@@ -69,7 +76,7 @@ public abstract class HttpBinarySerializer extends HttpSerializerBase {
 
                 // Read configuration input
                 Config config = readConfig(pipelineContext);
-                String contentType = getContentType(config, null, getDefaultContentType());
+                String contentType = getContentType(config, null, getDefaultContentType(config));
 
                 try {
                     // Start document
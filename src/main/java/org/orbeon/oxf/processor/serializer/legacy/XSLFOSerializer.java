@@ -13,51 +13,212 @@
  */
 package org.orbeon.oxf.processor.serializer.legacy;
 
-import org.apache.fop.apps.FOUserAgent;
+import org.apache.fop.apps.FOPException;
 import org.apache.fop.apps.Fop;
 import org.apache.fop.apps.FopFactory;
 import org.apache.fop.apps.MimeConstants;
 import org.apache.log4j.Logger;
+import org.dom4j.Document;
+import org.dom4j.Element;
 import org.orbeon.oxf.common.OXFException;
 import org.orbeon.oxf.pipeline.api.PipelineContext;
 import org.orbeon.oxf.processor.ProcessorInput;
+import org.orbeon.oxf.processor.serializer.HttpSerializerBase;
 import org.orbeon.oxf.util.LoggerFactory;
+import org.orbeon.oxf.util.NetUtils;
 import org.orbeon.oxf.xml.ForwardingXMLReceiver;
+import org.orbeon.oxf.xml.TransformerUtils;
+import org.orbeon.oxf.xml.dom4j.Dom4jUtils;
 
-import java.io.File;
-import java.io.OutputStream;
+import java.io.*;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
+/**
+ * The XSL-FO serializer renders an XSL-FO document to PDF.
+ *
+ * With batch set to true in the config, the root element of the data input contains several XSL-FO documents. They are
+ * rendered concurrently, and the output is a zip file with one PDF per document.
+ */
 public class XSLFOSerializer extends HttpBinarySerializer {
 
     private static final Logger logger = LoggerFactory.createLogger(XSLFOSerializer.class);
 
     public static String DEFAULT_CONTENT_TYPE = "application/pdf";
+    public static String BATCH_CONTENT_TYPE = "application/zip";
+
+    private static final String RENDER_THREADS_PROPERTY = "render-threads";
+
+    // Shared FOP factory, so that FOP's font and image caches are kept across renderings
+    private static FopFactory fopFactory;
+
+    // Bounded pool for batch rendering, created on first use
+    private static ExecutorService renderPool;
 
     protected String getDefaultContentType() {
         return DEFAULT_CONTENT_TYPE;
     }
 
+    @Override
+    protected String getDefaultContentType(HttpSerializerBase.Config config) {
+        return config.batch ? BATCH_CONTENT_TYPE : DEFAULT_CONTENT_TYPE;
+    }
+
     protected void readInput(PipelineContext context, ProcessorInput input, Config config, OutputStream outputStream) {
         try {
+            if (config.batch) {
+                final List<Document> foDocuments = new ArrayList<Document>();
+                for (final Object child : readInputAsDOM4J(context, input).getRootElement().elements())
+                    foDocuments.add(Dom4jUtils.createDocumentCopyParentNamespaces((Element) child));
+
+                renderZip(foDocuments, outputStream);
+            } else {
+                final Fop fop = newFop(outputStream);
+
+                // Send data to FOP
+                readInputAsSAX(context, INPUT_DATA, new ForwardingXMLReceiver(fop.getDefaultHandler()));
+            }
+        } catch (Exception e) {
+            throw new OXFException(e);
+        }
+    }
+
+    // Render the documents concurrently to temporary files, then write them to the zip file in order
+    private void renderZip(List<Document> foDocuments, OutputStream outputStream) throws IOException {
+        final List<File> files = new ArrayList<File>(foDocuments.size());
+        try {
+            final List<OutputStream> fileOutputStreams = new ArrayList<OutputStream>(foDocuments.size());
+            try {
+                for (int i = 0; i < foDocuments.size(); i++) {
+                    final File file = File.createTempFile("xslfo-", ".pdf");
+                    files.add(file);
+                    fileOutputStreams.add(new BufferedOutputStream(new FileOutputStream(file)));
+                }
+                renderAll(foDocuments, fileOutputStreams);
+            } finally {
+                for (final OutputStream fileOutputStream : fileOutputStreams)
+                    fileOutputStream.close();
+            }
+
+            final ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream);
+            for (int i = 0; i < files.size(); i++) {
+                zipOutputStream.putNextEntry(new ZipEntry("document-" + (i + 1) + ".pdf"));
+                final InputStream fileInputStream = new FileInputStream(files.get(i));
+                try {
+                    NetUtils.copyStream(fileInputStream, zipOutputStream);
+                } finally {
+                    fileInputStream.close();
+                }
+            }
+            zipOutputStream.finish();
+        } finally {
+            for (final File file : files)
+                file.delete();
+        }
+    }
+
+    /**
+     * Render the given XSL-FO documents to PDF concurrently.
+     *
+     * Documents are rendered on a pool of render-threads threads, by default the number of available processors. This
+     * method returns when all the documents have been rendered.
+     *
+     * @param foDocuments       XSL-FO documents
+     * @param outputStreams     output stream for each document, not closed by this method
+     */
+    public void renderAll(List<Document> foDocuments, List<OutputStream> outputStreams) {
+
+        if (foDocuments.size() != outputStreams.size())
+            throw new IllegalArgumentException("foDocuments and outputStreams must have the same size");
+
+        final List<Future<?>> futures = new ArrayList<Future<?>>(foDocuments.size());
+        for (int i = 0; i < foDocuments.size(); i++)
+            futures.add(renderAsync(foDocuments.get(i), outputStreams.get(i)));
+
+        try {
+            for (final Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            for (final Future<?> future : futures)
+                future.cancel(true);
+            throw new OXFException(e);
+        } catch (ExecutionException e) {
+            for (final Future<?> future : futures)
+                future.cancel(true);
+            throw new OXFException(e.getCause());
+        }
+    }
+
+    /**
+     * Render the given XSL-FO document to PDF asynchronously.
+     *
+     * @param foDocument        XSL-FO document
+     * @param outputStream      output stream, not closed by this method
+     * @return                  future completed when the document has been rendered
+     */
+    public Future<?> renderAsync(final Document foDocument, final OutputStream outputStream) {
+        return getRenderPool(getPropertySet().getInteger(RENDER_THREADS_PROPERTY, 0)).submit(new Callable<Object>() {
+            public Object call() throws Exception {
+                TransformerUtils.writeDom4j(foDocument, newFop(outputStream).getDefaultHandler());
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Stop the batch rendering threads, typically when the web app is destroyed.
+     */
+    public static synchronized void shutdown() {
+        if (renderPool != null) {
+            renderPool.shutdownNow();
+            renderPool = null;
+        }
+    }
+
+    private static Fop newFop(OutputStream outputStream) throws FOPException {
+        final FopFactory factory = getFopFactory();
+        return factory.newFop(MimeConstants.MIME_PDF, factory.newFOUserAgent(), outputStream);
+    }
+
+    private static synchronized FopFactory getFopFactory() {
+        if (fopFactory == null) {
             // Setup FOP to output PDF
-            final FopFactory fopFactory = FopFactory.newInstance();
-            final FOUserAgent foUserAgent = fopFactory.newFOUserAgent();
+            final FopFactory newFopFactory = FopFactory.newInstance();
 
-            final URL configFileUrl = this.getClass().getClassLoader().getResource("fop-userconfig.xml");
+            final URL configFileUrl = XSLFOSerializer.class.getClassLoader().getResource("fop-userconfig.xml");
             if (configFileUrl == null) {
                 logger.warn("FOP config file not found. Please put a fop-userconfig.xml file in your classpath for proper display of UTF-8 characters.");
             } else {
                 final File userConfigXml = new File(configFileUrl.getFile());
-                fopFactory.setUserConfig(userConfigXml);
+                try {
+                    newFopFactory.setUserConfig(userConfigXml);
+                } catch (Exception e) {
+                    throw new OXFException(e);
+                }
             }
 
-            Fop fop = fopFactory.newFop(MimeConstants.MIME_PDF, foUserAgent, outputStream);
+            fopFactory = newFopFactory;
+        }
+        return fopFactory;
+    }
 
-            // Send data to FOP
-            readInputAsSAX(context, INPUT_DATA, new ForwardingXMLReceiver(fop.getDefaultHandler()));
-        } catch (Exception e) {
-            throw new OXFException(e);
+    // Daemon threads, so that they don't prevent the JVM from exiting
+    private static synchronized ExecutorService getRenderPool(int threads) {
+        if (renderPool == null) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            renderPool = Executors.newFixedThreadPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "Orbeon XSL-FO renderer " + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
         }
+        return renderPool;
     }
 }
@@ -0,0 +1,199 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor.xmldb;
+
+import org.apache.log4j.Logger;
+import org.orbeon.oxf.util.LoggerFactory;
+import org.xmldb.api.DatabaseManager;
+import org.xmldb.api.base.Collection;
+import org.xmldb.api.base.XMLDBException;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of open XML:DB collections, by collection URI and credentials.
+ *
+ * Getting a collection from the DatabaseManager authenticates and, with a remote database, makes a round-trip to the
+ * server, so collections are kept open between operations. A collection is used by one operation at a time, and is
+ * checked with isOpen() before being reused. Collections idle for longer than the maximum idle time are closed.
+ */
+class CollectionPool {
+
+    private static final Logger logger = LoggerFactory.createLogger(CollectionPool.class);
+
+    private static final long MAX_IDLE_MILLIS = 60 * 1000;
+    private static final int MAX_IDLE_PER_COLLECTION = 8;
+
+    private static final CollectionPool instance = new CollectionPool();
+
+    private final ConcurrentHashMap<Key, ConcurrentLinkedQueue<PooledCollection>> idleCollections = new ConcurrentHashMap<Key, ConcurrentLinkedQueue<PooledCollection>>();
+    private volatile long lastEviction = System.currentTimeMillis();
+
+    private final AtomicLong openedCount = new AtomicLong();
+    private final AtomicLong reusedCount = new AtomicLong();
+    private final AtomicLong closedCount = new AtomicLong();
+
+    public static CollectionPool instance() {
+        return instance;
+    }
+
+    private static class Key {
+        public final String uri;
+        public final String username;
+        public final String password;
+
+        private Key(String uri, String username, String password) {
+            this.uri = uri;
+            this.username = username;
+            this.password = password;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            final Key other = (Key) o;
+            return uri.equals(other.uri) && equals(username, other.username) && equals(password, other.password);
+        }
+
+        @Override
+        public int hashCode() {
+            return uri.hashCode() * 31 + (username != null ? username.hashCode() : 0);
+        }
+
+        private static boolean equals(String s1, String s2) {
+            return s1 == null ? s2 == null : s1.equals(s2);
+        }
+    }
+
+    /**
+     * Collection borrowed from the pool, to give back with release() when the operation is done.
+     */
+    public static class PooledCollection {
+        public final Collection collection;
+        private final Key key;
+        private long lastUsed;
+
+        private PooledCollection(Collection collection, Key key) {
+            this.collection = collection;
+            this.key = key;
+        }
+    }
+
+    /**
+     * Get an open collection, or null if the collection doesn't exist.
+     */
+    public PooledCollection borrow(String uri, String username, String password) throws XMLDBException {
+        evictIdleCollectionsIfNeeded();
+
+        final Key key = new Key(uri, username, password);
+        final ConcurrentLinkedQueue<PooledCollection> idle = idleCollections.get(key);
+        if (idle != null) {
+            for (PooledCollection pooledCollection = idle.poll(); pooledCollection != null; pooledCollection = idle.poll()) {
+                if (isUsable(pooledCollection)) {
+                    reusedCount.incrementAndGet();
+                    return pooledCollection;
+                } else {
+                    close(pooledCollection);
+                }
+            }
+        }
+
+        return wrap(DatabaseManager.getCollection(uri, username, password), uri, username, password);
+    }
+
+    /**
+     * Wrap a collection obtained otherwise, e.g. just created, so that it is pooled when released.
+     */
+    public PooledCollection wrap(Collection collection, String uri, String username, String password) {
+        if (collection == null)
+            return null;
+        openedCount.incrementAndGet();
+        return new PooledCollection(collection, new Key(uri, username, password));
+    }
+
+    /**
+     * Give a collection back to the pool.
+     *
+     * @param reusable  false if the operation failed, in which case the collection is closed rather than reused
+     */
+    public void release(PooledCollection pooledCollection, boolean reusable) {
+        if (pooledCollection == null)
+            return;
+
+        if (reusable) {
+            pooledCollection.lastUsed = System.currentTimeMillis();
+
+            ConcurrentLinkedQueue<PooledCollection> idle = idleCollections.get(pooledCollection.key);
+            if (idle == null) {
+                final ConcurrentLinkedQueue<PooledCollection> newIdle = new ConcurrentLinkedQueue<PooledCollection>();
+                idle = idleCollections.putIfAbsent(pooledCollection.key, newIdle);
+                if (idle == null)
+                    idle = newIdle;
+            }
+
+            // NOTE: The size is approximate under concurrency, which is fine for a limit
+            if (idle.size() < MAX_IDLE_PER_COLLECTION) {
+                idle.offer(pooledCollection);
+                return;
+            }
+        }
+
+        close(pooledCollection);
+    }
+
+    public String getStatistics() {
+        return "opened: " + openedCount.get() + ", reused: " + reusedCount.get() + ", closed: " + closedCount.get();
+    }
+
+    private static boolean isUsable(PooledCollection pooledCollection) {
+        if (System.currentTimeMillis() - pooledCollection.lastUsed >= MAX_IDLE_MILLIS)
+            return false;
+        try {
+            return pooledCollection.collection.isOpen();
+        } catch (XMLDBException e) {
+            return false;
+        }
+    }
+
+    // Close the collections which have been idle for too long, at most once every maximum idle time
+    private void evictIdleCollectionsIfNeeded() {
+        final long now = System.currentTimeMillis();
+        if (now - lastEviction < MAX_IDLE_MILLIS)
+            return;
+        lastEviction = now;
+
+        for (final Map.Entry<Key, ConcurrentLinkedQueue<PooledCollection>> entry : idleCollections.entrySet()) {
+            for (final PooledCollection pooledCollection : entry.getValue()) {
+                if (now - pooledCollection.lastUsed >= MAX_IDLE_MILLIS && entry.getValue().remove(pooledCollection))
+                    close(pooledCollection);
+            }
+        }
+
+        if (logger.isDebugEnabled())
+            logger.debug("Closed idle collections, " + getStatistics());
+    }
+
+    private void close(PooledCollection pooledCollection) {
+        closedCount.incrementAndGet();
+        try {
+            pooledCollection.collection.close();
+        } catch (XMLDBException e) {
+            logger.debug("Unable to close collection " + pooledCollection.key.uri, e);
+        }
+    }
+}
@@ -30,16 +30,20 @@ import org.orbeon.oxf.util.NetUtils;
 import org.orbeon.oxf.xml.*;
 import org.orbeon.oxf.xml.dom4j.Dom4jUtils;
 import org.orbeon.oxf.xml.dom4j.LocationSAXContentHandler;
+import org.xml.sax.Attributes;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
 import org.xmldb.api.DatabaseManager;
 import org.xmldb.api.base.*;
 import org.xmldb.api.modules.*;
 
 import java.io.ByteArrayInputStream;
 import java.net.URI;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This is the main XML:DB processor. It should be able to access all databases supporting the XML:DB API. It
@@ -65,7 +69,10 @@ public abstract class XMLDBProcessor extends ProcessorImpl {
     protected static final String XPATH_SERVICE_NAME = "XPathQueryService";
     protected static final String COLLECTION_SERVICE_NAME = "CollectionManagementService";
 
-    private static Map<String, Database> drivers = new HashMap<String, Database>();
+    public static final String XMLDB_NAMESPACE_URI = "http://orbeon.org/oxf/xml/xmldb";
+    private static final String RESOURCE_ID_ATTRIBUTE = "resource-id";
+
+    private static final Map<String, Database> drivers = new ConcurrentHashMap<String, Database>();
 
     private Config readConfig(Document configDocument) {
         Config config = new Config();
@@ -75,6 +82,7 @@ public abstract class XMLDBProcessor extends ProcessorImpl {
         config.setCollection(rootElement.attributeValue("collection"));
         config.setCreateCollection(rootElement.attributeValue("create-collection"));
         config.setResourceId(rootElement.attributeValue("resource-id"));
+        config.setBatch("true".equals(rootElement.attributeValue("batch")));
 
         config.setQuery(Dom4jUtils.objectToString(XPathUtils.selectObjectValue(configDocument, "/*/text() | /*/*")));
 
@@ -101,25 +109,30 @@ public abstract class XMLDBProcessor extends ProcessorImpl {
         });
     }
 
-    protected synchronized static void ensureDriverRegistered(Datasource datasource) {
+    protected static void ensureDriverRegistered(Datasource datasource) {
         String driverClassName = datasource.getDriverClassName();
-        if (drivers.get(driverClassName) == null) {
-            // Initialize database driver
-            try {
-                Class cl = Class.forName(driverClassName);
-                Database database = (Database) cl.newInstance();
-                DatabaseManager.registerDatabase(database);
-                {
-                    // This is specific for eXist
-                    // TODO: move this to properties?
-                    ExternalContext externalContext = NetUtils.getExternalContext();
-                    String configurationFile = externalContext.getWebAppContext().getRealPath("WEB-INF/exist-conf.xml");
-                    database.setProperty("create-database", "true");
-                    database.setProperty("configuration", configurationFile);
+        // Check without locking first, as this is called for every operation
+        if (drivers.get(driverClassName) != null)
+            return;
+        synchronized (drivers) {
+            if (drivers.get(driverClassName) == null) {
+                // Initialize database driver
+                try {
+                    Class cl = Class.forName(driverClassName);
+                    Database database = (Database) cl.newInstance();
+                    DatabaseManager.registerDatabase(database);
+                    {
+                        // This is specific for eXist
+                        // TODO: move this to properties?
+                        ExternalContext externalContext = NetUtils.getExternalContext();
+                        String configurationFile = externalContext.getWebAppContext().getRealPath("WEB-INF/exist-conf.xml");
+                        database.setProperty("create-database", "true");
+                        database.setProperty("configuration", configurationFile);
+                    }
+                    drivers.put(driverClassName, database);
+                } catch (Exception e) {
+                    throw new OXFException("Cannot register XML:DB driver for class name: " + datasource.getDriverClassName(), e);
                 }
-                drivers.put(driverClassName, database);
-            } catch (Exception e) {
-                throw new OXFException("Cannot register XML:DB driver for class name: " + datasource.getDriverClassName(), e);
             }
         }
     }
@@ -134,8 +147,7 @@ public abstract class XMLDBProcessor extends ProcessorImpl {
      *    /db/orbeon/bizdoc-example
      *    xmldb:exist://localhost:9999/exist/xmlrpc/db/orbeon/bizdoc-example
      */
-    protected Collection getCollection(Datasource datasource, String collection) {
-        ensureDriverRegistered(datasource);
+    protected String getCollectionURI(Datasource datasource, String collection) {
         try {
             String datasourceURI = datasource.getUri();
             if (!datasourceURI.startsWith(XMLDB_URI_PREFIX))
@@ -152,14 +164,44 @@ public abstract class XMLDBProcessor extends ProcessorImpl {
                     + (uri.getPath() == null ? "" : uri.getPath());
             if (xmldbCollectionName.endsWith("/"))
                 xmldbCollectionName = xmldbCollectionName.substring(0, xmldbCollectionName.length() - 1);
-            xmldbCollectionName = xmldbCollectionName + collection;
-
-            return DatabaseManager.getCollection(xmldbCollectionName, datasource.getUsername(), datasource.getPassword());
+            return xmldbCollectionName + collection;
+        } catch (OXFException e) {
+            throw e;
         } catch (Exception e) {
             throw new OXFException(e);
         }
     }
 
+    /**
+     * Borrow an open collection from the pool. It must be given back with releaseCollection().
+     *
+     * @param datasource        the processor configuration
+     * @param collectionName    identifies the collection
+     * @param createCollection  if true, create collection if it doesn't exist
+     * @return                  pooled collection, or null if the collection doesn't exist
+     */
+    protected CollectionPool.PooledCollection borrowCollection(Datasource datasource, String collectionName, boolean createCollection) throws XMLDBException {
+        ensureDriverRegistered(datasource);
+
+        final String uri = getCollectionURI(datasource, collectionName);
+        final CollectionPool.PooledCollection pooledCollection = CollectionPool.instance().borrow(uri, datasource.getUsername(), datasource.getPassword());
+        if (pooledCollection != null)
+            return pooledCollection;
+        else if (!createCollection)
+            throw new OXFException("Cannot find collection '" + collectionName + "'.");
+        else
+            return CollectionPool.instance().wrap(createCollection(datasource, collectionName), uri, datasource.getUsername(), datasource.getPassword());
+    }
+
+    /**
+     * Give a collection back to the pool.
+     *
+     * @param success   whether the operation succeeded, otherwise the collection is not reused
+     */
+    protected void releaseCollection(CollectionPool.PooledCollection pooledCollection, boolean success) {
+        CollectionPool.instance().release(pooledCollection, success);
+    }
+
     /**
      * Query resources from the database.
      *
@@ -173,21 +215,27 @@ public abstract class XMLDBProcessor extends ProcessorImpl {
      */
     protected void query(Datasource datasource, String collectionName, boolean createCollection,
                          String resourceId, String query, Map<String, String> namespaceContext, XMLReceiver xmlReceiver) {
-        ensureDriverRegistered(datasource);
         try {
-            // Execute query
-            ResourceSet result = executeQuery(datasource, collectionName, createCollection, resourceId, query, namespaceContext);
-
-            // Output resources
-            for (ResourceIterator i = result.getIterator(); i.hasMoreResources();) {
-                Resource resource = i.nextResource();
-                if (resource instanceof XMLResource) {
-                    ((XMLResource) resource).getContentAsSAX(new DatabaseReadXMLReceiver(xmlReceiver));
-                } else if (resource instanceof BinaryResource) {
-                    XMLUtils.inputStreamToBase64Characters(new ByteArrayInputStream((byte[]) resource.getContent()), xmlReceiver);
-                } else {
-                    throw new OXFException("Unsupported resource type: " + resource.getClass());
+            final CollectionPool.PooledCollection pooledCollection = borrowCollection(datasource, collectionName, createCollection);
+            boolean success = false;
+            try {
+                // Execute query
+                ResourceSet result = executeQuery(pooledCollection.collection, resourceId, query, namespaceContext);
+
+                // Output resources
+                for (ResourceIterator i = result.getIterator(); i.hasMoreResources();) {
+                    Resource resource = i.nextResource();
+                    if (resource instanceof XMLResource) {
+                        ((XMLResource) resource).getContentAsSAX(new DatabaseReadXMLReceiver(xmlReceiver));
+                    } else if (resource instanceof BinaryResource) {
+                        XMLUtils.inputStreamToBase64Characters(new ByteArrayInputStream((byte[]) resource.getContent()), xmlReceiver);
+                    } else {
+                        throw new OXFException("Unsupported resource type: " + resource.getClass());
+                    }
                 }
+                success = true;
+            } finally {
+                releaseCollection(pooledCollection, success);
             }
         } catch (XMLDBException e) {
             throw new OXFException(e);
@@ -196,34 +244,25 @@ public abstract class XMLDBProcessor extends ProcessorImpl {
 
     protected void storeResource(Datasource datasource, String collectionName, boolean createCollection,
                                  String resourceName, String document) {
-        ensureDriverRegistered(datasource);
         try {
-            Collection collection = getCollection(datasource, collectionName);
-            if (collection == null) {
-                if (!createCollection)
-                    throw new OXFException("Cannot find collection '" + collectionName + "'.");
-                else
-                    collection = createCollection(datasource, collectionName);
+            final CollectionPool.PooledCollection pooledCollection = borrowCollection(datasource, collectionName, createCollection);
+            boolean success = false;
+            try {
+                final Collection collection = pooledCollection.collection;
+                final Resource resource = collection.createResource(resourceName, XMLResource.RESOURCE_TYPE);
+                resource.setContent(document);
+                collection.storeResource(resource);
+                success = true;
+            } finally {
+                releaseCollection(pooledCollection, success);
             }
-            final Resource resource = collection.createResource(resourceName, XMLResource.RESOURCE_TYPE);
-            resource.setContent(document);
-            collection.storeResource(resource);
-
         } catch (XMLDBException e) {
             throw new OXFException(e);
         }
     }
 
-    private ResourceSet executeQuery(Datasource datasource, String collectionName, boolean createCollection,
-                                     String resourceId, String query, Map<String, String> namespaceContext) throws XMLDBException {
+    private ResourceSet executeQuery(Collection collection, String resourceId, String query, Map<String, String> namespaceContext) throws XMLDBException {
 
-        Collection collection = getCollection(datasource, collectionName);
-        if (collection == null) {
-            if (!createCollection)
-                throw new OXFException("Cannot find collection '" + collectionName + "'.");
-            else
-                collection = createCollection(datasource, collectionName);
-        }
         final XPathQueryService xpathQueryService;
         try {
             // For eXist, this is the same as XQueryService
@@ -245,6 +284,9 @@ public abstract class XMLDBProcessor extends ProcessorImpl {
             logger.debug("Unable to set eXist highlight-matches", e);
         }
 
+        // Namespaces are set on the service, which is reused with the collection
+        xpathQueryService.clearNamespaces();
+
         // Set namespaces
         if (namespaceContext != null) {
             for (final String prefix: namespaceContext.keySet()) {
@@ -277,25 +319,56 @@ public abstract class XMLDBProcessor extends ProcessorImpl {
      */
     protected void insert(PipelineContext pipelineContext, Datasource datasource, String collectionName, boolean createCollection,
                           String resourceId, ProcessorInput input) {
-        ensureDriverRegistered(datasource);
         try {
-            Collection collection = getCollection(datasource, collectionName);
-            if (collection == null) {
-                if (!createCollection)
-                    throw new OXFException("Cannot find collection '" + collectionName + "'.");
-                else
-                    collection = createCollection(datasource, collectionName);
-            }
-            // Create new XMLResource
-            XMLResource xmlResource = (XMLResource) collection.createResource(resourceId, "XMLResource");
+            final CollectionPool.PooledCollection pooledCollection = borrowCollection(datasource, collectionName, createCollection);
+            boolean success = false;
+            try {
+                final Collection collection = pooledCollection.collection;
+
+                // Create new XMLResource
+                XMLResource xmlResource = (XMLResource) collection.createResource(resourceId, "XMLResource");
 
-            // Write to the resource
-            // NOTE: Writing comments is not supported yet
-            ContentHandler contentHandler = xmlResource.setContentAsSAX();
-            readInputAsSAX(pipelineContext, input, new NamespaceCleanupXMLReceiver(contentHandler, isSerializeXML11()));
+                // Write to the resource
+                // NOTE: Writing comments is not supported yet
+                ContentHandler contentHandler = xmlResource.setContentAsSAX();
+                readInputAsSAX(pipelineContext, input, new NamespaceCleanupXMLReceiver(contentHandler, isSerializeXML11()));
 
-            // Store resource
-            collection.storeResource(xmlResource);
+                // Store resource
+                collection.storeResource(xmlResource);
+                success = true;
+            } finally {
+                releaseCollection(pooledCollection, success);
+            }
+        } catch (XMLDBException e) {
+            throw new OXFException(e);
+        }
+    }
+
+    /**
+     * Insert each child element of the root element of the input as a separate resource, in a single operation on
+     * the collection. The id of each resource is taken from the xdb:resource-id attribute, which is not stored, or
+     * generated if missing.
+     *
+     * @param pipelineContext   current context
+     * @param datasource        the processor configuration
+     * @param collectionName    identifies the collection in which to insert the resources
+     * @param createCollection  if true, create collection if it doesn't exist
+     * @param input             processor input containing the XML resources to insert
+     */
+    protected void insertBatch(PipelineContext pipelineContext, Datasource datasource, String collectionName, boolean createCollection,
+                               ProcessorInput input) {
+        try {
+            final CollectionPool.PooledCollection pooledCollection = borrowCollection(datasource, collectionName, createCollection);
+            boolean success = false;
+            try {
+                final BatchInsertReceiver batchInsertReceiver = new BatchInsertReceiver(pooledCollection.collection);
+                readInputAsSAX(pipelineContext, input, new NamespaceCleanupXMLReceiver(batchInsertReceiver, isSerializeXML11()));
+                if (logger.isDebugEnabled())
+                    logger.debug("Inserted " + batchInsertReceiver.getCount() + " resources in collection " + collectionName + ", " + CollectionPool.instance().getStatistics());
+                success = true;
+            } finally {
+                releaseCollection(pooledCollection, success);
+            }
         } catch (XMLDBException e) {
             throw new OXFException(e);
         }
@@ -306,17 +379,25 @@ public abstract class XMLDBProcessor extends ProcessorImpl {
     }
 
     protected Collection createCollection(Datasource datasource, String collectionName) throws XMLDBException {
-        Collection rootCollection = getCollection(datasource, ROOT_COLLECTION_PATH);
+        final CollectionPool.PooledCollection rootCollection = CollectionPool.instance().borrow(
+                getCollectionURI(datasource, ROOT_COLLECTION_PATH), datasource.getUsername(), datasource.getPassword());
         if (rootCollection == null)
             throw new OXFException("Cannot find root collection '" + ROOT_COLLECTION_PATH + "'.");
 
-        CollectionManagementService mgtService = (CollectionManagementService)
-                rootCollection.getService(COLLECTION_SERVICE_NAME, "1.0");
+        boolean success = false;
+        try {
+            CollectionManagementService mgtService = (CollectionManagementService)
+                    rootCollection.collection.getService(COLLECTION_SERVICE_NAME, "1.0");
 
-        if (!collectionName.startsWith(ROOT_COLLECTION_PATH + "/"))
-            throw new OXFException("Collection name must start with '" + ROOT_COLLECTION_PATH + "': " + collectionName);
+            if (!collectionName.startsWith(ROOT_COLLECTION_PATH + "/"))
+                throw new OXFException("Collection name must start with '" + ROOT_COLLECTION_PATH + "': " + collectionName);
 
-        return mgtService.createCollection(collectionName.substring(ROOT_COLLECTION_PATH.length() + 1));
+            final Collection collection = mgtService.createCollection(collectionName.substring(ROOT_COLLECTION_PATH.length() + 1));
+            success = true;
+            return collection;
+        } finally {
+            releaseCollection(rootCollection, success);
+        }
     }
 
     /**
@@ -330,32 +411,31 @@ public abstract class XMLDBProcessor extends ProcessorImpl {
      */
     protected void update(Datasource datasource, String collectionName, boolean createCollection,
                           String resourceId, String query) {
-        ensureDriverRegistered(datasource);
         try {
-            Collection collection = getCollection(datasource, collectionName);
-            if (collection == null) {
-                if (!createCollection)
-                    throw new OXFException("Cannot find collection '" + collectionName + "'.");
-                else
-                    collection = createCollection(datasource, collectionName);
-            }
-            XUpdateQueryService xUpdateQueryService;
+            final CollectionPool.PooledCollection pooledCollection = borrowCollection(datasource, collectionName, createCollection);
+            boolean success = false;
             try {
-                xUpdateQueryService = (XUpdateQueryService) collection.getService(XUPDATE_SERVICE_NAME, "1.0");
-            } catch (XMLDBException e) {
-                if (e.errorCode == ErrorCodes.NO_SUCH_SERVICE)
-                    throw new OXFException("XML:DB " + XUPDATE_SERVICE_NAME + " does not exist.", e);
+                XUpdateQueryService xUpdateQueryService;
+                try {
+                    xUpdateQueryService = (XUpdateQueryService) pooledCollection.collection.getService(XUPDATE_SERVICE_NAME, "1.0");
+                } catch (XMLDBException e) {
+                    if (e.errorCode == ErrorCodes.NO_SUCH_SERVICE)
+                        throw new OXFException("XML:DB " + XUPDATE_SERVICE_NAME + " does not exist.", e);
+                    else
+                        throw e;
+                }
+                if (xUpdateQueryService == null)
+                    throw new OXFException("XML:DB " + XUPDATE_SERVICE_NAME + " does not exist.");
+
+                // Update either all the resources in a collection, or a specific resource
+                if (resourceId == null)
+                    xUpdateQueryService.update(query);
                 else
-                    throw e;
+                    xUpdateQueryService.updateResource(resourceId, query);
+                success = true;
+            } finally {
+                releaseCollection(pooledCollection, success);
             }
-            if (xUpdateQueryService == null)
-                throw new OXFException("XML:DB " + XUPDATE_SERVICE_NAME + " does not exist.");
-
-            // Update either all the resources in a collection, or a specific resource
-            if (resourceId == null)
-                xUpdateQueryService.update(query);
-            else
-                xUpdateQueryService.updateResource(resourceId, query);
         } catch (XMLDBException e) {
             throw new OXFException(e);
         }
@@ -373,35 +453,47 @@ public abstract class XMLDBProcessor extends ProcessorImpl {
      */
     protected void delete(Datasource datasource, String collectionName, boolean createCollection,
                           String resourceId, String query, Map<String, String> namespaceContext) {
-        ensureDriverRegistered(datasource);
         try {
-            // Execute query
-            final ResourceSet result = executeQuery(datasource, collectionName, createCollection, resourceId, query, namespaceContext);
-
-            if (result.getSize() > 0) {
-                // Delete resources
-
-                // NOTE: As of 2009-10-27, with eXist 1.2.5, the following doesn't work:
-                //
-                // resource.getParentCollection().removeResource(resource)
-                //
-                // So we implement a workaround: we go up to the resource from the root collection.
-
-                final Collection rootCollection = getCollection(datasource, ROOT_COLLECTION_PATH);
-                for (final ResourceIterator i = result.getIterator(); i.hasMoreResources();) {
-                    final Resource resource = i.nextResource();
-
-                    Collection parentCollection;
-                    {
-                        parentCollection = rootCollection;
-                        final String[] subCollections = StringUtils.split(resource.getParentCollection().getName().substring(ROOT_COLLECTION_PATH.length()), '/');
-                        for (final String subCollection: subCollections) {
-                            parentCollection = parentCollection.getChildCollection(subCollection);
+            final CollectionPool.PooledCollection pooledCollection = borrowCollection(datasource, collectionName, createCollection);
+            boolean success = false;
+            try {
+                // Execute query
+                final ResourceSet result = executeQuery(pooledCollection.collection, resourceId, query, namespaceContext);
+
+                if (result.getSize() > 0) {
+                    // Delete resources
+
+                    // NOTE: As of 2009-10-27, with eXist 1.2.5, the following doesn't work:
+                    //
+                    // resource.getParentCollection().removeResource(resource)
+                    //
+                    // So we implement a workaround: we go up to the resource from the root collection.
+
+                    final CollectionPool.PooledCollection rootCollection = borrowCollection(datasource, ROOT_COLLECTION_PATH, false);
+                    boolean rootSuccess = false;
+                    try {
+                        for (final ResourceIterator i = result.getIterator(); i.hasMoreResources();) {
+                            final Resource resource = i.nextResource();
+
+                            Collection parentCollection;
+                            {
+                                parentCollection = rootCollection.collection;
+                                final String[] subCollections = StringUtils.split(resource.getParentCollection().getName().substring(ROOT_COLLECTION_PATH.length()), '/');
+                                for (final String subCollection: subCollections) {
+                                    parentCollection = parentCollection.getChildCollection(subCollection);
+                                }
+                            }
+
+                            parentCollection.removeResource(resource);
                         }
+                        rootSuccess = true;
+                    } finally {
+                        releaseCollection(rootCollection, rootSuccess);
                     }
-
-                    parentCollection.removeResource(resource);
                 }
+                success = true;
+            } finally {
+                releaseCollection(pooledCollection, success);
             }
         } catch (XMLDBException e) {
             throw new OXFException(e);
@@ -415,6 +507,8 @@ public abstract class XMLDBProcessor extends ProcessorImpl {
 
         if ("query".equals(config.getOperation())) {
             query(datasource, config.getCollection(), "true".equals(config.getCreateCollection()), config.getResourceId(), config.getQuery(), config.getNamespaceContext(), xmlReceiver);
+        } else if ("insert".equals(config.getOperation()) && config.isBatch()) {
+            insertBatch(pipelineContext, datasource, config.getCollection(), "true".equals(config.getCreateCollection()), getInputByName(INPUT_DATA));
         } else if ("insert".equals(config.getOperation())) {
             insert(pipelineContext, datasource, config.getCollection(), "true".equals(config.getCreateCollection()), config.getResourceId(), getInputByName(INPUT_DATA));
         } else if ("delete".equals(config.getOperation())) {
@@ -433,6 +527,7 @@ public abstract class XMLDBProcessor extends ProcessorImpl {
         private String createCollection;
         private String resourceId;
         private String query;
+        private boolean batch;
         private Map<String, String> namespaceContext;
 
         public String getOperation() {
@@ -475,6 +570,14 @@ public abstract class XMLDBProcessor extends ProcessorImpl {
             this.query = query;
         }
 
+        public boolean isBatch() {
+            return batch;
+        }
+
+        public void setBatch(boolean batch) {
+            this.batch = batch;
+        }
+
         public Map<String, String> getNamespaceContext() {
             return namespaceContext;
         }
@@ -505,4 +608,119 @@ public abstract class XMLDBProcessor extends ProcessorImpl {
                 super.endDocument();
         }
     }
+
+    /**
+     * Store each child element of the root element as a separate resource of the collection.
+     */
+    private static class BatchInsertReceiver extends XMLReceiverAdapter {
+
+        private final Collection collection;
+
+        // Namespaces in scope on the root element, to declare on each resource
+        private final List<String[]> rootPrefixMappings = new ArrayList<String[]>();
+        private final List<String[]> pendingPrefixMappings = new ArrayList<String[]>();
+
+        private int level = 0;
+        private XMLResource currentResource;
+        private ContentHandler currentContentHandler;
+        private int count = 0;
+
+        public BatchInsertReceiver(Collection collection) {
+            this.collection = collection;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public void startPrefixMapping(String prefix, String uri) throws SAXException {
+            if (level == 0)
+                rootPrefixMappings.add(new String[] { prefix, uri });
+            else if (level == 1)
+                pendingPrefixMappings.add(new String[] { prefix, uri });
+            else
+                currentContentHandler.startPrefixMapping(prefix, uri);
+        }
+
+        public void endPrefixMapping(String prefix) throws SAXException {
+            if (level > 1)
+                currentContentHandler.endPrefixMapping(prefix);
+        }
+
+        public void startElement(String uri, String localname, String qName, Attributes attributes) throws SAXException {
+            if (level == 1) {
+                // New resource
+                final int resourceIdIndex = attributes.getIndex(XMLDB_NAMESPACE_URI, RESOURCE_ID_ATTRIBUTE);
+                final String resourceId;
+                final Attributes resourceAttributes;
+                if (resourceIdIndex != -1) {
+                    resourceId = attributes.getValue(resourceIdIndex);
+                    final AttributesImpl newAttributes = new AttributesImpl(attributes);
+                    newAttributes.removeAttribute(resourceIdIndex);
+                    resourceAttributes = newAttributes;
+                } else {
+                    resourceId = null;
+                    resourceAttributes = attributes;
+                }
+
+                try {
+                    currentResource = (XMLResource) collection.createResource(resourceId != null ? resourceId : collection.createId(), "XMLResource");
+                    currentContentHandler = currentResource.setContentAsSAX();
+                } catch (XMLDBException e) {
+                    throw new OXFException(e);
+                }
+
+                currentContentHandler.startDocument();
+                for (final String[] mapping : rootPrefixMappings)
+                    currentContentHandler.startPrefixMapping(mapping[0], mapping[1]);
+                for (final String[] mapping : pendingPrefixMappings)
+                    currentContentHandler.startPrefixMapping(mapping[0], mapping[1]);
+                currentContentHandler.startElement(uri, localname, qName, resourceAttributes);
+            } else if (level > 1) {
+                currentContentHandler.startElement(uri, localname, qName, attributes);
+            }
+            level++;
+        }
+
+        public void endElement(String uri, String localname, String qName) throws SAXException {
+            level--;
+            if (level == 1) {
+                // End of resource
+                currentContentHandler.endElement(uri, localname, qName);
+                for (final String[] mapping : pendingPrefixMappings)
+                    currentContentHandler.endPrefixMapping(mapping[0]);
+                for (final String[] mapping : rootPrefixMappings)
+                    currentContentHandler.endPrefixMapping(mapping[0]);
+                currentContentHandler.endDocument();
+                pendingPrefixMappings.clear();
+
+                try {
+                    collection.storeResource(currentResource);
+                } catch (XMLDBException e) {
+                    throw new OXFException(e);
+                }
+                currentResource = null;
+                currentContentHandler = null;
+                count++;
+            } else if (level > 1) {
+                currentContentHandler.endElement(uri, localname, qName);
+            }
+        }
+
+        public void characters(char[] chars, int start, int length) throws SAXException {
+            // Ignore text between resources
+            if (level > 1)
+                currentContentHandler.characters(chars, start, length);
+        }
+
+        public void ignorableWhitespace(char[] chars, int start, int length) throws SAXException {
+            if (level > 1)
+                currentContentHandler.ignorableWhitespace(chars, start, length);
+        }
+
+        public void processingInstruction(String target, String data) throws SAXException {
+            if (level > 1)
+                currentContentHandler.processingInstruction(target, data);
+        }
+    }
 }
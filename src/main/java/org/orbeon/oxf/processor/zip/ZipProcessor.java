@@ -13,14 +13,15 @@
  */
 package org.orbeon.oxf.processor.zip;
 
-import org.apache.commons.fileupload.FileItem;
-import org.apache.commons.fileupload.disk.DiskFileItem;
+import org.orbeon.oxf.cache.ObjectCache;
+import org.orbeon.oxf.cache.OutputCacheKey;
 import org.orbeon.oxf.common.OXFException;
 import org.orbeon.oxf.pipeline.api.PipelineContext;
 import org.orbeon.oxf.xml.XMLReceiver;
 import org.orbeon.oxf.processor.*;
 import org.orbeon.oxf.resources.ResourceManagerWrapper;
 import org.orbeon.oxf.resources.URLFactory;
+import org.orbeon.oxf.util.ContentHandlerOutputStream;
 import org.orbeon.oxf.util.NetUtils;
 import org.orbeon.oxf.xml.XMLReceiverAdapter;
 import org.orbeon.oxf.xml.dom4j.LocationData;
@@ -29,11 +30,31 @@ import org.xml.sax.SAXException;
 
 import java.io.*;
 import java.net.URL;
+import java.util.*;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
+/**
+ * The zip processor creates a zip file from a list of files, and outputs it as a binary document.
+ *
+ * The zip file is encoded to the output as it is written, so it is not stored in a temporary file first. Files which
+ * are already compressed, as indicated by their extension, are stored without being compressed again.
+ *
+ * The output is not cacheable by default, as a cached archive is kept in memory. With cacheable="true" on the files
+ * element, it is cacheable when the input is, based on the last modification date of the files. This is only suitable
+ * for small archives.
+ */
 public class ZipProcessor extends ProcessorImpl {
 
+    // Extensions of files which are already compressed and gain nothing from being compressed again
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<String>(Arrays.asList(
+        "zip", "gz", "tgz", "bz2", "7z", "rar", "jar", "war",
+        "jpg", "jpeg", "png", "gif",
+        "mp3", "mp4", "m4a", "m4v", "mov", "avi", "ogg",
+        "docx", "xlsx", "pptx", "odt", "ods", "odp"
+    ));
+
     public ZipProcessor() {
         addInputInfo(new ProcessorInputOutputInfo(INPUT_DATA));
         addOutputInfo(new ProcessorInputOutputInfo(OUTPUT_DATA));
@@ -41,109 +62,185 @@ public class ZipProcessor extends ProcessorImpl {
 
     @Override
     public ProcessorOutput createOutput(String name) {
-        final ProcessorOutput output = new ProcessorOutputImpl(ZipProcessor.this, name) {
-
-            String fileName = null;
-            int statusCode = -1;
-
+        final ProcessorOutput output = new URIProcessorOutputImpl(ZipProcessor.this, name, INPUT_DATA) {
             public void readImpl(PipelineContext context, XMLReceiver xmlReceiver) {
-                try {
-                    // Create temporary zip file
-                    final FileItem fileItem = NetUtils.prepareFileItem(NetUtils.REQUEST_SCOPE);
-                    fileItem.getOutputStream().close();
-                    final File temporaryZipFile = ((DiskFileItem) fileItem).getStoreLocation();
-                    temporaryZipFile.createNewFile();
-                    final ZipOutputStream zipOutputStream = new ZipOutputStream(new FileOutputStream(temporaryZipFile));
+                final Files files = readFiles(context, getLocationData());
+
+                // Check all the files before writing anything, so that a missing file doesn't leave a partial archive
+                final List<File> fileList = new ArrayList<File>(files.fileReferences.size());
+                for (final FileReference fileReference : files.fileReferences) {
+                    final File file = getFile(fileReference);
+                    if (! file.isFile())
+                        throw new OXFException("Zip processor cannot find file: " + fileReference.url);
+                    fileList.add(file);
+                }
 
+                try {
+                    // Encode the zip file to the output as we go
+                    final ContentHandlerOutputStream binaryOutputStream = new ContentHandlerOutputStream(xmlReceiver, true);
+                    binaryOutputStream.setContentType("multipart/x-gzip");
+                    binaryOutputStream.setFileName(files.fileName);
+                    if (files.statusCode > 0)
+                        binaryOutputStream.setStatusCode(Integer.toString(files.statusCode));
+
+                    final ZipOutputStream zipOutputStream = new ZipOutputStream(binaryOutputStream);
                     try {
-                        // Read list of files and write to zip output stream as we go
-                        readInputAsSAX(context, INPUT_DATA, new XMLReceiverAdapter() {
-
-                            String name;
-                            StringBuilder uri;
-
-                            // Get the file name, store it
-                            @Override
-                            public void startElement(String namespaceURI, String localName, String qName, Attributes atts) throws SAXException {
-                                if ("file".equals(localName)) {
-                                    name = atts.getValue("name");
-                                    uri = new StringBuilder();
-                                } else if ("files".equals(localName)) {
-                                    fileName = atts.getValue("filename");
-                                    String value = atts.getValue("status-code");
-                                    if (value != null ) {
-                                        statusCode = Integer.parseInt(value);
-                                    }
-                                }
-                            }
-
-                            // Get the URI to the file, store it
-                            @Override
-                            public void characters(char ch[], int start, int length) throws SAXException {
-                                if (uri != null)
-                                    uri.append(ch, start, length);
+                        for (int i = 0; i < fileList.size(); i++) {
+                            final File file = fileList.get(i);
+                            zipOutputStream.putNextEntry(createEntry(files.fileReferences.get(i).name, file));
+                            final InputStream fileInputStream = new FileInputStream(file);
+                            try {
+                                NetUtils.copyStream(fileInputStream, zipOutputStream);
+                            } finally {
+                                fileInputStream.close();
                             }
-
-                            // Process file
-                            @Override
-                            public void endElement(String namespaceURI, String localName, String qName) throws SAXException {
-                                try {
-                                    if ("file".equals(localName)) {
-                                        zipOutputStream.putNextEntry(new ZipEntry(name));
-                                        final LocationData locationData = getLocationData();
-                                        final String realPath;
-
-                                        final URL fullURL = (locationData != null && locationData.getSystemID() != null)
-                                            ? URLFactory.createURL(locationData.getSystemID(), uri.toString())
-                                            : URLFactory.createURL(uri.toString());
-
-                                        if (fullURL.getProtocol().equals("oxf")) {
-                                            // Get real path to resource path if possible
-                                            realPath = ResourceManagerWrapper.instance().getRealPath(fullURL.getFile());
-                                            if (realPath == null)
-                                                throw new OXFException("Zip processor is unable to obtain the real path of the file using the oxf: protocol for the base-directory property: " + uri.toString());
-                                        } else if (fullURL.getProtocol().equals("file")) {
-                                            String host = fullURL.getHost();
-                                            realPath = host + (host.length() > 0 ? ":" : "") + fullURL.getFile();
-                                        } else {
-                                            throw new OXFException("Zip processor only supports the file: and oxf: protocols for the base-directory property: " + uri.toString());
-                                        }
-
-                                        InputStream fileInputStream = new FileInputStream(new File(realPath));
-                                        try {
-                                            NetUtils.copyStream(fileInputStream, zipOutputStream);
-                                        } finally {
-                                            fileInputStream.close();
-                                        }
-                                    }
-                                } catch (IOException e) {
-                                    throw new OXFException(e);
-                                }
-                            }
-                        });
+                        }
                     } finally {
+                        // This also ends the binary document
                         zipOutputStream.close();
                     }
-
-                    // Generate an Orbeon binary document with the content of the zip file
-                    FileInputStream zipInputStream = new FileInputStream(temporaryZipFile);
-                    try {
-                        ProcessorUtils.readBinary(zipInputStream, xmlReceiver, "multipart/x-gzip", null, statusCode, fileName);
-                    } finally {
-                        zipInputStream.close();
-                    }
-                } catch (FileNotFoundException e) {
-                    throw new OXFException(e);
                 } catch (IOException e) {
                     throw new OXFException(e);
                 }
             }
 
-            // We could assume that we cache if the input document hasn't changed. But this would be unsafe as some of
-            // the files referenced from the input document could have changed. So to be on the safe side, and also
-            // because the cases where caching could happen are rather rare, we just don't cache.
+            @Override
+            public OutputCacheKey getKeyImpl(PipelineContext context) {
+                return isCacheable(context) ? super.getKeyImpl(context) : null;
+            }
+
+            @Override
+            protected Object getValidityImpl(PipelineContext context) {
+                return isCacheable(context) ? super.getValidityImpl(context) : null;
+            }
         };
         addOutput(name, output);
         return output;
     }
+
+    // The list of files is cached with the input, and its URIs are used for the key and validity of the output
+    private static class Files extends URIProcessorOutputImpl.URIReferences {
+        public String fileName;
+        public int statusCode = -1;
+        public boolean cacheable;
+        public final List<FileReference> fileReferences = new ArrayList<FileReference>();
+    }
+
+    private static class FileReference {
+        public final String name;
+        public final URL url;
+
+        private FileReference(String name, URL url) {
+            this.name = name;
+            this.url = url;
+        }
+    }
+
+    private Files readFiles(PipelineContext context, final LocationData locationData) {
+        return readCacheInputAsObject(context, getInputByName(INPUT_DATA), new CacheableInputReader<Files>() {
+            public Files read(PipelineContext context, ProcessorInput input) {
+                final Files files = new Files();
+                readInputAsSAX(context, input, new XMLReceiverAdapter() {
+
+                    String name;
+                    StringBuilder uri;
+
+                    // Get the file name, store it
+                    @Override
+                    public void startElement(String namespaceURI, String localName, String qName, Attributes atts) throws SAXException {
+                        if ("file".equals(localName)) {
+                            name = atts.getValue("name");
+                            uri = new StringBuilder();
+                        } else if ("files".equals(localName)) {
+                            files.fileName = atts.getValue("filename");
+                            files.cacheable = "true".equals(atts.getValue("cacheable"));
+                            String value = atts.getValue("status-code");
+                            if (value != null ) {
+                                files.statusCode = Integer.parseInt(value);
+                            }
+                        }
+                    }
+
+                    // Get the URI to the file, store it
+                    @Override
+                    public void characters(char ch[], int start, int length) throws SAXException {
+                        if (uri != null)
+                            uri.append(ch, start, length);
+                    }
+
+                    // Store the file reference
+                    @Override
+                    public void endElement(String namespaceURI, String localName, String qName) throws SAXException {
+                        if ("file".equals(localName)) {
+                            final String systemId = locationData != null ? locationData.getSystemID() : null;
+
+                            final URL fullURL = systemId != null
+                                ? URLFactory.createURL(systemId, uri.toString())
+                                : URLFactory.createURL(uri.toString());
+
+                            files.fileReferences.add(new FileReference(name, fullURL));
+                            files.addReference(systemId, uri.toString(), null, null);
+                            uri = null;
+                        }
+                    }
+                });
+                return files;
+            }
+        });
+    }
+
+    // Whether the list of files, as cached with the input, allows caching the output
+    private boolean isCacheable(PipelineContext context) {
+        final KeyValidity keyValidity = getInputKeyValidity(context, INPUT_DATA);
+        if (keyValidity == null)
+            return false;
+        final Files files = (Files) ObjectCache.instance().findValid(keyValidity.key, keyValidity.validity);
+        return files != null && files.cacheable;
+    }
+
+    private static File getFile(FileReference fileReference) {
+        final URL fullURL = fileReference.url;
+        final String realPath;
+        if (fullURL.getProtocol().equals("oxf")) {
+            // Get real path to resource path if possible
+            realPath = ResourceManagerWrapper.instance().getRealPath(fullURL.getFile());
+            if (realPath == null)
+                throw new OXFException("Zip processor is unable to obtain the real path of the file using the oxf: protocol for the base-directory property: " + fullURL);
+        } else if (fullURL.getProtocol().equals("file")) {
+            String host = fullURL.getHost();
+            realPath = host + (host.length() > 0 ? ":" : "") + fullURL.getFile();
+        } else {
+            throw new OXFException("Zip processor only supports the file: and oxf: protocols for the base-directory property: " + fullURL);
+        }
+        return new File(realPath);
+    }
+
+    private static ZipEntry createEntry(String name, File file) throws IOException {
+        final ZipEntry entry = new ZipEntry(name);
+        entry.setTime(file.lastModified());
+
+        if (isCompressed(name)) {
+            // Stored entries require the size and CRC before the content is written
+            final CRC32 crc = new CRC32();
+            final byte[] buffer = new byte[8192];
+            final InputStream is = new FileInputStream(file);
+            try {
+                for (int count = is.read(buffer); count != -1; count = is.read(buffer))
+                    crc.update(buffer, 0, count);
+            } finally {
+                is.close();
+            }
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(file.length());
+            entry.setCompressedSize(file.length());
+            entry.setCrc(crc.getValue());
+        }
+
+        return entry;
+    }
+
+    private static boolean isCompressed(String name) {
+        final int dotIndex = name.lastIndexOf('.');
+        return dotIndex != -1 && COMPRESSED_EXTENSIONS.contains(name.substring(dotIndex + 1).toLowerCase());
+    }
 }
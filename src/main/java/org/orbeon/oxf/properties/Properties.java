@@ -25,6 +25,7 @@ import org.orbeon.oxf.util.LoggerFactory;
 import org.orbeon.oxf.util.PipelineUtils;
 
 import java.util.Set;
+import java.util.concurrent.*;
 
 /**
  * This class provides access to global, configurable properties, as well as to processor-specific properties. This is
@@ -50,20 +51,30 @@ public class Properties {
     /**
      * The global Properties instance.
      */
-    private static Properties instance;
+    private static volatile Properties instance;
     private static String propertiesURI = DEFAULT_PROPERTIES_URI;
-    private static boolean initializing = false;
+
+    // Single background thread checking whether properties must be reloaded
+    private static final ScheduledExecutorService reloadExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "Orbeon properties reloader");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     /**
-     * The property store.
+     * The property store. It is immutable once built, and replaced as a whole when properties are reloaded.
      */
-    private PropertyStore propertyStore = null;
+    private volatile PropertyStore propertyStore = null;
 
-    // Used for refresh
+    // Used for refresh, only by the thread loading properties
     private Processor urlGenerator;
     private DOMSerializer domSerializer;
     private long lastUpdate = Long.MIN_VALUE;
 
+    private ScheduledFuture<?> reloadTask;
+
     private Properties() {
         // Don't allow creation from outside
     }
@@ -79,103 +90,138 @@ public class Properties {
     /**
      * Invalidate all properties (for testing).
      */
-    public static void invalidate() {
+    public static synchronized void invalidate() {
+        if (instance != null && instance.reloadTask != null)
+            instance.reloadTask.cancel(false);
         instance = null;
     }
 
+    /**
+     * Stop reloading properties. Called when the web app is destroyed, so that the reload thread doesn't keep the web
+     * app's class loader alive. Properties remain available but are no longer reloaded.
+     */
+    public static synchronized void shutdown() {
+        if (instance != null && instance.reloadTask != null)
+            instance.reloadTask.cancel(false);
+        reloadExecutor.shutdownNow();
+    }
+
     /**
      * Return the global Properties.
      *
      * @return Properties
      */
     public static Properties instance() {
-        if (instance == null) {
-            instance = new Properties();
-            instance.update();
+        final Properties currentInstance = instance;
+        if (currentInstance != null)
+            return currentInstance;
+
+        synchronized (Properties.class) {
+            if (instance == null) {
+                final Properties newInstance = new Properties();
+
+                // Publish before loading, as processors used to load properties can ask for properties
+                instance = newInstance;
+
+                // Initial load happens on the calling thread, subsequent checks in the background
+                newInstance.update();
+                if (!reloadExecutor.isShutdown()) {
+                    newInstance.reloadTask = reloadExecutor.scheduleWithFixedDelay(new Runnable() {
+                        public void run() {
+                            try {
+                                newInstance.update();
+                            } catch (Throwable t) {
+                                // Keep the current properties and try again next time
+                                logger.error("Failure to reload Orbeon Forms properties", t);
+                            }
+                        }
+                    }, RELOAD_DELAY, RELOAD_DELAY, TimeUnit.MILLISECONDS);
+                }
+            }
+            return instance;
         }
-        return instance;
     }
 
     /**
      * Make sure we have the latest properties, and if we don't (resource changed), reload them.
+     *
+     * This is not called by request threads, except for the initial load. The new property store is built completely
+     * before being published.
      */
-    private void update() {
-        if (!initializing) {
-            done:
-            try {
-                initializing = true;
-                final long current = System.currentTimeMillis();
-
-                if (lastUpdate + RELOAD_DELAY >= current) break done;
-
-                // Create mini-pipeline to read properties if needed
-                if (urlGenerator == null) {
-                    urlGenerator = PipelineUtils.createURLGenerator(propertiesURI, true);// enable XInclude too
-                    domSerializer = new DOMSerializer();
-                    PipelineUtils.connect(urlGenerator, ProcessorImpl.OUTPUT_DATA, domSerializer, ProcessorImpl.INPUT_DATA);
-                }
+    private synchronized void update() {
+        final long current = System.currentTimeMillis();
+
+        // Create mini-pipeline to read properties if needed
+        if (urlGenerator == null) {
+            urlGenerator = PipelineUtils.createURLGenerator(propertiesURI, true);// enable XInclude too
+            domSerializer = new DOMSerializer();
+            PipelineUtils.connect(urlGenerator, ProcessorImpl.OUTPUT_DATA, domSerializer, ProcessorImpl.INPUT_DATA);
+        }
 
-                // Initialize pipeline
-                // Candidate for Scala withPipelineContext
-                final PipelineContext pipelineContext = new PipelineContext();
-                boolean success = false;
-                try {
-                    urlGenerator.reset(pipelineContext);
-                    domSerializer.reset(pipelineContext);
-
-                    // Find whether we can skip reloading
-                    if (propertyStore != null && domSerializer.findInputLastModified(pipelineContext) <= lastUpdate) {
-                        if (logger.isDebugEnabled()) {
-                            logger.debug("Not reloading properties because they have not changed.");
-                        }
-                        lastUpdate = current;
-                        success = true;
-                        break done;
-                    }
+        // Initialize pipeline
+        // Candidate for Scala withPipelineContext
+        final PipelineContext pipelineContext = new PipelineContext();
+        boolean success = false;
+        try {
+            urlGenerator.reset(pipelineContext);
+            domSerializer.reset(pipelineContext);
+
+            // Find whether we can skip reloading
+            if (propertyStore != null && domSerializer.findInputLastModified(pipelineContext) <= lastUpdate) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Not reloading properties because they have not changed.");
+                }
+                lastUpdate = current;
+                success = true;
+                return;
+            }
 
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("Reloading properties because timestamp indicates they may have changed.");
-                    }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Reloading properties because timestamp indicates they may have changed.");
+                if (propertyStore != null) {
+                    final PropertySet globalPropertySet = propertyStore.getGlobalPropertySet();
+                    logger.debug("Global wildcard property lookups: " + globalPropertySet.getWildcardLookupCount()
+                            + ", memoized: " + globalPropertySet.getWildcardMemoizedCount());
+                }
+            }
 
-                    // Read updated properties document
-                    final Document document = domSerializer.runGetDocument(pipelineContext);
+            // Read updated properties document
+            final Document document = domSerializer.runGetDocument(pipelineContext);
 
-                    if (document == null || document.content() == null || document.content().size() == 0) {
-                        throw new OXFException("Failure to initialize Orbeon Forms properties");
-                    }
+            if (document == null || document.content() == null || document.content().size() == 0) {
+                throw new OXFException("Failure to initialize Orbeon Forms properties");
+            }
 
-                    propertyStore = new PropertyStore(document);
+            // Publish the new store at once
+            propertyStore = new PropertyStore(document);
 
-                    lastUpdate = current;
+            lastUpdate = current;
 
-                    success = true;
-                } finally {
-                    pipelineContext.destroy(success);
-                }
-            } finally {
-                initializing = false;
-            }
+            success = true;
+        } finally {
+            pipelineContext.destroy(success);
         }
     }
 
     public PropertySet getPropertySet() {
-        if (propertyStore == null)
+        final PropertyStore currentPropertyStore = propertyStore;
+        if (currentPropertyStore == null)
             return null;
-        update();
-        return propertyStore.getGlobalPropertySet();
+        return currentPropertyStore.getGlobalPropertySet();
     }
 
     public PropertySet getPropertySet(final QName processorName) {
-        if (propertyStore == null)
+        final PropertyStore currentPropertyStore = propertyStore;
+        if (currentPropertyStore == null)
             return null;
-        update();
-        return propertyStore.getProcessorPropertySet(processorName);
+        return currentPropertyStore.getProcessorPropertySet(processorName);
     }
 
     public Set keySet() {
-        if (propertyStore == null)
+        final PropertyStore currentPropertyStore = propertyStore;
+        if (currentPropertyStore == null)
             return null;
 
-        return propertyStore.getGlobalPropertySet().keySet();
+        return currentPropertyStore.getGlobalPropertySet().keySet();
     }
 }
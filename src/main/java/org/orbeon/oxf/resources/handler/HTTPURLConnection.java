@@ -30,13 +30,17 @@ import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.conn.ssl.X509HostnameVerifier;
 import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.routing.HttpRoutePlanner;
+import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParamBean;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
@@ -49,6 +53,7 @@ import org.orbeon.oxf.util.StringConversions;
 import org.orbeon.oxf.util.LoggerFactory;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -179,6 +184,9 @@ public class HTTPURLConnection extends URLConnection {
     private HttpUriRequest method;
     private HttpResponse httpResponse = null;
     private byte[] requestBody;
+    private File requestBodyFile;
+    private InputStream requestBodyStream;
+    private long requestBodyStreamLength;
     private Map<String, String[]> requestProperties = new LinkedHashMap<String, String[]>();    // LinkedHashMap<String lowercaseHeaderName, String[] headerValues>
     private HashMap<String, List<String>> responseHeaders;
 
@@ -286,19 +294,35 @@ public class HTTPURLConnection extends URLConnection {
                 }
             }
 
+            // Override the default timeouts for this request only, if set with setConnectTimeout() and setReadTimeout()
+            if (getConnectTimeout() > 0)
+                HttpConnectionParams.setConnectionTimeout(method.getParams(), getConnectTimeout());
+            if (getReadTimeout() > 0)
+                HttpConnectionParams.setSoTimeout(method.getParams(), getReadTimeout());
+
             // Create request entity with body
             if (method instanceof HttpEntityEnclosingRequest) {
 
-                // Use the body that was set directly, or the result of writing to the OutputStream
-                final byte[] body = (requestBody != null) ? requestBody : (os != null) ? os.toByteArray() : null;
+                // Use the body that was set directly as a file or stream, which is streamed without being buffered,
+                // or the body that was set directly as bytes, or the result of writing to the OutputStream
+                final AbstractHttpEntity entity;
+                if (requestBodyFile != null) {
+                    entity = new FileEntity(requestBodyFile);
+                } else if (requestBodyStream != null) {
+                    // Chunked transfer if the length is unknown
+                    entity = new InputStreamEntity(requestBodyStream, requestBodyStreamLength);
+                    entity.setChunked(requestBodyStreamLength < 0);
+                } else {
+                    final byte[] body = (requestBody != null) ? requestBody : (os != null) ? os.toByteArray() : null;
+                    entity = (body != null) ? new ByteArrayEntity(body) : null;
+                }
 
-                if (body != null) {
+                if (entity != null) {
                     final Header contentTypeHeader = method.getFirstHeader("Content-Type"); // Header names are case-insensitive for comparison
                     if (contentTypeHeader == null)
                         throw new ProtocolException("Can't set request entity: Content-Type header is missing");
-                    final ByteArrayEntity byteArrayEntity = new ByteArrayEntity(body);
-                    byteArrayEntity.setContentType(contentTypeHeader);
-                    ((HttpEntityEnclosingRequest) method).setEntity(byteArrayEntity);
+                    entity.setContentType(contentTypeHeader);
+                    ((HttpEntityEnclosingRequest) method).setEntity(entity);
                 }
             }
 
@@ -326,6 +350,17 @@ public class HTTPURLConnection extends URLConnection {
         this.requestBody = requestBody;
     }
 
+    // Stream the request body from the given file
+    public void setRequestBodyFile(File requestBodyFile) {
+        this.requestBodyFile = requestBodyFile;
+    }
+
+    // Stream the request body from the given stream, with the given length, or -1 if unknown
+    public void setRequestBodyStream(InputStream requestBodyStream, long length) {
+        this.requestBodyStream = requestBodyStream;
+        this.requestBodyStreamLength = length;
+    }
+
     private ByteArrayOutputStream os = null;
 
     @Override
@@ -41,6 +41,7 @@ public class ContentHandlerOutputStream extends OutputStream {
 
     private String contentType;
     private String statusCode;
+    private String fileName;
 
     private boolean documentStarted;
     private boolean closed;
@@ -58,6 +59,10 @@ public class ContentHandlerOutputStream extends OutputStream {
         this.statusCode = statusCode;
     }
 
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
     private void outputStartIfNeeded() throws SAXException {
         if (doStartEndDocument && ! documentStarted) {
             // Start document
@@ -65,6 +70,8 @@ public class ContentHandlerOutputStream extends OutputStream {
             attributes.addAttribute(XMLConstants.XSI_URI, "type", "xsi:type", "CDATA", XMLConstants.XS_BASE64BINARY_QNAME.getQualifiedName());
             if (contentType != null)
                 attributes.addAttribute("", "content-type", "content-type", "CDATA", contentType);
+            if (fileName != null)
+                attributes.addAttribute("", "filename", "filename", "CDATA", fileName);
             if (statusCode != null)
                 attributes.addAttribute("", "status-code", "status-code", "CDATA", statusCode);
 
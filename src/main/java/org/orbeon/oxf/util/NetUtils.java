@@ -902,13 +902,16 @@ public class NetUtils {
 
         try {
             // Assume the file will be deleted with the request so rename it first
+            final File oldFile = new File(new URI(existingFileURI));
             final String newPath;
             {
-                final File newFile = File.createTempFile("xforms_upload_", null);
+                // Files from streaming uploads stay in the streaming upload directory, so that renaming them never has
+                // to cross file systems. Other files go to the default temporary directory.
+                final File directory = Multipart.isStreamingUploadFile(oldFile) ? oldFile.getParentFile() : null;
+                final File newFile = File.createTempFile("xforms_upload_", null, directory);
                 newPath = newFile.getCanonicalPath();
                 newFile.delete();
             }
-            final File oldFile = new File(new URI(existingFileURI));
             final File newFile = new File(newPath);
             final boolean success = oldFile.renameTo(newFile);
             try {
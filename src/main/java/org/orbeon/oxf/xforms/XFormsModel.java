@@ -707,6 +707,14 @@ public class XFormsModel extends XFormsModelBase implements XFormsEventObserver,
         containingDocument().getXPathDependencies().markStructuralChange(this, instance);
     }
 
+    public void markStructuralChange(XFormsInstance instance, List<NodeInfo> parents) {
+        // Set the flags
+        deferredActionContext().markStructuralChange();
+
+        // Notify dependencies of the change, which is limited to the content of the parents
+        containingDocument().getXPathDependencies().markStructuralChange(this, instance, parents);
+    }
+
     public void startOutermostActionHandler() {
         // NOP now that deferredActionContext is always created
     }
@@ -126,13 +126,17 @@ public class XFormsModelBinds extends XFormsModelBindsBase {
                 }
 
                 // Handle calculations
-                if (staticModel.hasCalculateBind())
-                    iterateBinds(new BindRunner() {
-                        public void applyBind(BindNode bindNode) {
-                            if (bindNode.staticBind().getCalculate() != null && dependencies.requireModelMIPUpdate(staticModel, bindNode.staticBind(), Model.CALCULATE(), null))
-                                handleCalculateBind(bindNode);
-                        }
-                    });
+                if (staticModel.hasCalculateBind()) {
+                    if (staticModel.calculateBindsOrder().isDefined())
+                        applyCalculateBindsInOrder(staticModel.calculateBindsOrder().get());
+                    else
+                        iterateBinds(new BindRunner() {
+                            public void applyBind(BindNode bindNode) {
+                                if (bindNode.staticBind().getCalculate() != null && dependencies.requireModelMIPUpdate(staticModel, bindNode.staticBind(), Model.CALCULATE(), null))
+                                    handleCalculateBind(bindNode);
+                            }
+                        });
+                }
 
                 // 2. Update computed expression binds if requested
                 applyComputedExpressionBinds();
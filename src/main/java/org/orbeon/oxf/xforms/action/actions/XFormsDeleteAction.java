@@ -30,7 +30,9 @@ import org.orbeon.saxon.om.NodeInfo;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * 9.3.6 The delete Element
@@ -169,7 +171,12 @@ public class XFormsDeleteAction extends XFormsAction {
                 
                 // "XForms Actions that change the tree structure of instance data result in setting all four flags to true"
                 modifiedInstance.markModified();
-                modifiedInstance.model().markStructuralChange(modifiedInstance);
+
+                // Tell dependencies which parents lost children
+                final Set<NodeInfo> parents = new LinkedHashSet<NodeInfo>();
+                for (final DeleteInfo deleteInfo : deleteInfos)
+                    parents.add(deleteInfo.parent);
+                modifiedInstance.model().markStructuralChange(modifiedInstance, new ArrayList<NodeInfo>(parents));
 
                 // "4. If the delete is successful, the event xforms-delete is dispatched."
                 if (doDispatch)
@@ -31,7 +31,9 @@ import org.orbeon.saxon.value.AtomicValue;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * 9.3.5 The insert Element
@@ -414,13 +416,6 @@ public class XFormsInsertAction extends XFormsAction {
                 indentedLogger.logDebug("xf:insert", "no node inserted");
         }
 
-        // "XForms Actions that change the tree structure of instance data result in setting all four flags to true"
-        if (didInsertNodes && modifiedInstance != null) {
-            // NOTE: Can be null if document into which delete is performed is not in an instance, e.g. in a variable
-            modifiedInstance.markModified();
-            modifiedInstance.model().markStructuralChange(modifiedInstance);
-        }
-
         // Gather list of modified nodes
         final List<NodeInfo> insertedNodeInfos;
         if (didInsertNodes && modifiedInstance != null) {
@@ -433,6 +428,18 @@ public class XFormsInsertAction extends XFormsAction {
             insertedNodeInfos = Collections.emptyList();
         }
 
+        // "XForms Actions that change the tree structure of instance data result in setting all four flags to true"
+        if (didInsertNodes && modifiedInstance != null) {
+            // NOTE: Can be null if document into which delete is performed is not in an instance, e.g. in a variable
+            modifiedInstance.markModified();
+
+            // Tell dependencies which parents have new children
+            final Set<NodeInfo> parents = new LinkedHashSet<NodeInfo>();
+            for (final NodeInfo insertedNodeInfo : insertedNodeInfos)
+                parents.add(insertedNodeInfo.getParent());
+            modifiedInstance.model().markStructuralChange(modifiedInstance, new ArrayList<NodeInfo>(parents));
+        }
+
         // "4. If the insert is successful, the event xforms-insert is dispatched."
         // XFormsInstance handles index and repeat items updates 
         if (doDispatch && didInsertNodes && modifiedInstance != null) {
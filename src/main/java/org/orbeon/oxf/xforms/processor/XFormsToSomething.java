@@ -31,6 +31,7 @@ import org.orbeon.oxf.xforms.analysis.model.Model;
 import org.orbeon.oxf.xforms.state.AnnotatedTemplate;
 import org.orbeon.oxf.xforms.state.XFormsStateManager;
 import org.orbeon.oxf.xforms.state.XFormsStaticStateCache;
+import org.orbeon.oxf.xforms.state.XFormsStaticStateDiskCache;
 import org.orbeon.oxf.xml.*;
 import org.orbeon.oxf.xml.dom4j.LocationDocumentResult;
 import org.xml.sax.SAXException;
@@ -39,6 +40,7 @@ import scala.Option;
 import javax.xml.transform.stream.StreamResult;
 import java.io.IOException;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
 /**
  * This processor handles XForms initialization and produces an XHTML document which is a
@@ -208,32 +210,15 @@ abstract public class XFormsToSomething extends ProcessorImpl {
                 // In this case, we found the static state digest and more in the cache, but we must now create a new XFormsContainingDocument from this information
                 cacheTracer.digestAndTemplateStatus(scala.Option.apply(stage2CacheableState.staticStateDigest));
 
-                final XFormsStaticState staticState;
-                {
-                    final XFormsStaticState cachedState = XFormsStaticStateCache.getDocumentJava(stage2CacheableState.staticStateDigest);
-                    if (cachedState != null && cachedState.topLevelPart().metadata().bindingsIncludesAreUpToDate()) {
-                        // Found static state in cache
-                        cacheTracer.staticStateStatus(true, cachedState.digest());
-
-                        staticState = cachedState;
-                    } else {
-                        // Not found static state in cache OR it is out of date, create static state from input
-                        // NOTE: In out of date case, could clone static state and reprocess instead?
-                        if (cachedState != null)
-                            cachingLogger.logDebug("",
-                                "out-of-date static state by digest in cache due to: "
-                                    + cachedState.topLevelPart().metadata().debugOutOfDateBindingsIncludesJava());
-
-                        final StaticStateBits staticStateBits = new StaticStateBits(pipelineContext, cachingLogger, stage2CacheableState.staticStateDigest);
-                        staticState = XFormsStaticStateImpl.createFromStaticStateBits(staticStateBits.staticStateDocument, stage2CacheableState.staticStateDigest,
-                                staticStateBits.metadata, staticStateBits.template);
-
-                        cacheTracer.staticStateStatus(false, staticState.digest());
-
-                        // Store in cache
-                        XFormsStaticStateCache.storeDocument(staticState);
-                    }
-                }
+                // Static state creation reads the input again, as only the digest and template are in cache
+                final XFormsStaticState staticState = XFormsStaticStateCache.getOrCreateDocument(
+                    stage2CacheableState.staticStateDigest,
+                    cacheTracer,
+                    cachingLogger,
+                    Option.apply(XFormsStaticStateDiskCache.instanceOrNull()),
+                    true,
+                    createStaticStateFromInput(pipelineContext, cachingLogger, stage2CacheableState.staticStateDigest)
+                );
 
                 final XFormsURIResolver uriResolver =
                     new XFormsURIResolver(XFormsToSomething.this, processorOutput, pipelineContext, INPUT_ANNOTATED_DOCUMENT, XMLUtils.ParserConfiguration.PLAIN);
@@ -278,35 +263,66 @@ abstract public class XFormsToSomething extends ProcessorImpl {
             XFormsStaticStateCache.CacheTracer cacheTracer,
             XFormsStaticState[] staticState) {
 
-        final StaticStateBits staticStateBits = new StaticStateBits(pipelineContext, logger, null);
-
-        {
-            final XFormsStaticState cachedState = XFormsStaticStateCache.getDocumentJava(staticStateBits.staticStateDigest);
-            if (cachedState != null && cachedState.topLevelPart().metadata().bindingsIncludesAreUpToDate()) {
-                // Found static state in cache
-                cacheTracer.staticStateStatus(true, cachedState.digest());
-
-                staticState[0] = cachedState;
-            } else {
-                // Not found static state in cache OR it is out of date, create and initialize static state object
-                // NOTE: In out of date case, could clone static state and reprocess instead?
-                if (cachedState != null)
-                    logger.logDebug("",
-                        "out-of-date static state by digest in cache due to: "
-                            + cachedState.topLevelPart().metadata().debugOutOfDateBindingsIncludesJava());
-
-                staticState[0] = XFormsStaticStateImpl.createFromStaticStateBits(staticStateBits.staticStateDocument, staticStateBits.staticStateDigest,
-                        staticStateBits.metadata, staticStateBits.template);
+        final XFormsStaticStateDiskCache diskCacheOrNull = XFormsStaticStateDiskCache.instanceOrNull();
+
+        // Key and validity of the document, without the dependencies gathered when reading it, which are not known yet
+        final ProcessorInput annotatedDocumentInput = getInputByName(INPUT_ANNOTATED_DOCUMENT);
+        final KeyValidity keyValidity =
+            diskCacheOrNull != null && annotatedDocumentInput instanceof DependenciesProcessorInput
+                ? getInputKeyValidity(pipelineContext, ((DependenciesProcessorInput) annotatedDocumentInput).getDocumentInput())
+                : null;
+
+        // After a restart, the digest and template of an unchanged document are on disk, and the document doesn't have
+        // to be read
+        final XFormsStaticStateDiskCache.Source sourceOrNull =
+            keyValidity != null ? diskCacheOrNull.findSourceOrNull(keyValidity.key, keyValidity.validity, logger) : null;
+
+        if (sourceOrNull != null) {
+            staticState[0] = XFormsStaticStateCache.getOrCreateDocument(
+                sourceOrNull.digest(),
+                cacheTracer,
+                logger,
+                Option.apply(diskCacheOrNull),
+                true,
+                createStaticStateFromInput(pipelineContext, logger, sourceOrNull.digest())
+            );
+
+            return new Stage2CacheableState(sourceOrNull.digest(), sourceOrNull.template());
+        } else {
+            final StaticStateBits staticStateBits = new StaticStateBits(pipelineContext, logger, null);
+
+            staticState[0] = XFormsStaticStateCache.getOrCreateDocument(
+                staticStateBits.staticStateDigest,
+                cacheTracer,
+                logger,
+                Option.apply(diskCacheOrNull),
+                false,
+                new Callable<XFormsStaticState>() {
+                    public XFormsStaticState call() {
+                        return XFormsStaticStateImpl.createFromStaticStateBits(staticStateBits.staticStateDocument, staticStateBits.staticStateDigest,
+                                staticStateBits.metadata, staticStateBits.template);
+                    }
+                }
+            );
 
-                cacheTracer.staticStateStatus(false, staticState[0].digest());
+            if (keyValidity != null)
+                diskCacheOrNull.storeSource(keyValidity.key, keyValidity.validity,
+                    new XFormsStaticStateDiskCache.Source(staticStateBits.staticStateDigest, staticStateBits.template));
 
-                // Store in cache
-                XFormsStaticStateCache.storeDocument(staticState[0]);
-            }
+            // Update input dependencies object
+            return new Stage2CacheableState(staticStateBits.staticStateDigest, staticStateBits.template);
         }
+    }
 
-        // Update input dependencies object
-        return new Stage2CacheableState(staticStateBits.staticStateDigest, staticStateBits.template);
+    // Create the static state with the given digest by reading the input again
+    private Callable<XFormsStaticState> createStaticStateFromInput(final PipelineContext pipelineContext, final IndentedLogger logger, final String digest) {
+        return new Callable<XFormsStaticState>() {
+            public XFormsStaticState call() {
+                final StaticStateBits staticStateBits = new StaticStateBits(pipelineContext, logger, digest);
+                return XFormsStaticStateImpl.createFromStaticStateBits(staticStateBits.staticStateDocument, digest,
+                        staticStateBits.metadata, staticStateBits.template);
+            }
+        };
     }
 
     private class StaticStateBits {
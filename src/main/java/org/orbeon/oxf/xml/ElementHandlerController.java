@@ -21,7 +21,10 @@ import org.xml.sax.Locator;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.AttributesImpl;
 
+import java.lang.reflect.Constructor;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * This is the controller for the handlers system.
@@ -40,8 +43,9 @@ public class ElementHandlerController implements ElementHandlerContext, XMLRecei
     private Object elementHandlerContext;
     private DeferredXMLReceiver output;
 
-    private final Map<String, List<HandlerMatcher>> handlerMatchers = new HashMap<String, List<HandlerMatcher>>();
-    private final Map<String, String> uriHandlers = new HashMap<String, String>();
+    // Handlers by URI, then local name, so that matching an element doesn't require building its exploded QName
+    private final Map<String, Map<String, List<HandlerMatcher>>> handlerMatchers = new HashMap<String, Map<String, List<HandlerMatcher>>>();
+    private final Map<String, HandlerFactory> uriHandlers = new HashMap<String, HandlerFactory>();
 
     private final Stack<HandlerInfo> handlerInfos = new Stack<HandlerInfo>();
     private HandlerInfo currentHandlerInfo;
@@ -53,8 +57,8 @@ public class ElementHandlerController implements ElementHandlerContext, XMLRecei
 
     private int level = 0;
 
-    // Class.forName is expensive, so we cache mappings
-    private static Map<String, Class<ElementHandler>> classNameToHandlerClass = new HashMap<String, Class<ElementHandler>>();
+    // Class.forName and constructor lookups are expensive, so we cache factories, which are shared by all controllers
+    private static final ConcurrentMap<String, HandlerFactory> classNameToHandlerFactory = new ConcurrentHashMap<String, HandlerFactory>();
 
     /**
      * Register a handler that matches on a URI only.
@@ -87,18 +91,24 @@ public class ElementHandlerController implements ElementHandlerContext, XMLRecei
      * @param matcher               matcher on attributes, or null
      */
     public void registerHandler(String handlerClassName, String uri, String localname, Matcher matcher) {
+        // Resolve the handler class upon registration rather than upon matching
+        final HandlerFactory handlerFactory = getHandlerFactory(handlerClassName);
         if (localname != null) {
             // Match on URI + localname and optionally custom matcher
-            final String key = XMLUtils.buildExplodedQName(uri, localname);
-            List<HandlerMatcher> handlerMatchers = this.handlerMatchers.get(key);
+            Map<String, List<HandlerMatcher>> localnameMatchers = this.handlerMatchers.get(uri);
+            if (localnameMatchers == null) {
+                localnameMatchers = new HashMap<String, List<HandlerMatcher>>();
+                this.handlerMatchers.put(uri, localnameMatchers);
+            }
+            List<HandlerMatcher> handlerMatchers = localnameMatchers.get(localname);
             if (handlerMatchers == null) {
                 handlerMatchers = new ArrayList<HandlerMatcher>();
-                this.handlerMatchers.put(key, handlerMatchers);
+                localnameMatchers.put(localname, handlerMatchers);
             }
-            handlerMatchers.add(new HandlerMatcher(handlerClassName, matcher != null ? matcher : ALL_MATCHER));
+            handlerMatchers.add(new HandlerMatcher(handlerFactory, matcher != null ? matcher : ALL_MATCHER));
         } else {
             // Match on URI only
-            uriHandlers.put(uri, handlerClassName);
+            uriHandlers.put(uri, handlerFactory);
         }
     }
 
@@ -149,9 +159,7 @@ public class ElementHandlerController implements ElementHandlerContext, XMLRecei
                 // Just ignore content
             } else {
                 // Look for a new handler
-                final String explodedQName = XMLUtils.buildExplodedQName(uri, localname);
-
-                final HandlerInfo handlerInfo = getHandler(uri, explodedQName, attributes);
+                final HandlerInfo handlerInfo = getHandler(uri, localname, attributes);
 
                 if (handlerInfo != null) {
                     // New handler found
@@ -513,54 +521,69 @@ public class ElementHandlerController implements ElementHandlerContext, XMLRecei
      * @return          handler if found
      */
     public ElementHandler getHandler(Element element) {
-        final HandlerInfo handlerInfo = 
-        getHandler(element.getNamespaceURI(),
-                XMLUtils.buildExplodedQName(element.getNamespaceURI(), element.getName()),
-                XMLUtils.getSAXAttributes(element));
-        
+        final HandlerInfo handlerInfo = getHandler(element.getNamespaceURI(), element.getName(), XMLUtils.getSAXAttributes(element));
         return (handlerInfo != null) ? handlerInfo.elementHandler : null;
     }
 
-    private HandlerInfo getHandler(String uri, String explodedQName, Attributes attributes) {
+    private HandlerInfo getHandler(String uri, String localname, Attributes attributes) {
         // 1: Try full matchers
-        final List<HandlerMatcher> handlerMatchers = this.handlerMatchers.get(explodedQName);
+        final Map<String, List<HandlerMatcher>> localnameMatchers = this.handlerMatchers.get(uri);
+        final List<HandlerMatcher> handlerMatchers = (localnameMatchers != null) ? localnameMatchers.get(localname) : null;
         if (handlerMatchers != null) {
             // Try matchers in order
             for (HandlerMatcher handlerMatcher: handlerMatchers) {
                 // Run matcher
                 final Object matched = handlerMatcher.matcher.match(attributes, elementHandlerContext);
                 if (matched != null) {
-                    final ElementHandler elementHandler = getHandlerByClassName(handlerMatcher.handlerClassName);
-                    return new HandlerInfo(level, explodedQName, elementHandler, attributes, matched, this.locator);
+                    final ElementHandler elementHandler = newHandler(handlerMatcher.handlerFactory);
+                    return new HandlerInfo(level, XMLUtils.buildExplodedQName(uri, localname), elementHandler, attributes, matched, this.locator);
                 }
             }
         }
 
         // 2: Try URI-based handler
-        final String uriHandlerClassName = uriHandlers.get(uri);
-        if (uriHandlerClassName != null) {
-            final ElementHandler elementHandler = getHandlerByClassName(uriHandlerClassName);
-            return new HandlerInfo(level, explodedQName, elementHandler, attributes, null, this.locator);
+        final HandlerFactory uriHandlerFactory = uriHandlers.get(uri);
+        if (uriHandlerFactory != null) {
+            final ElementHandler elementHandler = newHandler(uriHandlerFactory);
+            return new HandlerInfo(level, XMLUtils.buildExplodedQName(uri, localname), elementHandler, attributes, null, this.locator);
         } else {
             return null;
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private ElementHandler getHandlerByClassName(String handlerClassName) {
-        Class<ElementHandler> handlerClass = classNameToHandlerClass.get(handlerClassName);
-        if (handlerClass == null) {
+    private ElementHandler newHandler(HandlerFactory handlerFactory) {
+        try {
+            return handlerFactory.newHandler();
+        } catch (Exception e) {
+            throw OrbeonLocationException.wrapException(e, new LocationData(locator));
+        }
+    }
+
+    private HandlerFactory getHandlerFactory(String handlerClassName) {
+        final HandlerFactory existingFactory = classNameToHandlerFactory.get(handlerClassName);
+        if (existingFactory != null) {
+            return existingFactory;
+        } else {
             try {
-                handlerClass = (Class<ElementHandler>) Class.forName(handlerClassName);
-                classNameToHandlerClass.put(handlerClassName, handlerClass);
-            } catch (ClassNotFoundException e) {
+                final HandlerFactory newFactory = new HandlerFactory(Class.forName(handlerClassName).asSubclass(ElementHandler.class));
+                final HandlerFactory previousFactory = classNameToHandlerFactory.putIfAbsent(handlerClassName, newFactory);
+                return (previousFactory != null) ? previousFactory : newFactory;
+            } catch (Exception e) {
                 throw OrbeonLocationException.wrapException(e, new LocationData(locator));
             }
         }
-        try {
-            return handlerClass.newInstance();
-        } catch (Exception e) {
-            throw OrbeonLocationException.wrapException(e, new LocationData(locator));
+    }
+
+    // Create handlers with the handler class's public no-arg constructor, looked up once
+    private static class HandlerFactory {
+        private final Constructor<? extends ElementHandler> constructor;
+
+        public HandlerFactory(Class<? extends ElementHandler> handlerClass) throws NoSuchMethodException {
+            this.constructor = handlerClass.getConstructor();
+        }
+
+        public ElementHandler newHandler() throws Exception {
+            return constructor.newInstance();
         }
     }
 
@@ -600,11 +623,11 @@ public class ElementHandlerController implements ElementHandlerContext, XMLRecei
     };
 
     private static class HandlerMatcher {
-        public String handlerClassName;
-        public Matcher matcher;
+        public final HandlerFactory handlerFactory;
+        public final Matcher matcher;
 
-        private HandlerMatcher(String handlerClassName, Matcher matcher) {
-            this.handlerClassName = handlerClassName;
+        private HandlerMatcher(HandlerFactory handlerFactory, Matcher matcher) {
+            this.handlerFactory = handlerFactory;
             this.matcher = matcher;
         }
     }
@@ -155,7 +155,7 @@ class PageFlowControllerProcessor extends ProcessorImpl with Logging {
         }
 
         // Run the first matching entry if any
-        pageFlow.routes.iterator map (route ⇒ route → MatchResult(route.routeElement.pattern, path)) find (_._2.matches) match {
+        pageFlow.findRoute(path) match {
             case Some((route: FileRoute, matchResult)) ⇒
                 // Run the given route and let the caller handle errors
                 debug("processing file", logParams)
@@ -501,7 +501,19 @@ object PageFlowControllerProcessor {
         unauthorizedRoute: Option[PageOrServiceRoute],
         errorRoute: Option[PageOrServiceRoute],
         pathMatchers: Seq[PathMatcher],
-        file: Option[String])
+        file: Option[String]) {
+
+        // Index the route patterns so that finding a route doesn't require trying all the routes in order
+        private val indexedRoutes = routes.toIndexedSeq
+        private val routeIndex    = new PatternIndex(indexedRoutes map (_.routeElement.pattern))
+
+        // Find the first matching route in declaration order, if any
+        def findRoute(path: String): Option[(Route, MatchResult)] =
+            routeIndex.findFirst(path) map { index ⇒
+                val route = indexedRoutes(index)
+                route → MatchResult(route.routeElement.pattern, path)
+            }
+    }
 
     def att(e: Element, name: String) = Option(e.attributeValue(name))
     def idAtt(e: Element) = att(e, "id")
@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.controller
+
+import java.util.BitSet
+import java.util.regex.Pattern
+import scala.collection.mutable
+
+/**
+ * Index of an ordered sequence of patterns, used to find the first pattern fully matching a string without trying all
+ * the patterns.
+ *
+ * Each pattern is analyzed for a literal prefix which all matching strings must start with:
+ *
+ * - patterns which are entirely literal are stored in a map
+ * - other patterns are stored in a trie by literal prefix, possibly empty
+ *
+ * The candidates for a string are the literal pattern equal to the string, and the patterns found in the trie along
+ * the string. Candidates are then tried in declaration order, so the result is the same as trying all patterns in
+ * order, but the cost depends on the number of patterns sharing a prefix with the string, not on the total number of
+ * patterns.
+ */
+class PatternIndex(patterns: IndexedSeq[Pattern]) {
+
+    import PatternIndex._
+
+    private class TrieNode {
+        val children = mutable.HashMap[Char, TrieNode]()
+        var indexes  = Array[Int]()
+    }
+
+    private val literals = mutable.HashMap[String, Int]()
+    private val root     = new TrieNode
+
+    for ((pattern, index) ← patterns.zipWithIndex)
+        analyze(pattern) match {
+            case Literal(literal) ⇒
+                // Only the first of identical patterns can ever match
+                if (! literals.contains(literal))
+                    literals += literal → index
+            case Prefix(prefix) ⇒
+                val node = prefix.foldLeft(root)((node, c) ⇒ node.children.getOrElseUpdate(c, new TrieNode))
+                node.indexes :+= index
+        }
+
+    // Index of the first pattern fully matching the string, if any
+    def findFirst(s: String): Option[Int] = {
+
+        val candidates = new BitSet(patterns.size)
+        literals.get(s) foreach (candidates.set(_))
+
+        var node = root
+        var i    = 0
+        while (node ne null) {
+            node.indexes foreach (candidates.set(_))
+            node =
+                if (i < s.length) {
+                    val child = node.children.get(s.charAt(i))
+                    i += 1
+                    child.orNull
+                } else
+                    null
+        }
+
+        var index = candidates.nextSetBit(0)
+        while (index != -1) {
+            if (patterns(index).matcher(s).matches)
+                return Some(index)
+            index = candidates.nextSetBit(index + 1)
+        }
+        None
+    }
+
+    // Number of patterns which are tried for any string, for logging
+    def unprefixedCount = root.indexes.length
+}
+
+object PatternIndex {
+
+    sealed trait Analysis
+    case class Literal(literal: String) extends Analysis
+    case class Prefix(prefix: String) extends Analysis
+
+    private val MetaCharacters = "\\[](){}.*+?^$|"
+    private val Quantifiers    = "?*+{"
+
+    // Find the literal prefix of a pattern, or the whole literal if the pattern has no metacharacters
+    def analyze(pattern: Pattern): Analysis = {
+
+        val regexp = pattern.pattern
+
+        // Flags, e.g. CASE_INSENSITIVE, and top-level alternatives make the prefix meaningless
+        if (pattern.flags != 0 || hasTopLevelAlternative(regexp))
+            return Prefix("")
+
+        val prefix = new StringBuilder
+        var i = 0
+        while (i < regexp.length) {
+            // Backslash followed by a non-alphabetic character quotes the character, otherwise it is a construct
+            val (c, length) =
+                regexp.charAt(i) match {
+                    case '\\' if i + 1 < regexp.length && ! Character.isLetterOrDigit(regexp.charAt(i + 1)) ⇒
+                        (regexp.charAt(i + 1), 2)
+                    case c if MetaCharacters.indexOf(c) >= 0 ⇒
+                        return Prefix(prefix.toString)
+                    case c ⇒
+                        (c, 1)
+                }
+
+            i += length
+
+            // A quantified character is not part of the prefix, as it might not be there or be repeated
+            if (i < regexp.length && Quantifiers.indexOf(regexp.charAt(i)) >= 0)
+                return Prefix(prefix.toString)
+
+            prefix += c
+        }
+
+        Literal(prefix.toString)
+    }
+
+    private def hasTopLevelAlternative(regexp: String): Boolean = {
+        var depth   = 0
+        var inClass = false
+        var i       = 0
+        while (i < regexp.length) {
+            regexp.charAt(i) match {
+                case '\\'                           ⇒ i += 1
+                case '[' if ! inClass               ⇒ inClass = true
+                case ']' if inClass                 ⇒ inClass = false
+                case '(' if ! inClass               ⇒ depth += 1
+                case ')' if ! inClass               ⇒ depth -= 1
+                case '|' if ! inClass && depth == 0 ⇒ return true
+                case _                              ⇒
+            }
+            i += 1
+        }
+        false
+    }
+}
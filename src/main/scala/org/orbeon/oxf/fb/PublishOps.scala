@@ -13,13 +13,21 @@
  */
 package org.orbeon.oxf.fb
 
+import java.util.concurrent.{LinkedBlockingQueue, TimeUnit, ThreadPoolExecutor, ThreadFactory}
+import org.apache.commons.io.IOUtils
+import org.apache.commons.io.output.NullOutputStream
 import org.orbeon.saxon.om.NodeInfo
 import org.orbeon.scaxon.XML
 import XML._
+import org.orbeon.oxf.externalcontext.URLRewriter
+import org.orbeon.oxf.fr.FormDefinitionCache
 import org.orbeon.oxf.fr.FormRunner._
+import org.orbeon.oxf.properties.Properties
+import org.orbeon.oxf.resources.URLFactory
 import scala.util.control.NonFatal
 import org.orbeon.oxf.xforms.action.XFormsAPI._
-import org.orbeon.oxf.util.ScalaUtils.nonEmptyOrNone
+import org.orbeon.oxf.util._
+import org.orbeon.oxf.util.ScalaUtils.{nonEmptyOrNone, useAndClose}
 
 trait PublishOps {
 
@@ -41,6 +49,10 @@ trait PublishOps {
                     // version is
                     formVersion       = nonEmptyOrNone(formVersion)
                 )
+            // Don't wait for Last-Modified to tell that cached copies of the previous definition are stale
+            FormDefinitionCache.invalidate(app, form)
+            if (Properties.instance.getPropertySet.getBoolean("oxf.fb.publish.prewarm", default = false))
+                PublishOps.prewarm(app, form)
             setvalue(instanceRoot("fb-publish-instance").get / "published-attachments", beforeURLs.size.toString)
             setvalue(instanceRoot("fb-publish-instance").get / "published-version",     publishedVersion.toString)
             toggle("fb-publish-dialog-success")
@@ -52,3 +64,57 @@ trait PublishOps {
         setfocus("fb-publish-dialog")
     }
 }
+
+object PublishOps {
+
+    private implicit val Logger = new IndentedLogger(LoggerFactory.createLogger(classOf[PublishOps]), "")
+
+    private val MaxPendingPrewarms = 100
+
+    // A single thread, so that publishing many forms doesn't load the server
+    // Prewarming is only an optimization, so requests over the maximum number of pending requests are dropped
+    private val PrewarmExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue[Runnable](MaxPendingPrewarms),
+        new ThreadFactory {
+            def newThread(runnable: Runnable) = {
+                val thread = new Thread(runnable, "Orbeon form prewarm")
+                thread.setDaemon(true)
+                thread
+            }
+        },
+        new ThreadPoolExecutor.DiscardPolicy)
+
+    // Stop prewarming, typically when the web app is destroyed
+    def shutdown(): Unit =
+        PrewarmExecutor.shutdownNow()
+
+    // Load the new page of a published form in the background, so that its static state is created and cached before
+    // the first users open the form. The request is made with the headers of the current request, including the
+    // session cookie, so that it is authorized like the user who published the form.
+    def prewarm(app: String, form: String): Unit = {
+
+        // Build the URL and headers in the request thread, as they depend on the external context
+        val url =
+            URLFactory.createURL(URLRewriterUtils.rewriteServiceURL(
+                NetUtils.getExternalContext.getRequest,
+                s"/fr/$app/$form/new",
+                URLRewriter.REWRITE_MODE_ABSOLUTE))
+
+        val headers = Connection.buildConnectionHeaders(None, Map(), Option(Connection.getForwardHeaders))
+
+        PrewarmExecutor.execute(new Runnable {
+            def run() =
+                try {
+                    val result = Connection("GET", url, credentials = None, messageBody = None, headers = headers, loadState = false, logBody = false).connect(saveState = false)
+                    // Read and discard the page
+                    Option(result.getResponseInputStream) foreach { is ⇒
+                        useAndClose(is)(IOUtils.copy(_, new NullOutputStream))
+                    }
+                    Logger.logDebug("", "prewarmed published form", "url", url.toString, "status code", result.statusCode.toString)
+                } catch {
+                    case NonFatal(t) ⇒
+                        Logger.logWarning("", "unable to prewarm published form " + url, t)
+                }
+        })
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.fr
+
+import java.util.{LinkedHashMap ⇒ JLinkedHashMap}
+import java.util.concurrent.atomic.AtomicLong
+import org.orbeon.oxf.util.{IndentedLogger, Logging}
+import org.orbeon.saxon.om.DocumentInfo
+import scala.collection.JavaConverters._
+
+/**
+ * In-process cache of parsed published form definitions.
+ *
+ * Only definitions returned with a Last-Modified header are cached. Entries are revalidated with a conditional GET
+ * each time they are used, so this saves the transfer and parsing of the definition but not the round trip. As
+ * Last-Modified has a resolution of one second, entries are also removed when a form is published.
+ *
+ * The size of an entry is estimated as the size of the serialized definition. Least recently used entries are evicted
+ * when the total size goes over the budget.
+ */
+object FormDefinitionCache extends Logging {
+
+    case class Key(app: String, form: String, version: Option[String])
+    case class Entry(document: DocumentInfo, lastModified: Long, size: Long)
+
+    // Access order, so iteration starts with the least recently used entry
+    private val entries   = new JLinkedHashMap[Key, Entry](16, 0.75f, true)
+    private var totalSize = 0L
+
+    private val hits   = new AtomicLong
+    private val misses = new AtomicLong
+
+    def hitCount  = hits.get
+    def missCount = misses.get
+    def size      = synchronized { totalSize }
+
+    def get(key: Key): Option[Entry] = synchronized {
+        Option(entries.get(key))
+    }
+
+    // Called when the persistence layer confirms that the cached definition is up to date
+    def hit(entry: Entry)(implicit logger: IndentedLogger): DocumentInfo = {
+        hits.incrementAndGet()
+        logStats("hit")
+        entry.document
+    }
+
+    // Called when the definition was read from the persistence layer
+    def miss(key: Key, document: DocumentInfo, lastModified: Option[Long], size: Long, maxSize: Long)(implicit logger: IndentedLogger): DocumentInfo = {
+        misses.incrementAndGet()
+        synchronized {
+            removeEntry(key)
+            for (lastModified ← lastModified if size <= maxSize) {
+                entries.put(key, Entry(document, lastModified, size))
+                totalSize += size
+
+                val iterator = entries.values.iterator
+                while (totalSize > maxSize && iterator.hasNext) {
+                    totalSize -= iterator.next().size
+                    iterator.remove()
+                }
+            }
+        }
+        logStats("miss")
+        document
+    }
+
+    def remove(key: Key): Unit = synchronized {
+        removeEntry(key)
+    }
+
+    // Remove all the versions of the given form
+    def invalidate(app: String, form: String): Unit = synchronized {
+        entries.keySet.asScala.toList filter (key ⇒ key.app == app && key.form == form) foreach removeEntry
+    }
+
+    private def removeEntry(key: Key): Unit =
+        Option(entries.remove(key)) foreach (totalSize -= _.size)
+
+    private def logStats(result: String)(implicit logger: IndentedLogger) =
+        debug("form definition cache " + result, Seq(
+            "hits"    → hitCount.toString,
+            "misses"  → missCount.toString,
+            "entries" → synchronized { entries.size }.toString,
+            "size"    → size.toString))
+}
@@ -13,6 +13,8 @@
  */
 package org.orbeon.oxf.fr
 
+import java.io.{FilterInputStream, InputStream}
+import java.net.URL
 import org.orbeon.oxf.util._
 import org.orbeon.saxon.om.DocumentInfo
 import org.orbeon.oxf.externalcontext.URLRewriter
@@ -36,6 +38,8 @@ trait FormRunnerPersistence {
 
     val StandardProviderProperties = Set("uri", "autosave", "active", "permissions")
 
+    val FormDefinitionCacheMaxSizeProperty = PersistencePropertyPrefix + ".form-definition.cache.max-size"
+
     // NOTE: We generate .bin, but sample data can contain other extensions
     private val RecognizedAttachmentExtensions = Set("bin", "jpg", "jpeg", "gif", "png", "pdf")
 
@@ -135,25 +139,70 @@ trait FormRunnerPersistence {
 
     // Reads a document forwarding headers. The URL is rewritten, and is expected to be like "/fr/…"
     def readDocument(uri: String)(implicit logger: IndentedLogger): Option[DocumentInfo] = {
+        val (url, connectionResult) = connectDocument(uri, Map())
+        hasDocument(connectionResult) option readTinyTree(url, connectionResult.getResponseInputStream)
+    }
+
+    private def connectDocument(uri: String, headers: Map[String, Array[String]])(implicit logger: IndentedLogger) = {
         val urlString = URLRewriterUtils.rewriteServiceURL(NetUtils.getExternalContext.getRequest, uri, URLRewriter.REWRITE_MODE_ABSOLUTE)
         val url = URLFactory.createURL(urlString)
 
-        val headers = Connection.buildConnectionHeaders(None, Map(), Option(Connection.getForwardHeaders))
-        val connectionResult = Connection("GET", url, credentials = None, messageBody = None, headers = headers, loadState = true, logBody = false).connect(saveState = true)
-
-        // Libraries are typically not present. In that case, the persistence layer should return a 404 (thus the first test),
-        // but the MySQL persistence layer returns a [200 with an empty body][1] (thus the second test).
-        //   [1]: https://github.com/orbeon/orbeon-forms/issues/771
-        connectionResult.statusCode == 200 && connectionResult.hasContent option
-            useAndClose(connectionResult.getResponseInputStream) { inputStream ⇒
-                // do process XInclude, so FB's model gets included
-                TransformerUtils.readTinyTree(XPath.GlobalConfiguration, inputStream, url.toString, true, false)
-            }
+        val allHeaders = Connection.buildConnectionHeaders(None, headers, Option(Connection.getForwardHeaders))
+        (url, Connection("GET", url, credentials = None, messageBody = None, headers = allHeaders, loadState = true, logBody = false).connect(saveState = true))
     }
 
+    // Libraries are typically not present. In that case, the persistence layer should return a 404 (thus the first test),
+    // but the MySQL persistence layer returns a [200 with an empty body][1] (thus the second test).
+    //   [1]: https://github.com/orbeon/orbeon-forms/issues/771
+    private def hasDocument(connectionResult: ConnectionResult) =
+        connectionResult.statusCode == 200 && connectionResult.hasContent
+
+    private def readTinyTree(url: URL, inputStream: InputStream) =
+        useAndClose(inputStream) { inputStream ⇒
+            // do process XInclude, so FB's model gets included
+            TransformerUtils.readTinyTree(XPath.GlobalConfiguration, inputStream, url.toString, true, false)
+        }
+
     // Retrieves a form definition from the persistence layer
-    def readPublishedForm(appName: String, formName: String)(implicit logger: IndentedLogger): Option[DocumentInfo] =
-        readDocument(createFormDefinitionBasePath(appName, formName) + "form.xhtml")
+    // The parsed definition is cached, and reused as long as the persistence layer reports it as not modified
+    def readPublishedForm(appName: String, formName: String, formVersion: Option[String] = None)(implicit logger: IndentedLogger): Option[DocumentInfo] = {
+
+        val key    = FormDefinitionCache.Key(appName, formName, formVersion)
+        val cached = FormDefinitionCache.get(key)
+
+        val headers =
+            (formVersion.toList map ("Orbeon-Form-Definition-Version" → Array(_))) ++
+            (cached.toList  map (entry ⇒ "If-Modified-Since" → Array(DateUtils.RFC1123Date.print(entry.lastModified))))
+
+        val (url, connectionResult) = connectDocument(createFormDefinitionBasePath(appName, formName) + "form.xhtml", headers.toMap)
+
+        cached match {
+            case Some(entry) if connectionResult.statusCode == 304 ⇒
+                connectionResult.close()
+                Some(FormDefinitionCache.hit(entry))
+            case _ if hasDocument(connectionResult) ⇒
+                var size = 0L
+                val countingInputStream = new FilterInputStream(connectionResult.getResponseInputStream) {
+                    override def read() = {
+                        val b = super.read()
+                        if (b != -1) size += 1
+                        b
+                    }
+                    override def read(b: Array[Byte], off: Int, len: Int) = {
+                        val count = super.read(b, off, len)
+                        if (count > 0) size += count
+                        count
+                    }
+                }
+                val document = readTinyTree(url, countingInputStream)
+                val maxSize  = properties.getInteger(FormDefinitionCacheMaxSizeProperty, 0).toLong
+                Some(FormDefinitionCache.miss(key, document, Option(connectionResult.getLastModifiedJava) map (_.longValue), size, maxSize))
+            case _ ⇒
+                connectionResult.close()
+                FormDefinitionCache.remove(key)
+                None
+        }
+    }
 
     // Retrieves the metadata for a form from the persistence layer
     def readFormMetadata(appName: String, formName: String)(implicit logger: IndentedLogger): Option[DocumentInfo] =
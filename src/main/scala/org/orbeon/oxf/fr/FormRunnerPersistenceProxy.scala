@@ -30,7 +30,13 @@ import javax.xml.transform.stream.StreamResult
 import org.orbeon.oxf.xforms.action.XFormsAPI
 import org.orbeon.oxf.externalcontext.URLRewriter
 import collection.JavaConverters._
-import org.orbeon.oxf.util.{XPath, URLRewriterUtils, NetUtils}
+import org.orbeon.oxf.util.{LoggerFactory, XPath, URLRewriterUtils, NetUtils}
+import org.orbeon.saxon.om.NodeInfo
+import java.net.{URI, URL}
+import java.io.File
+import java.util.concurrent._
+import java.util.concurrent.atomic.AtomicInteger
+import FormRunnerPersistenceProxy._
 
 /**
  * The persistence proxy processor:
@@ -76,54 +82,65 @@ class FormRunnerPersistenceProxy extends ProcessorImpl {
 
         // Get persistence implementation target URL and configuration headers
         val (persistenceBaseURL, headers) = FormRunner.getPersistenceURLHeaders(app, form, formOrData)
+
+        // Publishing or deleting a form definition changes the provider's forms metadata
+        if (formOrData == "form" && Set("PUT", "DELETE")(request.getMethod)) {
+            FormRunner.findProvider(app, form, "form") foreach invalidateFormMetadata
+            FormDefinitionCache.invalidate(app, form)
+        }
         val connection = proxyEstablishConnection(request, NetUtils.appendQueryString(dropTrailingSlash(persistenceBaseURL) + path, buildQueryString), headers)
         // Proxy status code
         response.setStatus(connection.getResponseCode)
         // Proxy incoming headers
+        // NOTE: Range requests, e.g. for attachments, work as the Range and Content-Range headers are proxied as well
         filterCapitalizeAndCombineHeaders(connection.getHeaderFields, out = false) foreach (response.setHeader _).tupled
         copyStream(connection.getInputStream, response.getOutputStream)
     }
 
-    private def proxyEstablishConnection(request: Request, uri: String, headers: Map[String, String]) = {
-        // Create the absolute outgoing URL
-        val outgoingURL = {
-            val persistenceBaseAbsoluteURL = URLRewriterUtils.rewriteServiceURL(NetUtils.getExternalContext.getRequest, uri, URLRewriter.REWRITE_MODE_ABSOLUTE)
-            URLFactory.createURL(persistenceBaseAbsoluteURL)
-        }
+    // Create the absolute outgoing URL
+    // NOTE: This must run on the request thread, as it uses the current external context
+    private def outgoingURL(uri: String) = {
+        val persistenceBaseAbsoluteURL = URLRewriterUtils.rewriteServiceURL(NetUtils.getExternalContext.getRequest, uri, URLRewriter.REWRITE_MODE_ABSOLUTE)
+        URLFactory.createURL(persistenceBaseAbsoluteURL)
+    }
 
-        def setPersistenceHeaders(connection: HTTPURLConnection) {
-            for ((name, value) ← headers)
-                connection.setRequestProperty(capitalizeCommonOrSplitHeader(name), value)
-        }
+    // Persistence headers followed by the proxied incoming headers
+    private def outgoingHeaders(request: Request, headers: Map[String, String]): List[(String, String)] =
+        (headers.toList map { case (name, value) ⇒ capitalizeCommonOrSplitHeader(name) → value }) :::
+            filterCapitalizeAndCombineHeaders(request.getHeaderValuesMap, out = true).toList
+
+    private def prepareConnection(url: URL, method: String, headers: List[(String, String)], doOutput: Boolean) = {
+        val connection = url.openConnection.asInstanceOf[HTTPURLConnection]
 
-        def proxyOutgoingHeaders(connection: HTTPURLConnection) =
-            filterCapitalizeAndCombineHeaders(request.getHeaderValuesMap, out = true) foreach (connection.setRequestProperty _).tupled
+        connection.setDoInput(true)
+        connection.setDoOutput(doOutput)
+        connection.setRequestMethod(method)
+
+        headers foreach (connection.setRequestProperty _).tupled
+
+        connection
+    }
+
+    private def proxyEstablishConnection(request: Request, uri: String, headers: Map[String, String]) = {
 
         if (! Set("GET", "DELETE", "PUT", "POST")(request.getMethod))
             throw new OXFException("Unsupported method: " + request.getMethod)
 
         // Prepare connection
         val doOutput = Set("PUT", "POST")(request.getMethod)
-        val connection = outgoingURL.openConnection.asInstanceOf[HTTPURLConnection]
-
-        connection.setDoInput(true)
-        connection.setDoOutput(doOutput)
-        connection.setRequestMethod(request.getMethod)
-
-        setPersistenceHeaders(connection)
-        proxyOutgoingHeaders(connection)
+        val connection = prepareConnection(outgoingURL(uri), request.getMethod, outgoingHeaders(request, headers), doOutput)
 
         // Write body if needed
         // NOTE: HTTPURLConnection requires setting the body before calling connect()
         if (doOutput) {
             // Ask the request generator first, as the body might have been read already
             // Q: Could this be handled automatically in ExternalContext?
-            val is = RequestGenerator.getRequestBody(PipelineContext.get) match {
-                case bodyURL: String ⇒ NetUtils.uriToInputStream(bodyURL)
-                case _ ⇒ request.getInputStream
+            // The body is streamed to the persistence implementation, without being buffered in memory first
+            RequestGenerator.getRequestBody(PipelineContext.get) match {
+                case bodyURL: String if bodyURL.startsWith("file:") ⇒ connection.setRequestBodyFile(new File(new URI(bodyURL)))
+                case bodyURL: String                                ⇒ connection.setRequestBodyStream(NetUtils.uriToInputStream(bodyURL), -1)
+                case _                                              ⇒ connection.setRequestBodyStream(request.getInputStream, request.getContentLength)
             }
-
-            copyStream(is, connection.getOutputStream)
         }
 
         connection.connect()
@@ -157,16 +174,7 @@ class FormRunnerPersistenceProxy extends ProcessorImpl {
             }
         }
 
-        val formElements = providers map FormRunner.getPersistenceURLHeadersFromProvider flatMap { case (baseURI, headers) ⇒
-            // Read all the forms for the current service
-            val serviceURI = baseURI + "/form" + Option(path).getOrElse("")
-
-            // TODO: Handle connection.getResponseCode.
-            useAndClose(proxyEstablishConnection(request, serviceURI, headers).getInputStream) { is ⇒
-                val forms = TransformerUtils.readTinyTree(XPath.GlobalConfiguration, is, serviceURI, false, false)
-                forms \\ "forms" \\ "form"
-            }
-        }
+        val formElements = readPublishedFormsMetadata(request, providers, Option(path).getOrElse(""))
 
         // Aggregate and serialize
         // TODO: Add @operations="|admin" based on FB permissions. It is better if this is done in a centralized way.
@@ -177,4 +185,131 @@ class FormRunnerPersistenceProxy extends ProcessorImpl {
         response.setContentType("application/xml")
         TransformerUtils.getXMLIdentityTransformer.transform(documentElement, new StreamResult(response.getOutputStream))
     }
+
+    // Read the forms metadata from all the providers concurrently, using recent cached results if possible
+    private def readPublishedFormsMetadata(request: Request, providers: List[String], path: String): List[NodeInfo] = {
+
+        val propertySet = Properties.instance.getPropertySet
+        val timeout     = propertySet.getInteger(FormMetadataTimeoutProperty, 30000).toLong
+        val ttl         = propertySet.getInteger(FormMetadataCacheTTLProperty, 0).toLong
+
+        // Results depend on the user, as providers can filter forms based on permissions
+        val userKey = (Option(request.getRemoteUser).toList ++ filterOrbeonHeaders(request)) mkString "|"
+
+        // Prepare connections on the request thread, as this requires the external context
+        val pendingOrCached =
+            for (provider ← providers)
+            yield {
+                val cacheKey = FormMetadataCacheKey(provider, userKey, path)
+                FormMetadataCache.get(cacheKey, ttl) match {
+                    case Some(forms) ⇒
+                        Left(forms)
+                    case None ⇒
+                        val (baseURI, headers) = FormRunner.getPersistenceURLHeadersFromProvider(provider)
+                        val serviceURI = baseURI + "/form" + path
+                        val url        = outgoingURL(serviceURI)
+                        val allHeaders = outgoingHeaders(request, headers)
+
+                        Right(cacheKey → MetadataExecutor.submit(new Callable[List[NodeInfo]] {
+                            def call() = {
+                                val connection = prepareConnection(url, "GET", allHeaders, doOutput = false)
+
+                                // Cancelling the future doesn't interrupt a blocked read, so the connection times out too
+                                connection.setConnectTimeout(timeout.toInt)
+                                connection.setReadTimeout(timeout.toInt)
+                                connection.connect()
+
+                                // TODO: Handle connection.getResponseCode.
+                                useAndClose(connection.getInputStream) { is ⇒
+                                    val forms = TransformerUtils.readTinyTree(XPath.GlobalConfiguration, is, serviceURI, false, false)
+                                    (forms \\ "forms" \\ "form").toList
+                                }
+                            }
+                        }))
+                }
+            }
+
+        // Gather results in provider order, with a deadline shared by all providers
+        val deadline = System.currentTimeMillis + timeout
+
+        pendingOrCached flatMap {
+            case Left(forms) ⇒
+                forms
+            case Right((cacheKey, future)) ⇒
+                try {
+                    val forms = future.get(math.max(deadline - System.currentTimeMillis, 0L), TimeUnit.MILLISECONDS)
+                    FormMetadataCache.put(cacheKey, forms, ttl)
+                    forms
+                } catch {
+                    case e: TimeoutException ⇒
+                        future.cancel(true)
+                        Logger.warn("timeout reading published forms metadata from provider " + cacheKey.provider + ", skipping provider")
+                        Nil
+                    case e: ExecutionException ⇒
+                        throw e.getCause
+                }
+        }
+    }
+
+    private def filterOrbeonHeaders(request: Request) =
+        request.getHeaderValuesMap.asScala.toList filter (_._1.toLowerCase.startsWith("orbeon-")) sortBy (_._1) map {
+            case (name, values) ⇒ name.toLowerCase + "=" + (values mkString ",")
+        }
+}
+
+object FormRunnerPersistenceProxy {
+
+    private val Logger = LoggerFactory.createLogger(classOf[FormRunnerPersistenceProxy])
+
+    val FormMetadataTimeoutProperty  = "oxf.fr.persistence.form-metadata.timeout"
+    val FormMetadataCacheTTLProperty = "oxf.fr.persistence.form-metadata.cache-ttl"
+
+    // Threads reading metadata from providers, shared by all requests
+    // Threads are daemon threads and stop when idle, so they don't prevent shutdown or undeployment.
+    private val MetadataThreads  = 8
+    private val MetadataExecutor = {
+        val executor = new ThreadPoolExecutor(MetadataThreads, MetadataThreads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue[Runnable], new ThreadFactory {
+            private val count = new AtomicInteger
+            def newThread(runnable: Runnable) = {
+                val thread = new Thread(runnable, "Orbeon form metadata reader " + count.incrementAndGet())
+                thread.setDaemon(true)
+                thread
+            }
+        })
+        executor.allowCoreThreadTimeOut(true)
+        executor
+    }
+
+    private case class FormMetadataCacheKey(provider: String, user: String, path: String)
+
+    // Short-lived cache of the forms metadata returned by each provider for a given user
+    private object FormMetadataCache {
+
+        private val entries = new ConcurrentHashMap[FormMetadataCacheKey, (Long, List[NodeInfo])]
+
+        def get(key: FormMetadataCacheKey, ttl: Long) =
+            if (ttl <= 0)
+                None
+            else
+                Option(entries.get(key)) collect {
+                    case (expiration, forms) if expiration > System.currentTimeMillis ⇒ forms
+                }
+
+        def put(key: FormMetadataCacheKey, forms: List[NodeInfo], ttl: Long) =
+            if (ttl > 0) {
+                // Drop expired entries from time to time so the cache doesn't grow with the number of users
+                if (entries.size > 1000) {
+                    val now = System.currentTimeMillis
+                    entries.asScala.toList foreach { case (k, (expiration, _)) ⇒ if (expiration <= now) entries.remove(k) }
+                }
+                entries.put(key, (System.currentTimeMillis + ttl, forms))
+            }
+
+        def invalidateProvider(provider: String) =
+            entries.keySet.asScala.toList filter (_.provider == provider) foreach entries.remove
+    }
+
+    // Called when a form definition is published or deleted, as the provider's metadata changes
+    def invalidateFormMetadata(provider: String): Unit =
+        FormMetadataCache.invalidateProvider(provider)
 }
\ No newline at end of file
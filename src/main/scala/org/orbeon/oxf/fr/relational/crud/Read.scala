@@ -17,7 +17,7 @@ import java.io.OutputStreamWriter
 import org.orbeon.oxf.fr.FormRunnerPersistence
 import org.orbeon.oxf.fr.relational.{Next, Unspecified, RelationalUtils}
 import org.orbeon.oxf.util.ScalaUtils._
-import org.orbeon.oxf.util.NetUtils
+import org.orbeon.oxf.util.{DateUtils, NetUtils}
 import org.orbeon.oxf.webapp.HttpStatusCodeException
 
 trait Read extends RequestResponse with Common with FormRunnerPersistence {
@@ -102,8 +102,18 @@ trait Read extends RequestResponse with Common with FormRunnerPersistence {
                     httpResponse.setHeader("Orbeon-Form-Definition-Version", formVersion.toString)
                 }
 
+                // For form definitions, set Last-Modified and honor If-Modified-Since, so callers caching the
+                // parsed definition can revalidate it cheaply
+                val notModified = req.forForm && ! req.forAttachment && {
+                    val lastModified = resultSet.getTimestamp("last_modified_time").getTime
+                    httpResponse.setHeader("Last-Modified", DateUtils.RFC1123Date.print(lastModified))
+                    ! NetUtils.checkIfModifiedSince(httpRequest, lastModified)
+                }
+
                 // Write content (XML / file)
-                if (req.forAttachment) {
+                if (notModified) {
+                    httpResponse.setStatus(304)
+                } else if (req.forAttachment) {
                     val blob = resultSet.getBlob("file_content")
                     NetUtils.copyStream(blob.getBinaryStream, httpResponse.getOutputStream)
                 } else {
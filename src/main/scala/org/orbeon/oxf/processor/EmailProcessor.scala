@@ -26,7 +26,7 @@ import javax.xml.transform.OutputKeys
 import javax.xml.transform.sax.SAXSource
 import javax.xml.transform.stream.StreamResult
 import org.apache.commons.fileupload.FileItem
-import org.dom4j.{Node, Document, Element}
+import org.dom4j.{CDATA, Text, Node, Document, Element}
 import org.orbeon.oxf.common.OXFException
 import org.orbeon.oxf.common.ValidationException
 import org.orbeon.oxf.pipeline.api.PipelineContext
@@ -76,8 +76,8 @@ class EmailProcessor extends ProcessorImpl {
 
         properties.setProperty("mail.smtp.host", host)
 
-        // Create session
-        val session = {
+        // SMTP settings
+        val smtpConfig = {
 
             // Get credentials if any
             val (usernameOption, passwordOption) = {
@@ -140,18 +140,16 @@ class EmailProcessor extends ProcessorImpl {
                     properties.setProperty("mail.smtp.auth", "true")
 
                     if (Logger.isInfoEnabled) Logger.info("Username: " + usernameOption)
-
-                    Session.getInstance(properties, new Authenticator {
-                        override def getPasswordAuthentication: PasswordAuthentication = {
-                            new PasswordAuthentication(username, passwordOption getOrElse "")
-                        }
-                    })
                 case None ⇒
                     if (Logger.isInfoEnabled) Logger.info("No Authentication")
-                    Session.getInstance(properties)
             }
+
+            SMTPConfig(properties.asScala.toMap, usernameOption, passwordOption)
         }
 
+        // Create session
+        val session = smtpConfig.newSession
+
         // Create message
         val message = new MimeMessage(session)
 
@@ -214,8 +212,16 @@ class EmailProcessor extends ProcessorImpl {
             throw new OXFException("Main text or body element not found")
 
         // Send message
-        useAndClose(session.getTransport("smtp")) { transport ⇒
-            Transport.send(message)
+        if (propertySet.getBoolean(Async, false)) {
+            // Return as soon as the message is spooled, and let the sender threads send it
+            spool.enqueue(smtpConfig, message)
+        } else {
+            // Use a single connection, as Transport.send() would open its own
+            message.saveChanges()
+            useAndClose(session.getTransport("smtp")) { transport ⇒
+                transport.connect()
+                transport.sendMessage(message, message.getAllRecipients)
+            }
         }
     }
 
@@ -275,8 +281,17 @@ class EmailProcessor extends ProcessorImpl {
                     // Generate a FileItem from the source
                     val source = getSAXSource(EmailProcessor.this, pipelineContext, src, dataInputSystemId, contentType)
                     Left(handleStreamedPartContent(pipelineContext, source))
+                case None if ! XMLUtils.isTextOrJSONContentType(contentType) ⇒
+                    // Binary content of the part is inline
+
+                    // Decode it to a file as we go, rather than as a whole String and then a byte array
+                    val fileItem = NetUtils.prepareFileItem(NetUtils.REQUEST_SCOPE)
+                    useAndClose(new BufferedOutputStream(fileItem.getOutputStream)) { os ⇒
+                        decodeBase64Content(partOrBodyElement, os)
+                    }
+                    Left(fileItem)
                 case None ⇒
-                    // Content of the part is inline
+                    // Text content of the part is inline
 
                     // In the cases of text/html and XML, there must be exactly one root element
                     val needsRootElement = contentType == "text/html"// || ProcessorUtils.isXMLContentType(contentType);
@@ -290,34 +305,18 @@ class EmailProcessor extends ProcessorImpl {
                     Right(handleInlinePartContent(partDocument, contentType))
             }
 
-        if (! XMLUtils.isTextOrJSONContentType(contentType)) {
-            // This is binary content (including application/xml)
-            content match {
-                case Left(fileItem) ⇒
-                    parentPart.setDataHandler(new DataHandler(new ReadonlyDataSource {
-                        def getContentType = contentType
-                        def getInputStream = fileItem.getInputStream
-                        def getName = name
-                    }))
-                case Right(inline) ⇒
-                    val data = NetUtils.base64StringToByteArray(inline)
-                    parentPart.setDataHandler(new DataHandler(new SimpleBinaryDataSource(name, contentType, data)))
-            }
-        } else {
-            // This is text content (including text/xml)
+        // Binary content (including application/xml) has no charset, and text content (including text/xml) always
+        // has one: text from a file is encoded with the appropriate charset (user-defined, or the default)
+        val partContentType =
+            if (! XMLUtils.isTextOrJSONContentType(contentType)) contentType else contentTypeWithCharset
+
+        val dataSource =
             content match {
-                case Left(fileItem) ⇒
-                    parentPart.setDataHandler(new DataHandler(new ReadonlyDataSource {
-                        // This always contains a charset
-                        def getContentType = contentTypeWithCharset
-                        // This is encoded with the appropriate charset (user-defined, or the default)
-                        def getInputStream = fileItem.getInputStream
-                        def getName = name
-                    }))
-                case Right(inline) ⇒
-                    parentPart.setDataHandler(new DataHandler(new SimpleTextDataSource(name, contentTypeWithCharset, inline)))
+                case Left(fileItem) ⇒ new FileItemDataSource(name, partContentType, fileItem)
+                case Right(inline)  ⇒ new SimpleTextDataSource(name, partContentType, inline)
             }
-        }
+
+        parentPart.setDataHandler(new DataHandler(dataSource))
 
         // Set content-disposition header
         Option(partOrBodyElement.attributeValue("content-disposition")) foreach
@@ -358,6 +357,13 @@ object EmailProcessor {
     val TestTo       = "test-to"
     val TestSMTPHost = "test-smtp-host"
 
+    // Asynchronous mode
+    val Async          = "async"
+    val SpoolDirectory = "spool-directory"
+    val SenderThreads  = "sender-threads"
+    val MaxAttempts    = "max-attempts"
+    val RetryDelay     = "retry-delay"
+
     val ConfigNamespaceURI = "http://www.orbeon.com/oxf/email"
 
     // Use utf-8 as most email clients support it. This allows us not to have to pick an inferior encoding.
@@ -366,6 +372,22 @@ object EmailProcessor {
     // Get Some(trimmed value of the element) or None if the element is null
     def optionalValueTrim(e: Element) = nonEmptyOrNone(Option(e) map(_.getStringValue) orNull)
 
+    // Spool for the directory and settings in the properties
+    // The directory must be set explicitly, as a shared directory like the temporary directory is not suitable.
+    def spool(implicit propertySet: PropertySet) = {
+        val directory =
+            nonEmptyOrNone(propertySet.getString(SpoolDirectory)) map
+            (new File(_)) getOrElse
+            (throw new OXFException("The " + SpoolDirectory + " property must be set when " + Async + " is true"))
+
+        EmailSpool.getInstance(
+            directory,
+            propertySet.getInteger(SenderThreads, EmailSpool.DefaultThreads),
+            propertySet.getInteger(MaxAttempts, EmailSpool.DefaultMaxAttempts),
+            propertySet.getInteger(RetryDelay, EmailSpool.DefaultRetryDelay.toInt).toLong
+        )
+    }
+
     // First try to get the value from a child element, then from the properties
     def valueFromElementOrProperty(e: Element, name: String)(implicit propertySet: PropertySet) =
         optionalValueTrim(e.element(name)) orElse
@@ -378,6 +400,29 @@ object EmailProcessor {
         fileItem
     }
 
+    // Decode the base64 text of an element to a stream, in chunks, so that no copy of the whole text is made
+    def decodeBase64Content(element: Element, os: OutputStream): Unit = {
+
+        val receiver = new Base64XMLReceiver(os)
+        val buffer   = new Array[Char](8192)
+
+        def decodeText(text: String) =
+            for (start ← 0 until text.length by buffer.length) {
+                val end = text.length min (start + buffer.length)
+                text.getChars(start, end, buffer, 0)
+                receiver.characters(buffer, 0, end - start)
+            }
+
+        def decodeNode(node: Node): Unit = node match {
+            case e: Element ⇒ e.nodeIterator.asScala foreach (n ⇒ decodeNode(n.asInstanceOf[Node]))
+            case t: Text    ⇒ decodeText(t.getText)
+            case c: CDATA   ⇒ decodeText(c.getText)
+            case _          ⇒
+        }
+
+        decodeNode(element)
+    }
+
     def getSAXSource(processor: Processor, pipelineContext: PipelineContext, href: String, base: String, contentType: String): SAXSource = {
         val processorOutput =
             Option(ProcessorImpl.getProcessorInputSchemeInputName(href)) match {
@@ -405,7 +450,8 @@ object EmailProcessor {
         def getInputStream  = new ByteArrayInputStream(text.getBytes("utf-8"))
     }
 
-    private class SimpleBinaryDataSource(val getName: String, val getContentType: String, data: Array[Byte]) extends ReadonlyDataSource {
-        def getInputStream  = new ByteArrayInputStream(data)
+    // Content is read from the file each time, so the message can be written without holding the content in memory
+    private class FileItemDataSource(val getName: String, val getContentType: String, fileItem: FileItem) extends ReadonlyDataSource {
+        def getInputStream  = fileItem.getInputStream
     }
 }
@@ -0,0 +1,445 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor
+
+import EmailSpool._
+import collection.JavaConverters._
+import java.io._
+import java.util.UUID
+import java.util.concurrent._
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+import java.util.{Properties ⇒ JProperties}
+import javax.mail._
+import javax.mail.internet.{InternetAddress, MimeMessage}
+import org.orbeon.oxf.common.OXFException
+import org.orbeon.oxf.util.{SecureUtils, LoggerFactory}
+import org.orbeon.oxf.util.ScalaUtils._
+import scala.util.control.NonFatal
+
+// SMTP settings used to send a message: JavaMail session properties and optional credentials
+case class SMTPConfig(properties: Map[String, String], username: Option[String], password: Option[String]) {
+
+    def newSession =
+        username match {
+            case Some(username) ⇒
+                Session.getInstance(javaProperties, new Authenticator {
+                    override def getPasswordAuthentication =
+                        new PasswordAuthentication(username, password getOrElse "")
+                })
+            case None ⇒
+                Session.getInstance(javaProperties)
+        }
+
+    def javaProperties = {
+        val result = new JProperties
+        for ((name, value) ← properties)
+            result.setProperty(name, value)
+        result
+    }
+
+    // Don't log the password
+    override def toString = "SMTPConfig(" + properties + ", " + username + ")"
+}
+
+/**
+ * Spool of outgoing messages, used by EmailProcessor in asynchronous mode.
+ *
+ * - Each message is written to the spool directory before enqueue() returns, so that messages not yet sent when the
+ *   server stops are sent after it restarts.
+ * - A bounded pool of sender threads sends the messages. Connected transports are kept between messages with the same
+ *   SMTP settings, so most messages don't pay for connecting and authenticating.
+ * - Failed messages are retried with exponential backoff, then moved aside with the ".failed" extension. When only some
+ *   recipients failed, only those are retried, so the others don't receive the message twice.
+ *
+ * Messages can contain personal data, so the spool files are only readable by their owner. SMTP passwords are stored
+ * encrypted with the oxf.crypto.password key, and entries are deleted as soon as their message is sent or moved aside.
+ */
+class EmailSpool private (val directory: File) {
+
+    @volatile private var maxAttempts = DefaultMaxAttempts
+    @volatile private var retryDelay  = DefaultRetryDelay
+
+    private val threadCount = new AtomicInteger
+    private val executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory {
+        def newThread(runnable: Runnable) = {
+            val thread = new Thread(runnable, "Orbeon email sender " + threadCount.incrementAndGet())
+            thread.setDaemon(true)
+            thread
+        }
+    })
+
+    private class Connection(val session: Session, val transport: Transport) {
+        @volatile var lastUsed = System.currentTimeMillis
+
+        // SMTPTransport.isConnected() checks the connection with a NOOP command
+        def isUsable = System.currentTimeMillis - lastUsed < MaxIdleTime && transport.isConnected
+    }
+
+    private val idleConnections = new ConcurrentHashMap[SMTPConfig, ConcurrentLinkedQueue[Connection]]
+
+    private val pendingCount      = new AtomicLong
+    private val sentCount         = new AtomicLong
+    private val failedCount       = new AtomicLong
+    private val retryCount        = new AtomicLong
+    private val openedConnections = new AtomicLong
+    private val reusedConnections = new AtomicLong
+    private val totalSendNanos    = new AtomicLong
+    private val maxSendNanos      = new AtomicLong
+    private val totalDelayMillis  = new AtomicLong
+
+    // Close connections which have been idle for too long, as the server would close them anyway
+    executor.scheduleWithFixedDelay(new Runnable {
+        def run() = closeIdleConnections()
+    }, MaxIdleTime, MaxIdleTime, TimeUnit.MILLISECONDS)
+
+    /**
+     * Write the message to the spool and schedule it to be sent.
+     */
+    def enqueue(config: SMTPConfig, message: MimeMessage): Unit = {
+
+        // Done by Transport.send() in synchronous mode, and must be done before writing the message
+        message.saveChanges()
+
+        val id = "%013d-%s".format(System.currentTimeMillis, UUID.randomUUID)
+
+        // The entry is written first, so a message file always has its entry
+        writeAtomically(entryFile(id))(writeEntry(_, SpoolEntry(config, 0, System.currentTimeMillis)))
+        writeAtomically(messageFile(id))(message.writeTo(_))
+
+        pendingCount.incrementAndGet()
+        schedule(id, 0)
+
+        if (Logger.isDebugEnabled)
+            Logger.debug("Queued message " + id + ", " + statistics)
+    }
+
+    def statistics = {
+        val sent = sentCount.get
+        "pending: "            + pendingCount.get +
+        ", sent: "             + sent +
+        ", failed: "           + failedCount.get +
+        ", retries: "          + retryCount.get +
+        ", connections: "      + openedConnections.get + " opened, " + reusedConnections.get + " reused" +
+        ", average send: "     + (if (sent == 0) 0 else totalSendNanos.get / sent / 1000000) + " ms" +
+        ", max send: "         + maxSendNanos.get / 1000000 + " ms" +
+        ", average delivery: " + (if (sent == 0) 0 else totalDelayMillis.get / sent) + " ms"
+    }
+
+    private def configure(threads: Int, maxAttempts: Int, retryDelay: Long): Unit = {
+        executor.setCorePoolSize(threads max 1)
+        this.maxAttempts = maxAttempts max 1
+        this.retryDelay  = retryDelay max 0
+    }
+
+    // Schedule messages left in the spool by a previous run, oldest first
+    private def recover(): Unit = {
+        val files = Option(directory.listFiles) map (_.toList) getOrElse Nil
+
+        files filter (_.getName.endsWith(TempSuffix)) foreach (_.delete())
+
+        def idsWithSuffix(suffix: String) =
+            files map (_.getName) filter (_.endsWith(suffix)) map (_.dropRight(suffix.length))
+
+        val ids = idsWithSuffix(MessageSuffix).sorted
+
+        // Entries are written before messages, so an entry may have been left without its message
+        for (id ← idsWithSuffix(EntrySuffix).toSet -- ids)
+            entryFile(id).delete()
+
+        if (ids.nonEmpty)
+            Logger.info("Found " + ids.size + " messages to send in spool directory " + directory.getAbsolutePath)
+
+        for (id ← ids) {
+            pendingCount.incrementAndGet()
+            schedule(id, 0)
+        }
+    }
+
+    /**
+     * Stop sending messages and close the idle connections.
+     *
+     * Messages not yet sent stay in the spool directory and are sent when a spool is created again for that directory.
+     */
+    def shutdown(): Unit = {
+        executor.shutdownNow()
+        for (queue ← idleConnections.values.asScala; connection ← Iterator.continually(queue.poll()) takeWhile (_ ne null))
+            runQuietly(connection.transport.close())
+    }
+
+    // After shutdown, the message stays in the spool until the next start
+    private def schedule(id: String, delay: Long) =
+        if (! executor.isShutdown)
+            executor.schedule(new Runnable {
+                def run() = send(id)
+            }, delay, TimeUnit.MILLISECONDS)
+
+    private def send(id: String): Unit = {
+
+        val entry =
+            try readEntryFile(entryFile(id))
+            catch {
+                case NonFatal(t) ⇒
+                    Logger.error("Unable to read spool entry for message " + id, t)
+                    moveToFailed(id)
+                    return
+            }
+
+        try {
+            val connection = borrowConnection(entry.config)
+            try {
+                val message = useAndClose(new BufferedInputStream(new FileInputStream(messageFile(id))))(new MimeMessage(connection.session, _))
+
+                // After a partial failure, only the recipients which haven't received the message yet
+                val recipients =
+                    if (entry.recipients.nonEmpty)
+                        entry.recipients.toArray
+                    else
+                        message.getAllRecipients
+
+                val start = System.nanoTime
+                connection.transport.sendMessage(message, recipients)
+                updateSendTime(System.nanoTime - start)
+
+                releaseConnection(entry.config, connection)
+            } catch {
+                case NonFatal(t) ⇒
+                    runQuietly(connection.transport.close())
+                    throw t
+            }
+
+            messageFile(id).delete()
+            entryFile(id).delete()
+
+            totalDelayMillis.addAndGet(System.currentTimeMillis - entry.queued)
+            sentCount.incrementAndGet()
+            pendingCount.decrementAndGet()
+
+            if (Logger.isDebugEnabled)
+                Logger.debug("Sent message " + id + ", " + statistics)
+        } catch {
+            case NonFatal(t) ⇒
+                val attempts = entry.attempts + 1
+                if (isPermanentFailure(t) || attempts >= maxAttempts) {
+                    Logger.error("Unable to send message " + id + " after " + attempts + " attempt(s), moving it aside", t)
+                    moveToFailed(id)
+                } else {
+                    val delay = backoffDelay(retryDelay, attempts)
+                    Logger.warn("Unable to send message " + id + ", retrying in " + delay + " ms: " + t.getMessage)
+                    writeAtomically(entryFile(id))(writeEntry(_, entry.copy(attempts = attempts, recipients = unsentRecipients(t) getOrElse entry.recipients)))
+                    retryCount.incrementAndGet()
+                    schedule(id, delay)
+                }
+        }
+    }
+
+    private def moveToFailed(id: String): Unit = {
+        messageFile(id).renameTo(new File(directory, id + FailedSuffix))
+        entryFile(id).delete()
+        failedCount.incrementAndGet()
+        pendingCount.decrementAndGet()
+    }
+
+    private def idleQueue(config: SMTPConfig) = {
+        val newQueue = new ConcurrentLinkedQueue[Connection]
+        Option(idleConnections.putIfAbsent(config, newQueue)) getOrElse newQueue
+    }
+
+    private def borrowConnection(config: SMTPConfig): Connection = {
+        val queue = idleQueue(config)
+
+        var connection = queue.poll()
+        while ((connection ne null) && ! connection.isUsable) {
+            runQuietly(connection.transport.close())
+            connection = queue.poll()
+        }
+
+        if (connection ne null) {
+            reusedConnections.incrementAndGet()
+            connection
+        } else {
+            val session   = config.newSession
+            val transport = session.getTransport("smtp")
+            transport.connect()
+            openedConnections.incrementAndGet()
+            new Connection(session, transport)
+        }
+    }
+
+    private def releaseConnection(config: SMTPConfig, connection: Connection): Unit = {
+        connection.lastUsed = System.currentTimeMillis
+        if (executor.isShutdown)
+            runQuietly(connection.transport.close())
+        else
+            idleQueue(config).offer(connection)
+    }
+
+    private def closeIdleConnections(): Unit =
+        for (queue ← idleConnections.values.asScala; connection ← queue.asScala)
+            if (System.currentTimeMillis - connection.lastUsed >= MaxIdleTime && queue.remove(connection))
+                runQuietly(connection.transport.close())
+
+    private def updateSendTime(nanos: Long): Unit = {
+        totalSendNanos.addAndGet(nanos)
+        var max = maxSendNanos.get
+        while (nanos > max && ! maxSendNanos.compareAndSet(max, nanos))
+            max = maxSendNanos.get
+    }
+
+    private def messageFile(id: String) = new File(directory, id + MessageSuffix)
+    private def entryFile(id: String)   = new File(directory, id + EntrySuffix)
+
+    // Write to a temporary file, then rename it, so that recovery never sees a partial file
+    private def writeAtomically(file: File)(write: OutputStream ⇒ Unit): Unit = {
+        val tempFile = File.createTempFile(file.getName, TempSuffix, directory)
+        try {
+            setOwnerOnly(tempFile)
+            useAndClose(new BufferedOutputStream(new FileOutputStream(tempFile)))(write)
+
+            // Renaming fails on some platforms if the destination exists
+            if (! tempFile.renameTo(file) && ! (file.delete() && tempFile.renameTo(file)))
+                throw new OXFException("Cannot rename spooled message file to: " + file.getAbsolutePath)
+        } finally {
+            if (tempFile.exists)
+                tempFile.delete()
+        }
+    }
+}
+
+object EmailSpool {
+
+    private val Logger = LoggerFactory.createLogger(classOf[EmailSpool])
+
+    val DefaultThreads     = 2
+    val DefaultMaxAttempts = 5
+    val DefaultRetryDelay  = 60000L
+
+    private val MaxRetryDelay = 3600000L
+    private val MaxIdleTime   = 30000L
+
+    private val MessageSuffix = ".eml"
+    private val EntrySuffix   = ".properties"
+    private val FailedSuffix  = ".failed"
+    private val TempSuffix    = ".tmp"
+
+    private val SMTPPropertyPrefix = "smtp."
+
+    private var spools = Map[File, EmailSpool]()
+
+    /**
+     * Return the spool for the given directory, creating it and scheduling the messages it contains if needed.
+     */
+    def getInstance(directory: File, threads: Int, maxAttempts: Int, retryDelay: Long): EmailSpool = synchronized {
+        spools.get(directory) match {
+            case Some(spool) ⇒
+                spool.configure(threads, maxAttempts, retryDelay)
+                spool
+            case None ⇒
+                if (! directory.exists && ! directory.mkdirs() && ! directory.isDirectory)
+                    throw new OXFException("Cannot create email spool directory: " + directory.getAbsolutePath)
+                setOwnerOnly(directory)
+
+                val spool = new EmailSpool(directory)
+                spool.configure(threads, maxAttempts, retryDelay)
+                spool.recover()
+                spools += directory → spool
+                spool
+        }
+    }
+
+    /**
+     * Stop all the spools, typically when the web app is destroyed.
+     */
+    def shutdown(): Unit = synchronized {
+        spools.values foreach (_.shutdown())
+        spools = Map()
+    }
+
+    // State of a spooled message besides the message itself
+    // Recipients, if not empty, replace the recipients of the message, after some of them already received it
+    case class SpoolEntry(config: SMTPConfig, attempts: Int, queued: Long, recipients: List[Address] = Nil)
+
+    def writeEntry(os: OutputStream, entry: SpoolEntry): Unit = {
+        val properties = new JProperties
+        for ((name, value) ← entry.config.properties)
+            properties.setProperty(SMTPPropertyPrefix + name, value)
+        entry.config.username foreach (properties.setProperty("username", _))
+        entry.config.password foreach (password ⇒ properties.setProperty("encrypted-password", SecureUtils.encrypt(password.getBytes("UTF-8"))))
+        properties.setProperty("attempts", entry.attempts.toString)
+        properties.setProperty("queued",   entry.queued.toString)
+        if (entry.recipients.nonEmpty)
+            properties.setProperty("recipients", InternetAddress.toString(entry.recipients.toArray))
+        properties.store(os, null)
+    }
+
+    def readEntry(is: InputStream): SpoolEntry = {
+        val properties = new JProperties
+        properties.load(is)
+
+        val names = properties.stringPropertyNames.asScala
+        val smtpProperties =
+            for (name ← names if name.startsWith(SMTPPropertyPrefix))
+                yield name.substring(SMTPPropertyPrefix.length) → properties.getProperty(name)
+
+        SpoolEntry(
+            SMTPConfig(
+                smtpProperties.toMap,
+                Option(properties.getProperty("username")),
+                Option(properties.getProperty("encrypted-password")) map (encrypted ⇒ new String(SecureUtils.decrypt(encrypted), "UTF-8"))
+            ),
+            properties.getProperty("attempts").toInt,
+            properties.getProperty("queued").toLong,
+            Option(properties.getProperty("recipients")) map (InternetAddress.parse(_).toList) getOrElse Nil
+        )
+    }
+
+    // Only the owner can read and write, and list if a directory
+    // NOTE: The owner permissions are set after removing all permissions, as there is no way to do both at once.
+    private def setOwnerOnly(file: File): Unit = {
+        file.setReadable(false, false)
+        file.setWritable(false, false)
+        file.setExecutable(false, false)
+        file.setReadable(true, true)
+        file.setWritable(true, true)
+        if (file.isDirectory)
+            file.setExecutable(true, true)
+    }
+
+    private def readEntryFile(file: File): SpoolEntry =
+        useAndClose(new BufferedInputStream(new FileInputStream(file)))(readEntry)
+
+    // Delay before the given attempt, doubling at each attempt
+    def backoffDelay(retryDelay: Long, attempt: Int) =
+        if (attempt <= 1)
+            retryDelay min MaxRetryDelay
+        else
+            (retryDelay.toDouble * math.pow(2, attempt - 1)).toLong min MaxRetryDelay
+
+    // Nothing is left to retry when the server rejected the remaining recipients, or all valid recipients received the
+    // message
+    def isPermanentFailure(t: Throwable) = t match {
+        case e: SendFailedException ⇒
+            def nonEmpty(addresses: Array[Address]) = Option(addresses) exists (_.nonEmpty)
+            ! nonEmpty(e.getValidUnsentAddresses) && (nonEmpty(e.getInvalidAddresses) || nonEmpty(e.getValidSentAddresses))
+        case _ ⇒
+            false
+    }
+
+    // Recipients to retry when the message was sent to some recipients but not to others
+    def unsentRecipients(t: Throwable): Option[List[Address]] = t match {
+        case e: SendFailedException if Option(e.getValidSentAddresses) exists (_.nonEmpty) ⇒
+            Some(Option(e.getValidUnsentAddresses) map (_.toList) getOrElse Nil)
+        case _ ⇒
+            None
+    }
+}
@@ -13,12 +13,15 @@
  */
 package org.orbeon.oxf.processor.pdf
 
+import com.lowagie.text.Document
 import com.lowagie.text.Image
 import com.lowagie.text.Rectangle
 import com.lowagie.text.pdf._
 import org.dom4j.Element
 import org.orbeon.oxf.common.OXFException
 import org.orbeon.oxf.pipeline.api.{FunctionLibrary, PipelineContext}
+import org.orbeon.oxf.cache.{InternalCacheKey, ObjectCache}
+import org.orbeon.oxf.processor.CacheableInputReader
 import org.orbeon.oxf.processor.ProcessorImpl
 import org.orbeon.oxf.processor.ProcessorInput
 import org.orbeon.oxf.processor.ProcessorInputOutputInfo
@@ -59,23 +62,77 @@ class PDFTemplateProcessor extends HttpBinarySerializer with Logging {// TODO: H
         val configDocument = readCacheInputAsDOM4J(pipelineContext, "model")// TODO: should we use "config"?
         val configRoot = configDocument.getRootElement
         val templateRoot = configRoot.element("template")
+        val templateHref = templateRoot.attributeValue("href")
 
         val instanceDocument = readInputAsDOM4J(pipelineContext, input)
-        val instanceDocumentInfo = new DocumentWrapper(instanceDocument, null, XPath.GlobalConfiguration)
 
-        // Create PDF reader
-        val templateReader = {
-            val templateHref = templateRoot.attributeValue("href")
-            Option(ProcessorImpl.getProcessorInputSchemeInputName(templateHref)) match {
-                case Some(inputName) ⇒
+        if (templateRoot.attributeValue("batch") == "true") {
+            // Batch mode: each child element of the data root is an instance document, and the resulting pages are
+            // concatenated into a single PDF, all stamped against the same parsed template
+            val instances = Dom4jUtils.elements(instanceDocument.getRootElement).asScala map (Dom4jUtils.createDocumentCopyParentNamespaces(_))
+
+            writeBatch(instances, outputStream) { (instance, os) ⇒
+                stampTemplate(pipelineContext, configRoot, readTemplate(pipelineContext, templateHref), instance, os)
+            }
+        } else
+            stampTemplate(pipelineContext, configRoot, readTemplate(pipelineContext, templateHref), instanceDocument, outputStream)
+    }
+
+    // Return a PDF reader for the template
+    //
+    // The parsed template is cached, based on the validity of the input if the template comes from an input, or based
+    // on the last modification date of the URL otherwise. Stamping modifies the reader, so each call returns its own
+    // copy of the cached reader.
+    private def readTemplate(pipelineContext: PipelineContext, templateHref: String): PdfReader = {
+
+        def readTemplateInput(inputName: String) =
+            readCacheInputAsObject(pipelineContext, getInputByName(inputName), new CacheableInputReader[PdfReader] {
+                def read(pipelineContext: PipelineContext, input: ProcessorInput) = {
                     val os = new ByteArrayOutputStream
-                    readInputAsSAX(pipelineContext, inputName, new BinaryTextXMLReceiver(os))
+                    ProcessorImpl.readInputAsSAX(pipelineContext, input, new BinaryTextXMLReceiver(os))
                     new PdfReader(os.toByteArray)
+                }
+            })
+
+        def readTemplateURL = {
+            val url = URLFactory.createURL(templateHref)
+
+            // Don't cache if the last modification date is unknown
+            Option(NetUtils.getLastModifiedAsLong(url)) match {
+                case Some(lastModified) ⇒
+                    val cache = ObjectCache.instance(TemplateCacheName, TemplateCacheDefaultSize)
+                    val key   = new InternalCacheKey(TemplateCacheName, url.toExternalForm)
+
+                    Option(cache.findValid(key, lastModified).asInstanceOf[PdfReader]) getOrElse {
+                        val reader = new PdfReader(url)
+                        cache.add(key, lastModified, reader)
+                        reader
+                    }
                 case None ⇒
-                    new PdfReader(URLFactory.createURL(templateHref))
+                    new PdfReader(url)
             }
         }
 
+        val cachedReader =
+            Option(ProcessorImpl.getProcessorInputSchemeInputName(templateHref)) match {
+                case Some(inputName) ⇒ readTemplateInput(inputName)
+                case None            ⇒ readTemplateURL
+            }
+
+        new PdfReader(cachedReader)
+    }
+
+    // Stamp the given instance against the template and write the resulting PDF to the output stream
+    private def stampTemplate(
+            pipelineContext: PipelineContext,
+            configRoot: Element,
+            templateReader: PdfReader,
+            instanceDocument: org.dom4j.Document,
+            outputStream: OutputStream): Unit = {
+
+        val templateRoot = configRoot.element("template")
+        val instanceDocumentInfo = new DocumentWrapper(instanceDocument, null, XPath.GlobalConfiguration)
+
         useAndClose(new PdfStamper(templateReader, outputStream)) { stamper ⇒
 
             stamper.setFormFlattening(true)
@@ -394,6 +451,34 @@ object PDFTemplateProcessor {
     val Logger = LoggerFactory.createLogger(classOf[PDFTemplateProcessor])
     val PDFTemplateModelNamespaceURI = "http://www.orbeon.com/oxf/pdf-template/model"
 
+    private val TemplateCacheName = "cache.pdf-template"
+    private val TemplateCacheDefaultSize = 20
+
+    // Stamp each instance and write the concatenation of the resulting pages to the output stream
+    //
+    // A PDF must have at least one page, so an empty batch is an error, reported before anything is written.
+    def writeBatch(instances: Seq[org.dom4j.Document], outputStream: OutputStream)(stamp: (org.dom4j.Document, OutputStream) ⇒ Unit): Unit = {
+
+        if (instances.isEmpty)
+            throw new OXFException("PDF template batch: the data input must contain at least one instance")
+
+        val document = new Document
+        val copy = new PdfCopy(document, outputStream)
+        document.open()
+
+        for (instance ← instances) {
+            val os = new ByteArrayOutputStream
+            stamp(instance, os)
+
+            val stampedReader = new PdfReader(os.toByteArray)
+            for (pageNumber ← 1 to stampedReader.getNumberOfPages)
+                copy.addPage(copy.getImportedPage(stampedReader, pageNumber))
+            copy.freeReader(stampedReader)
+        }
+
+        document.close()
+    }
+
     def createBarCode(barcodeType: String) = barcodeType match {
         case "CODE39"  ⇒ new Barcode39
         case "CODE128" ⇒ new Barcode128
@@ -464,6 +549,7 @@ object PDFTemplateProcessor {
     }
 
     // Create a font
+    // NOTE: BaseFont.createFont() caches fonts by name, encoding and embedding, so fonts are reused across requests
     def createFont(fontFamilyOrPath: String, embed: Boolean) =
         BaseFont.createFont(fontFamilyOrPath, findFontEncoding(fontFamilyOrPath), embed)
 
@@ -25,6 +25,8 @@ import java.lang.{Boolean ⇒ JBoolean, Integer ⇒ JInteger}
 import collection.JavaConverters._
 import collection.mutable
 import org.orbeon.oxf.util.ScalaUtils.{split, BooleanWrapper}
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
 
 /**
  * Represent a set of properties.
@@ -41,6 +43,13 @@ class PropertySet {
     private var exactProperties = Map[String, Property]()
     private val wildcardProperties = new PropertyNode
 
+    // Memoized wildcard lookups, including negative results, by property name
+    // A new PropertySet is created when properties are reloaded, so entries don't need to be invalidated otherwise.
+    private val resolvedWildcards = new ConcurrentHashMap[String, Option[Property]]
+
+    private val lookupCount = new AtomicLong
+    private val memoizedCount = new AtomicLong
+
     /**
      * Set a property. Used by PropertyStore.
      *
@@ -67,6 +76,8 @@ class PropertySet {
         
         // Store value
         currentNode.property = property
+
+        resolvedWildcards.clear()
     }
 
     def keySet: JSet[String] = exactProperties.keySet.asJava
@@ -168,7 +179,19 @@ class PropertySet {
         
         def getExact = exactProperties.get(name)
         
-        def getWildcard = Option(getPropertyWorker(wildcardProperties, split[List](name, "."), 0))
+        def getWildcard = {
+            lookupCount.incrementAndGet()
+            resolvedWildcards.get(name) match {
+                case null ⇒
+                    val result = Option(getPropertyWorker(wildcardProperties, split[List](name, "."), 0))
+                    if (resolvedWildcards.size < MaxResolvedWildcards)
+                        resolvedWildcards.put(name, result)
+                    result
+                case result ⇒
+                    memoizedCount.incrementAndGet()
+                    result
+            }
+        }
         
         def checkType(p: Property) = 
             if ((typ ne null) && typ != p.typ)
@@ -179,6 +202,10 @@ class PropertySet {
         getExact orElse getWildcard map checkType orNull
     }
     
+    // Number of wildcard lookups and of those which were memoized, for monitoring
+    def getWildcardLookupCount   = lookupCount.get
+    def getWildcardMemoizedCount = memoizedCount.get
+
     /* All getters */
 
     private def getPropertyValue(name: String, typ: QName): AnyRef =
@@ -253,6 +280,9 @@ class PropertySet {
 // Different name to help with Java callers
 object JPropertySet {
 
+    // Names are mostly fixed in code, but some contain app and form names, so bound the memoization
+    val MaxResolvedWildcards = 10000
+
     case class Property(typ: QName, value: AnyRef, namespaces: Map[String, String]) {
 
         private var _associatedValue: Option[Any] = None
@@ -13,13 +13,19 @@
  */
 package org.orbeon.oxf.servlet
 
+import java.lang.reflect.{InvocationTargetException, Method}
+import java.util.concurrent.{RejectedExecutionException, TimeUnit, LinkedBlockingQueue, ThreadPoolExecutor}
+import java.util.regex.Pattern
+import org.orbeon.exception.OrbeonFormatter
 import org.orbeon.oxf.common.OXFException
 import org.orbeon.oxf.pipeline.api._
-import javax.servlet.ServletException
+import javax.servlet.{ServletRequest, ServletException}
 import javax.servlet.http._
 import collection.JavaConverters._
 import org.orbeon.oxf.webapp.{WebAppContext, ProcessorService, ServletPortlet}
 import org.orbeon.oxf.util.ScalaUtils._
+import scala.util.Try
+import scala.util.control.NonFatal
 
 // For backward compatibility
 class OrbeonServletDelegate extends OrbeonServlet
@@ -39,6 +45,16 @@ class OrbeonServlet extends HttpServlet with ServletPortlet {
     val HttpAcceptMethodsParam = "oxf.http.accept-methods"
     val DefaultMethods = "get post head"
 
+    // Optional asynchronous mode, see ServletAsync
+    val AsyncPathsParam        = "oxf.servlet.async.paths"
+    val AsyncThreadsParam      = "oxf.servlet.async.threads"
+    val AsyncQueueSizeParam    = "oxf.servlet.async.queue-size"
+    val DefaultAsyncThreads    = 20
+    val DefaultAsyncQueueSize  = 1000
+
+    // Worker pool for asynchronous requests, if enabled
+    private var asyncExecutor: Option[ThreadPoolExecutor] = None
+
     // Accepted methods for this servlet
     private lazy val acceptedMethods =
         initParameters.getOrElse(HttpAcceptMethodsParam, DefaultMethods) split """[\s,]+""" filter (_.nonEmpty) toSet
@@ -54,11 +70,20 @@ class OrbeonServlet extends HttpServlet with ServletPortlet {
     override def init(): Unit =
         withRootException("initialization", new ServletException(_)) {
             init(WebAppContext(getServletContext), Some("oxf.servlet-initialized-processor." → "oxf.servlet-initialized-processor.input."))
+
+            if (asyncPaths.isDefined && ServletAsync.isAvailable) {
+                val threads   = initParameters.get(AsyncThreadsParam)   map (_.toInt) getOrElse DefaultAsyncThreads
+                val queueSize = initParameters.get(AsyncQueueSizeParam) map (_.toInt) getOrElse DefaultAsyncQueueSize
+                asyncExecutor = Some(new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue[Runnable](queueSize)))
+                ProcessorService.Logger.info(logPrefix + " - Asynchronous processing enabled with " + threads + " threads.")
+            }
         }
 
     // Servlet destroy
     override def destroy(): Unit =
         withRootException("destruction", new ServletException(_)) {
+            asyncExecutor foreach (_.shutdown())
+            asyncExecutor = None
             destroy(Some("oxf.servlet-destroyed-processor." → "oxf.servlet-destroyed-processor.input."))
         }
 
@@ -69,8 +94,78 @@ class OrbeonServlet extends HttpServlet with ServletPortlet {
             if (! acceptedMethods(httpMethod.toLowerCase))
                 throw new OXFException("HTTP method not accepted: " + httpMethod + ". You can configure methods in your web.xml using the parameter: " + HttpAcceptMethodsParam)
 
-            val pipelineContext = new PipelineContext
-            val externalContext = new ServletExternalContext(pipelineContext, webAppContext, request, response)
-            processorService.service(pipelineContext, externalContext)
+            def process(): Unit = {
+                val pipelineContext = new PipelineContext
+                val externalContext = new ServletExternalContext(pipelineContext, webAppContext, request, response)
+                processorService.service(pipelineContext, externalContext)
+            }
+
+            asyncExecutor match {
+                case Some(executor) if isAsyncPath(request) && ServletAsync.isAsyncSupported(request) ⇒
+                    processAsync(executor, request, response, process())
+                case _ ⇒
+                    process()
+            }
         }
+
+    // Paths of requests which can wait for a long time, e.g. for a document lock or a service
+    private lazy val asyncPaths = initParameters.get(AsyncPathsParam) map (Pattern.compile(_))
+
+    private def isAsyncPath(request: HttpServletRequest) =
+        asyncPaths exists (_.matcher(request.getServletPath + Option(request.getPathInfo).getOrElse("")).matches)
+
+    // Release the container thread and process the request on the worker pool. If the pool is saturated, process the
+    // request on the container thread, so that the load on the server is bounded.
+    private def processAsync(executor: ThreadPoolExecutor, request: HttpServletRequest, response: HttpServletResponse, process: ⇒ Unit): Unit = {
+
+        val asyncContext = ServletAsync.startAsync(request)
+
+        val task = new Runnable {
+            def run() =
+                try process
+                catch { case NonFatal(t) ⇒
+                    ProcessorService.Logger.error(OrbeonFormatter.format(t))
+                    if (! response.isCommitted)
+                        response.sendError(500)
+                } finally
+                    ServletAsync.complete(asyncContext)
+        }
+
+        try executor.execute(task)
+        catch { case e: RejectedExecutionException ⇒ task.run() }
+    }
+}
+
+/**
+ * Servlet 3 asynchronous processing.
+ *
+ * Orbeon Forms compiles against the Servlet 2.x API, so the Servlet 3 methods are called by reflection when the
+ * container provides them. The request must also be async-supported, which requires the servlet and all the filters
+ * involved to be declared with <async-supported>true</async-supported> in a Servlet 3 web.xml.
+ */
+private object ServletAsync {
+
+    private val isAsyncSupportedMethod = Try(classOf[ServletRequest].getMethod("isAsyncSupported")).toOption
+    private val startAsyncMethod       = Try(classOf[ServletRequest].getMethod("startAsync")).toOption
+    private val setTimeoutMethod       = startAsyncMethod map (_.getReturnType.getMethod("setTimeout", classOf[Long]))
+    private val completeMethod         = startAsyncMethod map (_.getReturnType.getMethod("complete"))
+
+    def isAvailable = isAsyncSupportedMethod.isDefined && startAsyncMethod.isDefined
+
+    def isAsyncSupported(request: ServletRequest) =
+        isAsyncSupportedMethod exists (invoke(_, request).asInstanceOf[Boolean])
+
+    // Start asynchronous processing without timeout, as the application handles its own timeouts
+    def startAsync(request: ServletRequest): AnyRef = {
+        val asyncContext = invoke(startAsyncMethod.get, request)
+        invoke(setTimeoutMethod.get, asyncContext, 0L.asInstanceOf[AnyRef])
+        asyncContext
+    }
+
+    def complete(asyncContext: AnyRef): Unit =
+        invoke(completeMethod.get, asyncContext)
+
+    private def invoke(method: Method, target: AnyRef, args: AnyRef*) =
+        try method.invoke(target, args: _*)
+        catch { case e: InvocationTargetException ⇒ throw e.getCause }
 }
\ No newline at end of file
@@ -29,6 +29,9 @@ import collection.{immutable ⇒ i, mutable ⇒ m}
 import org.apache.commons.fileupload.FileUploadBase.SizeLimitExceededException
 import org.orbeon.errorified.Exceptions
 import scala.util.control.NonFatal
+import org.orbeon.oxf.properties.Properties
+import org.orbeon.oxf.xml.XMLConstants
+import java.io.File
 
 
 /**
@@ -39,6 +42,10 @@ object Multipart {
     private val UPLOAD_PROGRESS_SESSION_KEY = "orbeon.upload.progress."
     private val STANDARD_PARAMETER_ENCODING = "utf-8"
 
+    private val StreamingUploadProperty          = "streaming-upload"
+    private val StreamingUploadDirectoryProperty = "streaming-upload-directory"
+    private val StreamingUploadDigestProperty    = "streaming-upload-digest"
+
     // For Java callers
     // Return fully successful requests only
     def jGetParameterMapMultipart(pipelineContext: PipelineContext, request: Request, headerEncoding: String): JMap[String, Array[AnyRef]] =
@@ -76,11 +83,7 @@ object Multipart {
         require(request ne null)
         require(headerEncoding ne null)
 
-        // Read properties
-        // NOTE: We use properties scoped in the Request generator for historical reasons. Not too good.
-        val maxMemorySize = RequestGenerator.getMaxMemorySizeProperty
-
-        val upload = new ServletFileUpload(new DiskFileItemFactory(maxMemorySize, SystemUtils.getTemporaryDirectory))
+        val upload = new ServletFileUpload(fileItemFactory)
 
         upload.setHeaderEncoding(headerEncoding)
 
@@ -115,6 +118,32 @@ object Multipart {
         }
     }
 
+    // Create the factory for parts
+    //
+    // By default, parts are kept in memory up to a threshold, then written to temporary files. With streaming, parts
+    // are written once, straight to a configured directory, and their size and optional digest are computed on the fly.
+    private def fileItemFactory: FileItemFactory =
+        streamingUploadDirectory match {
+            case Some(directory) ⇒
+                new StreamingFileItemFactory(directory, nonEmptyOrNone(requestPropertySet.getString(StreamingUploadDigestProperty)))
+            case None ⇒
+                new DiskFileItemFactory(RequestGenerator.getMaxMemorySizeProperty, SystemUtils.getTemporaryDirectory)
+        }
+
+    // Directory where streaming uploads are stored, if streaming is enabled
+    def streamingUploadDirectory =
+        requestPropertySet.getBoolean(StreamingUploadProperty, default = false) option
+            (nonEmptyOrNone(requestPropertySet.getString(StreamingUploadDirectoryProperty)) map (new File(_).getAbsoluteFile) getOrElse SystemUtils.getTemporaryDirectory)
+
+    // Whether the given file was stored by a streaming upload
+    // For Java callers
+    def isStreamingUploadFile(file: File) =
+        streamingUploadDirectory exists (_ == file.getAbsoluteFile.getParentFile)
+
+    // NOTE: We use properties scoped in the Request generator for historical reasons. Not too good.
+    private def requestPropertySet =
+        Properties.instance.getPropertySet(XMLConstants.REQUEST_PROCESSOR_QNAME)
+
     private def getProgressSessionKey(uuid: String, fieldName: String) =
         UPLOAD_PROGRESS_SESSION_KEY + uuid + "." + fieldName
 
@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.util
+
+import java.io.{File, FilterOutputStream, OutputStream}
+import java.security.MessageDigest
+import org.apache.commons.fileupload.{FileItem, FileItemFactory}
+import org.apache.commons.fileupload.disk.DiskFileItem
+
+/**
+ * FileItemFactory which streams each part straight to a file in the given directory.
+ *
+ * Unlike DiskFileItemFactory with a memory threshold, no part content is ever buffered in memory, and the size and
+ * optional digest of each part are computed as the part is written, so they don't require reading the file again.
+ *
+ * Items are DiskFileItem, so that code handling DiskFileItem store locations (e.g. RequestGenerator.urlForFileItem)
+ * works unchanged. RequestGenerator outputs the digest as a content-digest element next to content-length.
+ */
+class StreamingFileItemFactory(directory: File, digestAlgorithm: Option[String]) extends FileItemFactory {
+
+    require(directory ne null)
+
+    // Check right away that the algorithm is supported
+    digestAlgorithm foreach (MessageDigest.getInstance(_))
+
+    def createItem(fieldName: String, contentType: String, isFormField: Boolean, fileName: String): FileItem =
+        new StreamingFileItem(fieldName, contentType, isFormField, fileName, directory, digestAlgorithm)
+}
+
+class StreamingFileItem(
+        fieldName: String,
+        contentType: String,
+        isFormField: Boolean,
+        fileName: String,
+        directory: File,
+        val digestAlgorithm: Option[String])
+    extends DiskFileItem(fieldName, contentType, isFormField, fileName, 0, directory) { // threshold of 0: always on disk
+
+    private var _receivedSize = 0L
+    private var _digest: Option[Array[Byte]] = None
+
+    // Number of bytes written so far
+    def receivedSize = _receivedSize
+
+    // Hexadecimal digest of the content, available once the output stream is closed
+    def digest = _digest map (NumberUtils.toHexString(_))
+
+    // For Java callers
+    def digestOrNull          = digest.orNull
+    def digestAlgorithmOrNull = digestAlgorithm.orNull
+
+    override def getOutputStream: OutputStream = {
+
+        val messageDigest = digestAlgorithm map (MessageDigest.getInstance(_))
+
+        new FilterOutputStream(super.getOutputStream) {
+
+            override def write(b: Int): Unit = {
+                out.write(b)
+                messageDigest foreach (_.update(b.toByte))
+                _receivedSize += 1
+            }
+
+            // FilterOutputStream writes arrays one byte at a time
+            override def write(b: Array[Byte], off: Int, len: Int): Unit = {
+                out.write(b, off, len)
+                messageDigest foreach (_.update(b, off, len))
+                _receivedSize += len
+            }
+
+            override def close(): Unit = {
+                super.close()
+                if (_digest.isEmpty)
+                    _digest = messageDigest map (_.digest)
+            }
+        }
+    }
+}
@@ -19,6 +19,10 @@ import org.apache.commons.lang3.StringUtils
 import org.orbeon.oxf.common.{OXFException, Version}
 import org.orbeon.oxf.properties.Properties
 import org.orbeon.oxf.pipeline.InitUtils
+import org.orbeon.oxf.fb.PublishOps
+import org.orbeon.oxf.processor.EmailSpool
+import org.orbeon.oxf.processor.serializer.legacy.XSLFOSerializer
+import org.orbeon.oxf.xforms.state.XFormsStaticStateDiskCache
 import collection.JavaConverters._
 
 // Orbeon web app initialization
@@ -77,5 +81,20 @@ object Orbeon {
 
         // 5. Register processor definitions with the default XML Processor Registry
         InitUtils.processorDefinitions
+
+        // 6. Stop background threads when the web app is destroyed, so they don't keep its class loader alive
+        context.addListener(new WebAppListener {
+            def webAppDestroyed() = shutdown()
+        })
+    }
+
+    // Stop background threads and release shared resources
+    private def shutdown(): Unit = {
+        logger.info("Stopping background tasks")
+        Properties.shutdown()
+        EmailSpool.shutdown()
+        XSLFOSerializer.shutdown()
+        PublishOps.shutdown()
+        XFormsStaticStateDiskCache.shutdown()
     }
 }
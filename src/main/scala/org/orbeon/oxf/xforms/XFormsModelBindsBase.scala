@@ -71,6 +71,33 @@ abstract class XFormsModelBindsBase(model: XFormsModel) extends Logging {
                     )
                 }
     
+    def handleCalculateBind(bindNode: BindNode): Unit
+
+    // Evaluate calculate binds in the given order, where each bind follows the calculate binds it depends on. As
+    // calculated values are set, the changeset grows, so a bind is evaluated only if something it depends on changed,
+    // including because of a calculate bind evaluated earlier in the same pass.
+    protected def applyCalculateBindsInOrder(order: Seq[StaticBind]): Unit = {
+
+        val bindNodesByBind = m.HashMap[StaticBind, m.ArrayBuffer[BindNode]]()
+        iterateBinds(new BindRunner {
+            def applyBind(bindNode: BindNode): Unit =
+                if (bindNode.staticBind.getCalculate ne null)
+                    bindNodesByBind.getOrElseUpdate(bindNode.staticBind, m.ArrayBuffer[BindNode]()) += bindNode
+        })
+
+        var evaluated = 0
+        var skipped   = 0
+
+        for (staticBind ← order; bindNodes ← bindNodesByBind.get(staticBind))
+            if (dependencies.requireModelMIPUpdate(staticModel, staticBind, Model.CALCULATE, null)) {
+                bindNodes foreach handleCalculateBind
+                evaluated += bindNodes.size
+            } else
+                skipped += bindNodes.size
+
+        debug("applied calculate binds in dependency order", Seq("evaluated", evaluated.toString, "skipped", skipped.toString))
+    }
+
     // Rebuild all binds, computing all bind nodesets (but not computing the MIPs)
     def rebuild(): Unit =
         withDebug("performing rebuild", List("model id" → model.getEffectiveId)) {
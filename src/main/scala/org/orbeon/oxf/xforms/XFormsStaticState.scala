@@ -17,6 +17,7 @@ import org.orbeon.oxf.util.IndentedLogger
 import state.AnnotatedTemplate
 import org.orbeon.oxf.xml.XMLReceiverHelper
 import org.orbeon.oxf.util.XPath.CompiledExpression
+import org.orbeon.oxf.xforms.analysis.PathIds
 
 trait XFormsStaticState {
 
@@ -28,6 +29,7 @@ trait XFormsStaticState {
     def template: Option[AnnotatedTemplate]
 
     def topLevelPart: PartAnalysis
+    def pathIds: PathIds
 
     def isCacheDocument: Boolean
     def isClientStateHandling: Boolean
@@ -49,6 +49,9 @@ class XFormsStaticStateImpl(
 
     implicit val getIndentedLogger = Loggers.getIndentedLogger("analysis")
 
+    // Ids of the instance paths used by the analysis of all parts
+    val pathIds = new PathIds
+
     // Create top-level part once vals are all initialized
     val topLevelPart = new PartAnalysisImpl(this, None, startScope, metadata, staticStateDocument)
 
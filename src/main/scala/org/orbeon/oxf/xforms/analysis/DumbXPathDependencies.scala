@@ -18,6 +18,7 @@ import org.orbeon.oxf.xforms.XFormsModel
 import org.orbeon.oxf.xforms.analysis.model.{StaticBind, Model}
 import org.orbeon.saxon.om.NodeInfo
 import org.orbeon.oxf.xforms.analysis.model.ValidationLevels._
+import java.util.{List ⇒ JList}
 
 /**
  * This implementation of dependencies simply says that everything must be updated all the time.
@@ -25,6 +26,7 @@ import org.orbeon.oxf.xforms.analysis.model.ValidationLevels._
 class DumbXPathDependencies extends XPathDependencies {
     def markValueChanged(model: XFormsModel, nodeInfo: NodeInfo) = ()
     def markStructuralChange(model: XFormsModel, instance: XFormsInstance) = ()
+    def markStructuralChange(model: XFormsModel, instance: XFormsInstance, parents: JList[NodeInfo]) = ()
     def rebuildDone(model: Model) = ()
     def recalculateDone(model: Model) = ()
     def revalidateDone(model: Model) = ()
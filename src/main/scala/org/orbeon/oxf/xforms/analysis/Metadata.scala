@@ -108,6 +108,8 @@ trait Bindings {
 
     def getBindingIncludesJava = bindingIncludes.asJava
 
+    def bindingsLastModified = lastModified
+
     def updateBindingsLastModified(lastModified: Long) {
         this.lastModified = math.max(this.lastModified, lastModified)
     }
@@ -0,0 +1,186 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.analysis
+
+import java.util.BitSet
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import org.orbeon.oxf.xforms.MapSet
+import org.orbeon.saxon.om.NodeInfo
+import org.w3c.dom.Node.{ATTRIBUTE_NODE, DOCUMENT_NODE}
+
+/**
+ * Interned ids for instance paths.
+ *
+ * Paths produced by the static analysis, of the form 3142/1425/@1232 for a given instance, are stored in a trie per
+ * instance, keyed by fingerprint. Each trie node, that is each path found in an analysis and each of its prefixes, gets
+ * a unique integer id.
+ *
+ * When a node changes, the trie is walked from the root element down to the node, which yields the ids of the node's
+ * path and of all its ancestors' paths without creating any path string. Paths unknown to the analysis have no id and
+ * are skipped, as no analysis can depend on them anyway. For this to hold, analyses must intern their paths when they
+ * are created.
+ *
+ * Each static state has its own ids, so that they are freed with the static state, and so that the width of the
+ * changesets only depends on the paths of one form.
+ */
+class PathIds {
+
+    import PathIds._
+
+    private class TrieNode {
+        val id       = nextId.getAndIncrement
+        val children = new ConcurrentHashMap[Int, TrieNode]
+
+        def child(key: Int): TrieNode = {
+            val existing = children.get(key)
+            if (existing ne null)
+                existing
+            else {
+                val newNode = new TrieNode
+                val previous = children.putIfAbsent(key, newNode)
+                if (previous ne null) previous else newNode
+            }
+        }
+    }
+
+    private val nextId = new AtomicInteger(0)
+    private val roots  = new ConcurrentHashMap[String, TrieNode] // instance prefixed id → root element
+
+    private def root(instancePrefixedId: String) = {
+        val existing = roots.get(instancePrefixedId)
+        if (existing ne null)
+            existing
+        else {
+            val newRoot = new TrieNode
+            val previous = roots.putIfAbsent(instancePrefixedId, newRoot)
+            if (previous ne null) previous else newRoot
+        }
+    }
+
+    // Trie nodes from the root element down to the given path, creating them if needed
+    private def trieNodes(instancePrefixedId: String, path: String): List[TrieNode] =
+        if (path.isEmpty)
+            List(root(instancePrefixedId))
+        else
+            path.split('/').foldLeft(List(root(instancePrefixedId)))((nodes, token) ⇒ nodes.head.child(tokenKey(token)) :: nodes)
+
+    // Return the id of the given path, interning the path if needed
+    def pathId(instancePrefixedId: String, path: String): Int =
+        trieNodes(instancePrefixedId, path).head.id
+
+    // Return the sorted ids of all the paths
+    def pathIds(paths: MapSet[String, String]): Array[Int] =
+        (paths map { case (instancePrefixedId, path) ⇒ pathId(instancePrefixedId, path) }).toArray.distinct.sorted
+
+    // Return the sorted ids of all the paths and of all their prefixes
+    def prefixPathIds(paths: MapSet[String, String]): Array[Int] =
+        (paths flatMap { case (instancePrefixedId, path) ⇒ trieNodes(instancePrefixedId, path) map (_.id) }).toArray.distinct.sorted
+
+    // Add to the given set the ids of the path of the node and of the paths of all its ancestor elements, if known
+    def addNodeAndAncestorIds(instancePrefixedId: String, node: NodeInfo, ids: BitSet): Unit = {
+        var trieNode = roots.get(instancePrefixedId)
+        var keys     = if (trieNode ne null) nodeKeys(node) else Nil
+
+        while (trieNode ne null) {
+            ids.set(trieNode.id)
+            trieNode =
+                if (keys.nonEmpty) {
+                    val child = trieNode.children.get(keys.head)
+                    keys = keys.tail
+                    child
+                } else
+                    null
+        }
+    }
+
+    // Return the id of the path of the node if known, -1 otherwise
+    def nodeId(instancePrefixedId: String, node: NodeInfo): Int = {
+        var trieNode = roots.get(instancePrefixedId)
+        var keys     = if (trieNode ne null) nodeKeys(node) else Nil
+
+        while ((trieNode ne null) && keys.nonEmpty) {
+            trieNode = trieNode.children.get(keys.head)
+            keys = keys.tail
+        }
+
+        if (trieNode ne null) trieNode.id else -1
+    }
+}
+
+private object PathIds {
+
+    // Element fingerprints are used as is, attribute fingerprints are complemented so they are negative
+    def tokenKey(token: String) =
+        if (token.startsWith("@")) ~ token.substring(1).toInt else token.toInt
+
+    def nodeKey(node: NodeInfo) =
+        if (node.getNodeKind == ATTRIBUTE_NODE) ~ node.getFingerprint else node.getFingerprint
+
+    // Keys from the node up to but not including the root element, which corresponds to instance('...')
+    def nodeKeys(node: NodeInfo): List[Int] = {
+        var keys: List[Int] = Nil
+        var current = node
+        var parent  = current.getParent
+        while ((parent ne null) && parent.getNodeKind != DOCUMENT_NODE) {
+            keys    = nodeKey(current) :: keys
+            current = parent
+            parent  = current.getParent
+        }
+        keys
+    }
+}
+
+/**
+ * Set of changed paths, represented by their interned ids.
+ */
+class PathIdChangeset(pathIds: PathIds) {
+
+    private val ids = new BitSet
+
+    // Add the node's path and the paths of all its ancestor elements
+    def addNodeAndAncestors(instancePrefixedId: String, node: NodeInfo): Unit =
+        pathIds.addNodeAndAncestorIds(instancePrefixedId, node, ids)
+
+    // Add the node's path only
+    def addNode(instancePrefixedId: String, node: NodeInfo): Unit = {
+        val id = pathIds.nodeId(instancePrefixedId, node)
+        if (id != -1)
+            ids.set(id)
+    }
+
+    def +=(instancePath: (String, String)): this.type = {
+        ids.set(pathIds.pathId(instancePath._1, instancePath._2))
+        this
+    }
+
+    def ++=(other: PathIdChangeset): this.type = {
+        ids.or(other.ids)
+        this
+    }
+
+    // Whether any of the given path ids is in this changeset
+    def containsAny(pathIds: Array[Int]): Boolean = {
+        var i = 0
+        while (i < pathIds.length) {
+            if (ids.get(pathIds(i)))
+                return true
+            i += 1
+        }
+        false
+    }
+
+    def isEmpty = ids.isEmpty
+    def clear() = ids.clear()
+}
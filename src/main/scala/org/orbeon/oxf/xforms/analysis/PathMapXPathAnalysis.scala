@@ -41,9 +41,15 @@ class PathMapXPathAnalysis(val xpathString: String,
                            val valueDependentPaths: MapSet[String, String],
                            val returnablePaths: MapSet[String, String],
                            val dependentModels: collection.Set[String],
-                           val dependentInstances: collection.Set[String])
+                           val dependentInstances: collection.Set[String],
+                           val pathIds: PathIds)
         extends XPathAnalysis {
 
+    // Intern paths right away, as changes to nodes with paths not yet interned are not recorded
+    val valueDependentPathIds = pathIds.pathIds(valueDependentPaths)
+    val returnablePathIds     = pathIds.pathIds(returnablePaths)
+    val prefixPathIds         = pathIds.prefixPathIds(valueDependentPaths combine returnablePaths)
+
     // If `values` is false, the other analysis just adds to the dependencies of the current analysis, but no new
     // returnable values are added.
     def combine(other: XPathAnalysis): XPathAnalysis =
@@ -68,7 +74,8 @@ class PathMapXPathAnalysis(val xpathString: String,
                         valueDependentPaths combine other.valueDependentPaths,
                         returnablePaths combine other.returnablePaths,
                         dependentModels ++ other.dependentModels,
-                        dependentInstances ++ other.dependentInstances)
+                        dependentInstances ++ other.dependentInstances,
+                        pathIds)
                 case _ ⇒
                     throw new IllegalStateException // should not happen
             }
@@ -81,7 +88,8 @@ class PathMapXPathAnalysis(val xpathString: String,
             valueDependentPaths combine returnablePaths,
             MapSet.empty[String, String],
             dependentModels,
-            dependentInstances)
+            dependentInstances,
+            pathIds)
 
     def toXML(helper: XMLReceiverHelper) {
 
@@ -277,7 +285,7 @@ object PathMapXPathAnalysis {
 
                     if (processPaths())
                         // Success
-                        new PathMapXPathAnalysis(xpathString, Some(pathmap), true, valueDependentPaths, returnablePaths, dependentModels, dependentInstances)
+                        new PathMapXPathAnalysis(xpathString, Some(pathmap), true, valueDependentPaths, returnablePaths, dependentModels, dependentInstances, partAnalysis.staticState.pathIds)
                     else
                         // Failure
                         NegativeAnalysis(xpathString)
@@ -17,21 +17,25 @@ import org.orbeon.oxf.xforms.analysis.model.{StaticBind, Model}
 import collection.mutable
 import org.orbeon.oxf.xforms._
 import analysis.controls._
-import org.w3c.dom.Node._
+import org.w3c.dom.Node.ELEMENT_NODE
 import org.orbeon.oxf.common.OXFException
-import java.util.{Map ⇒ JMap}
+import java.util.{Map ⇒ JMap, List ⇒ JList}
 import java.lang.String
 import collection.immutable.Nil
 import org.orbeon.saxon.om.{VirtualNode, NodeInfo}
 import org.orbeon.oxf.xforms.analysis.model.ValidationLevels._
 import org.orbeon.oxf.util.Logging
 import org.orbeon.oxf.util.ScalaUtils._
+import collection.JavaConverters._
 
 class PathMapXPathDependencies(private val containingDocument: XFormsContainingDocument)
         extends XPathDependencies
         with Logging {
 
     private implicit val logger = containingDocument.indentedLogger
+
+    // Path ids of the static state, with which all changesets are built
+    private lazy val pathIds = containingDocument.getStaticState.pathIds
     
     // Represent the state of changes to a model
     private class ModelState(private val modelPrefixedId: String) {
@@ -42,49 +46,54 @@ class PathMapXPathDependencies(private val containingDocument: XFormsContainingD
         var validateMIPsEvaluatedOnce  = false  // start dirty
 
         // Meaning of a change: "the string value of the node has changed"
-        var recalculateChangeset = new MapSet[String, String]   // changeset for recalculate MIPs
+        var recalculateChangeset = new PathIdChangeset(pathIds)          // changeset for recalculate MIPs
         var revalidateChangeset  = recalculateChangeset         // changeset for revalidate MIPs
 
         def markValueChanged(node: NodeInfo) {
-            // Only care about path changes if there is no structural change for this model, since structural changes
-            // for now disable any more subtle path-based check.
-            if (! hasStructuralChanges) {
-
-                // Create instance/path combo
-                val instance = containingDocument.getInstanceForNode(node)
-
-                val instancePrefixedId = instance.getPrefixedId
-
-                def processNode(n: NodeInfo) {
-                    val path = PathMapXPathDependencies.createFingerprintedPath(n)
-
-                    val instancePath = instancePrefixedId → path
 
-                    // Update model and view changesets
-                    recalculateChangeset += instancePath
-                    if (revalidateChangeset ne recalculateChangeset)
-                        revalidateChangeset += instancePath // also add to revalidate changeset if it is different
+            // Add the node's path as well as the paths of its ancestor elements. The idea is that if the string
+            // value of /a/b/c changed, then the string value of /a/b did as well, and so did /a's.
+            // This adds more entries to the changeset, but handles cases such as detecting changes impacting
+            // the string() or serialize() functions.
+            lazy val instancePrefixedId = containingDocument.getInstanceForNode(node).getPrefixedId
 
-                    RefreshState.changeset += instancePath
-
-                    // Add parent elements as well. The idea is that if the string value of /a/b/c changed, then the
-                    // string value of /a/b did as well, and so did /a's.
-                    // This adds more entries to the changeset, but handles cases such as detecting changes impacting
-                    // the string() or serialize() functions.
-                    val parent = n.getParent
-                    if ((parent ne null) && parent.getNodeKind == ELEMENT_NODE)
-                        processNode(parent)
-                }
-
-                processNode(node)
+            // Only care about path changes if there is no structural change for this model, since structural changes
+            // for now disable any more subtle path-based check for binds.
+            if (! hasStructuralChanges) {
+                // Update model changesets
+                recalculateChangeset.addNodeAndAncestors(instancePrefixedId, node)
+                if (revalidateChangeset ne recalculateChangeset)
+                    revalidateChangeset.addNodeAndAncestors(instancePrefixedId, node) // also add to revalidate changeset if it is different
             }
+
+            // The view only needs path changes if the model's structural changes, if any, could be localized
+            if (! RefreshState.structuralChangeModels(modelPrefixedId))
+                RefreshState.changeset.addNodeAndAncestors(instancePrefixedId, node)
         }
 
-        def markStructuralChange() {
+        def markStructuralChange(instance: Option[XFormsInstance], parents: Seq[NodeInfo]) {
 
             // Update model and view information
             hasStructuralChanges = true
-            RefreshState.structuralChangeModels += modelPrefixedId
+
+            // The view can use path-based checks if we know that only the content of the given parent elements
+            // changed: only dependents with paths under a parent, or on a parent and its ancestors, are impacted.
+            // Otherwise, e.g. when an instance is replaced, all dependents on the model are impacted.
+            def isLocalized =
+                instance.isDefined && parents.nonEmpty && parents.forall(parent ⇒
+                    parent.getNodeKind == ELEMENT_NODE && (containingDocument.getInstanceForNode(parent) eq instance.get))
+
+            if (! RefreshState.structuralChangeModels(modelPrefixedId)) {
+                if (isLocalized) {
+                    val instancePrefixedId = instance.get.getPrefixedId
+                    for (parent ← parents) {
+                        RefreshState.structuralChangeset.addNode(instancePrefixedId, parent)
+                        RefreshState.changeset.addNodeAndAncestors(instancePrefixedId, parent) // string values changed too
+                    }
+                    RefreshState.localizedStructuralChangeCount += 1
+                } else
+                    RefreshState.structuralChangeModels += modelPrefixedId
+            }
 
             markBindsDirty()
         }
@@ -118,10 +127,10 @@ class PathMapXPathDependencies(private val containingDocument: XFormsContainingD
 
         // Return an empty changeset, trying to point to the empty right changeset if possible
         // This is so that we can try to avoid adding changes to both changesets later
-        private def clearChangeset(left: MapSet[String, String], right: MapSet[String, String]) =
+        private def clearChangeset(left: PathIdChangeset, right: PathIdChangeset) =
             if (right isEmpty) right
             else if (left ne right) { left.clear(); left }
-            else new MapSet[String, String]
+            else new PathIdChangeset(pathIds)
 
         def refreshDone() = ()
 
@@ -145,7 +154,10 @@ class PathMapXPathDependencies(private val containingDocument: XFormsContainingD
         val structuralChangeModels = new mutable.HashSet[String]
 
         // Modified paths by instance
-        val changeset = new MapSet[String, String]
+        val changeset = new PathIdChangeset(pathIds)
+
+        // Paths of parents which had children inserted or deleted
+        val structuralChangeset = new PathIdChangeset(pathIds)
 
         // Caches to speedup checks on repeated items
         val modifiedBindingCacheForRepeats = new mutable.HashMap[String, UpdateResult]
@@ -158,13 +170,22 @@ class PathMapXPathDependencies(private val containingDocument: XFormsContainingD
         var valueUpdateCount: Int = 0
 
         var bindingXPathOptimizedCount: Int = 0
+        var localizedStructuralChangeCount: Int = 0
         var valueXPathOptimizedCount: Int = 0
 
         def getStructuralChangeModels = structuralChangeModels
 
+        def intersectsBinding(analysis: XPathAnalysis) =
+            analysis.intersectsModels(structuralChangeModels) || analysis.intersectsBinding(changeset) || analysis.intersectsStructure(structuralChangeset)
+
+        def intersectsValue(analysis: XPathAnalysis) =
+            analysis.intersectsModels(structuralChangeModels) || analysis.intersectsValue(changeset) || analysis.intersectsStructure(structuralChangeset)
+
         def refreshDone() {
             structuralChangeModels.clear()
             changeset.clear()
+            structuralChangeset.clear()
+            localizedStructuralChangeCount = 0
 
             modifiedBindingCacheForRepeats.clear()
             modifiedValueCacheForRepeats.clear()
@@ -205,7 +226,10 @@ class PathMapXPathDependencies(private val containingDocument: XFormsContainingD
     }
 
     def markStructuralChange(model: XFormsModel, instance: XFormsInstance): Unit =
-        getModelState(model.getPrefixedId).markStructuralChange()
+        getModelState(model.getPrefixedId).markStructuralChange(None, Nil)
+
+    def markStructuralChange(model: XFormsModel, instance: XFormsInstance, parents: JList[NodeInfo]): Unit =
+        getModelState(model.getPrefixedId).markStructuralChange(Option(instance), parents.asScala)
 
     def rebuildDone(model: Model)     = getModelState(model.prefixedId).rebuildDone()
     def recalculateDone(model: Model) = getModelState(model.prefixedId).recalculateDone()
@@ -224,6 +248,7 @@ class PathMapXPathDependencies(private val containingDocument: XFormsContainingD
                       "MIPs updated", mipUpdateCount.toString,
                       "Binding XPath optimized", RefreshState.bindingXPathOptimizedCount.toString,
                       "Value XPath optimized", RefreshState.valueXPathOptimizedCount.toString,
+                      "Localized structural changes", RefreshState.localizedStructuralChangeCount.toString,
                       "MIP XPath optimized", mipXPathOptimizedCount.toString,
                       "Total XPath optimized", (RefreshState.bindingXPathOptimizedCount + RefreshState.valueXPathOptimizedCount + mipXPathOptimizedCount).toString): _*)
 
@@ -292,7 +317,7 @@ class PathMapXPathDependencies(private val containingDocument: XFormsContainingD
 
     // For unit tests
     def markStructuralChangeTest(modelPrefixedId: String) {
-        getModelState(modelPrefixedId).markStructuralChange()
+        getModelState(modelPrefixedId).markStructuralChange(None, Nil)
     }
 
     // For unit tests
@@ -327,7 +352,7 @@ class PathMapXPathDependencies(private val containingDocument: XFormsContainingD
                         case Some(analysis) ⇒
                             // Binding dependencies are known
                             UpdateResult(
-                                analysis.intersectsModels(RefreshState.getStructuralChangeModels) || analysis.intersectsBinding(RefreshState.changeset),
+                                RefreshState.intersectsBinding(analysis),
                                 control.bindingXPathEvaluations)
                     }
 
@@ -371,7 +396,7 @@ class PathMapXPathDependencies(private val containingDocument: XFormsContainingD
                         case Some(analysis) ⇒
                             // Value dependencies are known
                             UpdateResult(
-                                analysis.intersectsModels(RefreshState.getStructuralChangeModels) || analysis.intersectsValue(RefreshState.changeset),
+                                RefreshState.intersectsValue(analysis),
                                 if (control.value.isDefined) 1 else 0)
                     }
                     if (tempUpdateResult.requireUpdate && tempValueAnalysis.isDefined && logger.isDebugEnabled)
@@ -418,7 +443,7 @@ class PathMapXPathDependencies(private val containingDocument: XFormsContainingD
                         lhhaUnknownDependencies += 1
                         true
                     case analysis ⇒ // dependencies are known
-                        val result = analysis.intersectsModels(RefreshState.getStructuralChangeModels) || analysis.intersectsValue(RefreshState.changeset)
+                        val result = RefreshState.intersectsValue(analysis)
                         if (result) lhhaHitCount += 1 else lhhaMissCount += 1
                         result
                 }
@@ -449,7 +474,7 @@ class PathMapXPathDependencies(private val containingDocument: XFormsContainingD
                     itemsetUnknownDependencies += 1
                     true
                 case Some(analysis) ⇒ // dependencies are known
-                    val result = analysis.intersectsModels(RefreshState.getStructuralChangeModels) || analysis.intersectsValue(RefreshState.changeset)
+                    val result = RefreshState.intersectsValue(analysis)
                     if (result) itemsetHitCount += 1 else itemsetMissCount += 1
                     result
                 case None ⇒
@@ -531,29 +556,3 @@ class PathMapXPathDependencies(private val containingDocument: XFormsContainingD
         }
     }
 }
-
-object PathMapXPathDependencies {
-
-    /**
-     * Create a fingerprinted path of the form: 3142/1425/@1232 from a node.
-     */
-    private def createFingerprintedPath(node: NodeInfo): String = {
-
-        // Create an immutable list with ancestor-or-self nodes up to but not including the document node
-        var ancestorOrSelf: List[NodeInfo] = Nil
-        var currentNode = node
-        while (currentNode != null && currentNode.getNodeKind != DOCUMENT_NODE) {
-            ancestorOrSelf = currentNode :: ancestorOrSelf
-            currentNode = currentNode.getParent
-        }
-
-        // Fingerprint representation of the element and attribute nodes
-        (if (ancestorOrSelf.size > 1) // first is the root element, which we skip as that corresponds to instance('...')
-            ancestorOrSelf.tail map (node ⇒ node.getNodeKind match {
-                case ELEMENT_NODE ⇒ node.getFingerprint
-                case ATTRIBUTE_NODE ⇒ "@" + node.getFingerprint
-            })
-        else
-            Nil) mkString "/"
-    }
-}
\ No newline at end of file
@@ -40,6 +40,17 @@ abstract class XPathAnalysis extends DebugXML  {
     def intersectsModels (touchedModels: collection.Set[String]) = dependentModels exists (touchedModels contains _)
     def intersectsValue  (touchedPaths:  MapSet[String, String]) = intersectsBinding(touchedPaths) || (returnablePaths intersects touchedPaths)
 
+    // Same checks against interned path ids, which don't require creating path strings or intermediate sets
+    def valueDependentPathIds: Array[Int]
+    def returnablePathIds: Array[Int]
+    def prefixPathIds: Array[Int]
+
+    def intersectsBinding(changeset: PathIdChangeset) = changeset containsAny valueDependentPathIds
+    def intersectsValue  (changeset: PathIdChangeset) = intersectsBinding(changeset) || (changeset containsAny returnablePathIds)
+
+    // Whether any path goes through the children of a parent whose content has changed, or is one of those parents
+    def intersectsStructure(parents: PathIdChangeset) = parents containsAny prefixPathIds
+
     // Combine this analysis with another one and return a new analysis
     def combine(other: XPathAnalysis): XPathAnalysis
 
@@ -68,6 +79,10 @@ object XPathAnalysis {
         val returnablePaths = MapSet.empty[String, String]
         val valueDependentPaths = MapSet.empty[String, String]
 
+        val valueDependentPathIds = Array.empty[Int]
+        val returnablePathIds     = Array.empty[Int]
+        val prefixPathIds         = Array.empty[Int]
+
         def makeValuesDependencies = this
 
         def toXML(helper: XMLReceiverHelper) =
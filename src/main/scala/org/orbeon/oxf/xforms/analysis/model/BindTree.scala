@@ -21,8 +21,9 @@ import org.orbeon.oxf.xforms.XFormsConstants._
 import collection.mutable.{LinkedHashSet, LinkedHashMap}
 import org.orbeon.oxf.xml.XMLReceiverHelper
 import org.orbeon.oxf.xml.dom4j.Dom4jUtils
+import org.orbeon.oxf.util.Logging
 
-class BindTree(val model: Model, bindElements: Seq[Element], val isCustomMIP: QName ⇒ Boolean) {
+class BindTree(val model: Model, bindElements: Seq[Element], val isCustomMIP: QName ⇒ Boolean) extends Logging {
 
     bindTree ⇒
 
@@ -113,6 +114,10 @@ class BindTree(val model: Model, bindElements: Seq[Element], val isCustomMIP: QN
     // Whether we figured out all XPath ref analysis
     var figuredAllBindRefAnalysis = ! hasBinds // default value sets to true if no binds
 
+    // Calculate binds ordered so that each bind comes after the calculate binds it depends on, if that could be
+    // figured out. Otherwise, calculate binds are evaluated in document order.
+    var calculateBindsOrder: Option[Seq[StaticBind]] = None
+
     def analyzeBindsXPath(): Unit = {
         // Analyze all binds and return whether all of them were successfully analyzed
         figuredAllBindRefAnalysis = (topLevelBinds map (_.analyzeXPathGather)).foldLeft(true)(_ && _)
@@ -121,6 +126,12 @@ class BindTree(val model: Model, bindElements: Seq[Element], val isCustomMIP: QN
         // NOTE: Do this here, because MIPs can depend on bind/@name, which requires all bind/@ref to be analyzed first
         topLevelBinds foreach (_.analyzeMIPs())
 
+        calculateBindsOrder =
+            if (figuredAllBindRefAnalysis && hasCalculateBind)
+                orderCalculateBinds()
+            else
+                None
+
         if (! figuredAllBindRefAnalysis) {
             bindInstances.clear()
             computedBindExpressionsInstances.clear()
@@ -129,6 +140,67 @@ class BindTree(val model: Model, bindElements: Seq[Element], val isCustomMIP: QN
         }
     }
 
+    // Order calculate binds topologically, where a bind depends on another one if its calculate expression depends on
+    // a path, or on a descendant of a path, that the other bind's @ref points to. Ties are broken by document order.
+    private def orderCalculateBinds(): Option[Seq[StaticBind]] = {
+
+        val calculateBinds = (bindsById.values filter (_.getCalculate ne null)).toIndexedSeq
+
+        def figuredOut(analysis: Option[XPathAnalysis]) = analysis exists (_.figuredOutDependencies)
+
+        if (calculateBinds exists (bind ⇒ ! figuredOut(bind.getBindingAnalysis) || ! figuredOut(Some(bind.getCalculate.analysis))))
+            None
+        else {
+            val written = calculateBinds map (_.getBindingAnalysis.get.returnablePaths.toList)
+            val read    = calculateBinds map { bind ⇒
+                val analysis = bind.getCalculate.analysis
+                (analysis.valueDependentPaths combine analysis.returnablePaths).toList
+            }
+
+            // The string value of a node changes when a descendant changes
+            def readsWritten(readPaths: List[(String, String)], writtenPaths: List[(String, String)]) =
+                readPaths exists { case (readInstance, readPath) ⇒
+                    writtenPaths exists { case (writtenInstance, writtenPath) ⇒
+                        readInstance == writtenInstance &&
+                            (readPath.isEmpty || writtenPath == readPath || writtenPath.startsWith(readPath + "/"))
+                    }
+                }
+
+            val indexes = calculateBinds.indices
+
+            // Edges from a bind to the binds reading what it writes, ignoring binds reading their own node
+            val dependents = indexes map (from ⇒ indexes filter (to ⇒ to != from && readsWritten(read(to), written(from))))
+            val inDegrees  = Array.fill(calculateBinds.size)(0)
+            for (tos ← dependents; to ← tos)
+                inDegrees(to) += 1
+
+            val ready  = new java.util.PriorityQueue[Integer]
+            val result = collection.mutable.ArrayBuffer[StaticBind]()
+
+            for (index ← indexes if inDegrees(index) == 0)
+                ready.add(index)
+
+            while (! ready.isEmpty) {
+                val from: Int = ready.poll()
+                result += calculateBinds(from)
+                for (to ← dependents(from)) {
+                    inDegrees(to) -= 1
+                    if (inDegrees(to) == 0)
+                        ready.add(to)
+                }
+            }
+
+            if (result.size == calculateBinds.size)
+                Some(result)
+            else {
+                implicit val logger = model.part.getIndentedLogger
+                val cycle = indexes filter (inDegrees(_) > 0) map (calculateBinds(_).staticId)
+                warn("cycle between calculate binds, using document order", Seq("model", model.staticId, "binds", cycle mkString " "))
+                None
+            }
+        }
+    }
+
     def bindsToXML(helper: XMLReceiverHelper): Unit =
         // Output binds information
         if (topLevelBinds.nonEmpty) {
@@ -282,6 +282,7 @@ trait ModelBinds {
     def containsBind(bindId: String) = bindTree().bindIds(bindId)
 
     def figuredAllBindRefAnalysis = bindTree().figuredAllBindRefAnalysis
+    def calculateBindsOrder = bindTree().calculateBindsOrder
 
     def analyzeBindsXPath() = bindTree().analyzeBindsXPath()
     def bindsToXML(helper: XMLReceiverHelper) = bindTree().bindsToXML(helper)
@@ -30,6 +30,7 @@ import org.orbeon.oxf.xforms.event.events.XXFormsNodesetChangedEvent
 import org.orbeon.oxf.xforms.event.events.XXFormsSetindexEvent
 import org.orbeon.oxf.xforms.xbl.XBLContainer
 import org.orbeon.saxon.om.{NodeInfo, Item}
+import org.orbeon.saxon.value.{NumericValue, StringValue}
 import org.orbeon.oxf.xforms.XFormsConstants._
 import org.orbeon.oxf.util.Logging
 
@@ -564,16 +565,6 @@ class XFormsRepeatControl(container: XBLContainer, parent: XFormsControl, elemen
             }
         }
 
-    private def findNodeIndexes(nodeset1: Seq[Item], nodeset2: Seq[Item]) = {
-
-        val nodeset2Scala = nodeset2
-
-        def indexOfItem(otherItem: Item) =
-            nodeset2Scala indexWhere (XFormsUtils.compareItems(_, otherItem))
-
-        nodeset1 map indexOfItem toArray
-    }
-
     // Serialize index
     override def serializeLocal: JMap[String, String] =
         Collections.singletonMap("index", Integer.toString(getIndex))
@@ -686,6 +677,69 @@ object XFormsRepeatControl {
                 })
         }
     
+    // For each item in nodeset1, find the index of the first equal item in nodeset2, or -1 if there is none
+    //
+    // Equality is the same as XFormsUtils.compareItems(). Instead of scanning nodeset2 for each item, which is
+    // O(n·m) and gets very costly with large repeats, nodeset2 is indexed once: nodes by identity (NodeInfo.equals()
+    // and hashCode() follow isSameNodeInfo()), and atomic values in buckets keyed by a value which equal items share.
+    def findNodeIndexes(nodeset1: Seq[Item], nodeset2: Seq[Item]): Array[Int] =
+        if (nodeset1.isEmpty || nodeset2.isEmpty)
+            Array.fill(nodeset1.size)(-1)
+        else if (nodeset1.size == 1 || nodeset2.size == 1)
+            nodeset1.map(item ⇒ nodeset2 indexWhere (XFormsUtils.compareItems(_, item))).toArray
+        else {
+            val index = new ItemIndex(nodeset2)
+            nodeset1.map(index.indexOf).toArray
+        }
+
+    private class ItemIndex(items: Seq[Item]) {
+
+        // Keep only the first position of a given node, like indexWhere would
+        private val nodes = new java.util.HashMap[NodeInfo, JInteger]
+        // Atomic values which might be equal share a bucket, searched linearly in document order
+        private val values = new java.util.HashMap[Any, ArrayBuffer[(Item, Int)]]
+
+        for ((item, position) ← items.iterator.zipWithIndex)
+            item match {
+                case node: NodeInfo ⇒
+                    if (! nodes.containsKey(node))
+                        nodes.put(node, position)
+                case value ⇒
+                    val key = bucketKey(value)
+                    val bucket = values.get(key) match {
+                        case null ⇒
+                            val newBucket = ArrayBuffer[(Item, Int)]()
+                            values.put(key, newBucket)
+                            newBucket
+                        case existing ⇒
+                            existing
+                    }
+                    bucket += (value → position)
+            }
+
+        def indexOf(item: Item): Int = item match {
+            case node: NodeInfo ⇒
+                nodes.get(node) match {
+                    case null     ⇒ -1
+                    case position ⇒ position.intValue
+                }
+            case null ⇒
+                -1
+            case value ⇒
+                values.get(bucketKey(value)) match {
+                    case null   ⇒ -1
+                    case bucket ⇒ bucket find (e ⇒ XFormsUtils.compareItems(e._1, value)) map (_._2) getOrElse -1
+                }
+        }
+
+        // Items equal as per XFormsUtils.compareItems() must produce the same key
+        private def bucketKey(item: Item): Any = item match {
+            case v: StringValue  ⇒ "s" → v.getStringValue
+            case v: NumericValue ⇒ "n" → v.getDoubleValue
+            case _               ⇒ "a" // e.g. dates, which can be equal with different lexical representations
+        }
+    }
+
     private def suffixForRepeats(indexes: collection.Map[String, Int], repeats: Seq[RepeatControl]) =
         repeats map (repeat ⇒ indexes(repeat.prefixedId)) mkString REPEAT_INDEX_SEPARATOR_STRING
     
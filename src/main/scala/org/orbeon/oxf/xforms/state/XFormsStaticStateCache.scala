@@ -13,7 +13,10 @@
  */
 package org.orbeon.oxf.xforms.state
 
+import java.util.concurrent.{Callable, ConcurrentHashMap, ExecutionException, FutureTask}
 import org.orbeon.oxf.cache._
+import org.orbeon.oxf.common.OXFException
+import org.orbeon.oxf.util.IndentedLogger
 import org.orbeon.oxf.xforms.XFormsStaticState
 
 object XFormsStaticStateCache {
@@ -32,6 +35,88 @@ object XFormsStaticStateCache {
     def findDocument(digest: String) =
         Option(cache.findValid(createCacheKey(digest), ConstantValidity).asInstanceOf[XFormsStaticState])
 
+    // Return an up-to-date static state for the given digest from the cache, or create it and store it in the cache.
+    // Only one static state is created at a time for a given digest, and concurrent callers wait for it, so that a
+    // form opened by many users right after being published is analyzed once.
+    //
+    // If a disk cache is given, created static states are written to it. It is checked before creating a static state
+    // if `readFromDisk` is set, which the caller does if creating means reading the source document again.
+    def getOrCreateDocument(
+            digest: String,
+            tracer: CacheTracer,
+            logger: IndentedLogger,
+            diskCache: Option[XFormsStaticStateDiskCache],
+            readFromDisk: Boolean,
+            create: Callable[XFormsStaticState]): XFormsStaticState = {
+
+        def findUpToDateDocument =
+            findDocument(digest) filter { cachedState ⇒
+                val metadata = cachedState.topLevelPart.metadata
+                val upToDate = metadata.bindingsIncludesAreUpToDate
+                // NOTE: In out of date case, could clone static state and reprocess instead?
+                if (! upToDate)
+                    logger.logDebug("", "out-of-date static state by digest in cache due to: " + metadata.debugOutOfDateBindingsIncludesJava)
+                upToDate
+            }
+
+        findUpToDateDocument match {
+            case Some(cachedState) ⇒
+                tracer.staticStateStatus(found = true, cachedState.digest)
+                cachedState
+            case None ⇒
+                // Return the static state and whether it was found rather than created
+                val newTask = new FutureTask(new Callable[(XFormsStaticState, Boolean)] {
+                    def call() = {
+
+                        // Check again in case another creation completed since the first check
+                        def fromMemory = findUpToDateDocument
+
+                        def fromDisk =
+                            diskCache filter (_ ⇒ readFromDisk) flatMap (_.find(digest)(logger)) map { staticState ⇒
+                                storeDocument(staticState)
+                                staticState
+                            }
+
+                        fromMemory orElse fromDisk map (_ → true) getOrElse {
+                            val staticState = create.call()
+                            // Store before the task is removed, so that no other creation starts in between
+                            storeDocument(staticState)
+                            diskCache foreach (_.store(staticState))
+                            staticState → false
+                        }
+                    }
+                })
+
+                Option(pendingDocuments.putIfAbsent(digest, newTask)) match {
+                    case Some(pendingTask) ⇒
+                        logger.logDebug("", "waiting for static state created by another request", "digest", digest)
+                        val (staticState, _) = getResult(pendingTask)
+                        tracer.staticStateStatus(found = true, staticState.digest)
+                        staticState
+                    case None ⇒
+                        try newTask.run()
+                        finally pendingDocuments.remove(digest, newTask)
+                        val (staticState, found) = getResult(newTask)
+                        tracer.staticStateStatus(found, staticState.digest)
+                        staticState
+                }
+        }
+    }
+
+    private[state] def removeDocument(digest: String): Unit =
+        cache.remove(createCacheKey(digest))
+
+    private def getResult[T](task: FutureTask[T]) =
+        try task.get
+        catch {
+            case e: ExecutionException ⇒
+                e.getCause match {
+                    case t: RuntimeException ⇒ throw t
+                    case t: Error            ⇒ throw t
+                    case t                   ⇒ throw new OXFException(t)
+                }
+        }
+
     private def createCacheKey(digest: String) =
         new InternalCacheKey(ContainingDocumentKeyType, digest ensuring (_ ne null))
 
@@ -41,4 +126,7 @@ object XFormsStaticStateCache {
     private val ContainingDocumentKeyType = XFormsDocumentCache
 
     private val cache = ObjectCache.instance(XFormsDocumentCache, XFormsDocumentCacheDefaultSize)
+
+    // Static states being created, by digest
+    private val pendingDocuments = new ConcurrentHashMap[String, FutureTask[(XFormsStaticState, Boolean)]]
 }
@@ -0,0 +1,393 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.state
+
+import java.io._
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.{Callable, ThreadFactory, Executors}
+import org.orbeon.oxf.cache.{ObjectCache, CacheKey}
+import org.orbeon.oxf.common.OXFException
+import org.orbeon.oxf.properties.{PropertySet, Properties}
+import org.orbeon.oxf.util.{SecureUtils, LoggerFactory, IndentedLogger}
+import org.orbeon.oxf.util.ScalaUtils.useAndClose
+import org.orbeon.oxf.xforms.analysis.Metadata
+import org.orbeon.oxf.xforms.{XFormsStaticStateImpl, XFormsStaticState}
+import scala.collection.JavaConverters._
+import scala.util.control.NonFatal
+
+/**
+ * Optional persistent tier of the static state cache, enabled by setting the oxf.xforms.cache.static-state.directory
+ * property.
+ *
+ * - Each static state is stored in a file named after its digest, with the encoded static state document and the XBL
+ *   binding includes with their last modification time. Files are discarded if the binding includes are out of date.
+ * - Each source document is stored in a file named after its pipeline cache key and validity, with the digest of its
+ *   static state and its template. This allows finding a static state after a restart without reading the source.
+ *   The file also has a digest of the serialized key and validity, which must match the current ones. As the annotator
+ *   and extractor depend on properties, the entry is ignored if properties have changed.
+ * - When the files go over the maximum size, the least recently used files are removed.
+ *
+ * Restoring a static state from its encoded form avoids reading, annotating and extracting the source document, but
+ * not the static analysis, which runs again.
+ */
+class XFormsStaticStateDiskCache private[state] (val directory: File) {
+
+    import XFormsStaticStateDiskCache._
+
+    @volatile private var maxSize = 0L
+
+    private val hits   = new AtomicLong
+    private val misses = new AtomicLong
+    private val writes = new AtomicLong
+
+    // Read the static state with the given digest if present and up to date
+    def find(digest: String)(implicit logger: IndentedLogger): Option[XFormsStaticState] = {
+
+        val file = new File(directory, digest + StateSuffix)
+
+        def restore(entry: Entry) =
+            if (! bindingsIncludesAreUpToDate(entry)) {
+                discard(file, "out-of-date binding includes")
+                None
+            } else {
+                val staticState = XFormsStaticStateImpl.restore(Some(digest), entry.encodedState)
+
+                // Restore the binding includes, which are not part of the static state document
+                val metadata = staticState.topLevelPart.metadata
+                metadata.bindingIncludes ++= entry.bindingIncludes
+                metadata.updateBindingsLastModified(entry.bindingsLastModified)
+
+                logger.logDebug("", "found static state on disk", "digest", digest)
+                Some(staticState)
+            }
+
+        count(readFile(file)(readEntry)(restore))
+    }
+
+    // Read the digest and template of the given source if present and unchanged
+    def findSource(key: CacheKey, validity: AnyRef)(implicit logger: IndentedLogger): Option[Source] = {
+
+        val file = sourceFile(key, validity)
+
+        // The memory cache already compares the key and validity
+        def fromMemory =
+            Option(FoundSources.findValid(key, validity)) collect {
+                case (foundDirectory, entry: SourceEntry) if foundDirectory == directory && entry.propertiesDigest == currentPropertiesDigest ⇒
+                    // Keep track of the last use for eviction, as for files read
+                    file.setLastModified(System.currentTimeMillis)
+                    entry
+            }
+
+        // Files are named after a digest of the string form of the key and validity, so check that they actually match
+        def matches(entry: SourceEntry) =
+            entry.keyDigest == keyDigest(key, validity) && entry.propertiesDigest == currentPropertiesDigest
+
+        def fromDisk =
+            count(readFile(file)(readSourceEntry)(entry ⇒ Some(entry) filter matches)) map { entry ⇒
+                logger.logDebug("", "found source on disk", "digest", entry.source.digest)
+                FoundSources.add(key, validity, directory → entry)
+                entry
+            }
+
+        fromMemory orElse fromDisk map (_.source)
+    }
+
+    // For Java callers
+    def findSourceOrNull(key: CacheKey, validity: AnyRef, logger: IndentedLogger) =
+        findSource(key, validity)(logger).orNull
+
+    // Write the static state in the background, if not already on disk
+    def store(staticState: XFormsStaticState): Unit = {
+        val file     = new File(directory, staticState.digest + StateSuffix)
+        val metadata = staticState.topLevelPart.metadata
+        val entry    = Entry(staticState.encodedState, metadata.bindingIncludes.toList, metadata.bindingsLastModified)
+
+        writeInBackground(file, overwrite = false)(writeEntry(_, entry))
+    }
+
+    // Write the digest and template of the given source in the background
+    def storeSource(key: CacheKey, validity: AnyRef, source: Source): Unit =
+        writeInBackground(sourceFile(key, validity), overwrite = true)(writeSourceEntry(_, SourceEntry(keyDigest(key, validity), currentPropertiesDigest, source)))
+
+    // Wait for the writes submitted so far
+    private[state] def awaitWrites(): Unit =
+        WriteExecutor.submit(new Callable[Unit] { def call() = () }).get
+
+    private def count[T](result: Option[T])(implicit logger: IndentedLogger) = {
+        (if (result.isDefined) hits else misses).incrementAndGet()
+        logger.logDebug("", "static state disk cache", "hits", hits.get.toString, "misses", misses.get.toString, "writes", writes.get.toString)
+        result
+    }
+
+    private def readFile[T, U](file: File)(read: InputStream ⇒ T)(use: T ⇒ Option[U])(implicit logger: IndentedLogger): Option[U] =
+        if (! file.exists)
+            None
+        else
+            try {
+                val result = use(useAndClose(new BufferedInputStream(new FileInputStream(file)))(read))
+
+                // Keep track of the last use for eviction
+                if (result.isDefined)
+                    file.setLastModified(System.currentTimeMillis)
+                result
+            } catch {
+                case NonFatal(t) ⇒
+                    // E.g. written by an older version, encrypted with another key, or removed during the read
+                    discard(file, t.toString)
+                    None
+            }
+
+    private def discard(file: File, reason: String)(implicit logger: IndentedLogger) = {
+        logger.logDebug("", "discarding file from static state disk cache", "file", file.getName, "reason", reason)
+        file.delete()
+    }
+
+    private def sourceFile(key: CacheKey, validity: AnyRef) =
+        new File(directory, SecureUtils.digestString(key.toString + '|' + validity.toString, "SHA-1", "hex") + SourceSuffix)
+
+    // After shutdown, files are no longer written
+    private def writeInBackground(file: File, overwrite: Boolean)(write: OutputStream ⇒ Unit): Unit =
+        if (! WriteExecutor.isShutdown)
+            WriteExecutor.execute(new Runnable {
+                def run() =
+                    try {
+                        if (overwrite || ! file.exists) {
+                            writeAtomically(directory, file)(write)
+                            writes.incrementAndGet()
+                            cleanup()
+                        }
+                    } catch {
+                        case NonFatal(t) ⇒
+                            Logger.logWarning("", "unable to write static state disk cache file " + file.getAbsolutePath, t)
+                    }
+            })
+
+    // Remove least recently used files until the files are under the cleanup size
+    // NOTE: Only called from the writer thread, so cleanups don't run concurrently.
+    private def cleanup(): Unit =
+        if (maxSize > 0) {
+            val files = listFiles
+            var size  = (files map (_.length)).sum
+
+            if (size > maxSize) {
+                val targetSize = (maxSize * CleanupRatio).toLong
+                var removed    = 0
+
+                // Get modification times once, as reads update them
+                val filesByLastUse = files map (file ⇒ file → file.lastModified) sortBy (_._2) map (_._1)
+
+                // Iterate lazily, as the size is updated along the way
+                for (file ← filesByLastUse.iterator takeWhile (_ ⇒ size > targetSize)) {
+                    val length = file.length
+                    if (file.delete()) {
+                        size    -= length
+                        removed += 1
+                    }
+                }
+                Logger.logDebug("", "removed files from static state disk cache", "count", removed.toString, "size", size.toString)
+            }
+        }
+
+    private def listFiles =
+        Option(directory.listFiles).toList.flatten filter (file ⇒ file.isFile && ! file.getName.endsWith(TempSuffix))
+}
+
+object XFormsStaticStateDiskCache {
+
+    private val DirectoryProperty = "oxf.xforms.cache.static-state.directory"
+    private val MaxSizeProperty   = "oxf.xforms.cache.static-state.max-disk-size"
+    private val StateSuffix       = ".static-state"
+    private val SourceSuffix      = ".source"
+    private val TempSuffix        = ".tmp"
+    private val FormatVersion     = 2
+
+    // After cleanup, the files take at most this fraction of the maximum size, so that cleanup doesn't run too often
+    private val CleanupRatio = 0.9
+
+    private val Logger = new IndentedLogger(LoggerFactory.createLogger(classOf[XFormsStaticStateDiskCache]), "")
+
+    case class Entry(encodedState: String, bindingIncludes: List[String], bindingsLastModified: Long)
+
+    // Digest and template of a source document
+    case class Source(digest: String, template: AnnotatedTemplate)
+    case class SourceEntry(keyDigest: String, propertiesDigest: String, source: Source)
+
+    private var caches = Map[File, XFormsStaticStateDiskCache]()
+
+    // Sources found on disk, so that a file is not read for each request until the document is read and the pipeline
+    // cache has the digest again
+    private val FoundSources = ObjectCache.instance("xforms.cache.static-state.sources", 50)
+
+    @volatile private var propertiesDigest: (PropertySet, String) = (null, null)
+
+    // Files are written in the background, so that the first request for a form isn't delayed
+    private val WriteExecutor = Executors.newSingleThreadExecutor(new ThreadFactory {
+        def newThread(runnable: Runnable) = {
+            val thread = new Thread(runnable, "Orbeon static state writer")
+            thread.setDaemon(true)
+            thread
+        }
+    })
+
+    // Return the disk cache configured with properties, if any
+    def instance: Option[XFormsStaticStateDiskCache] = {
+        val propertySet = Properties.instance.getPropertySet
+        Option(propertySet.getString(DirectoryProperty, "")) map (_.trim) filter (_.nonEmpty) map { path ⇒
+            getInstance(new File(path), propertySet.getInteger(MaxSizeProperty, 0).longValue)
+        }
+    }
+
+    // For Java callers
+    def instanceOrNull = instance.orNull
+
+    // Return the disk cache for the given directory
+    // NOTE: The directory is made accessible to its owner only, as files contain the forms.
+    def getInstance(directory: File, maxSize: Long): XFormsStaticStateDiskCache = synchronized {
+        val cache =
+            caches.getOrElse(directory, {
+                if (! directory.isDirectory && ! directory.mkdirs() && ! directory.isDirectory)
+                    throw new OXFException("Cannot create static state directory: " + directory.getAbsolutePath)
+                setOwnerOnly(directory)
+
+                val newCache = new XFormsStaticStateDiskCache(directory)
+                caches += directory → newCache
+                newCache
+            })
+        cache.maxSize = maxSize
+        cache
+    }
+
+    def writeEntry(os: OutputStream, entry: Entry): Unit = {
+        val dos = new DataOutputStream(os)
+        dos.writeInt(FormatVersion)
+        dos.writeLong(entry.bindingsLastModified)
+        dos.writeInt(entry.bindingIncludes.size)
+        entry.bindingIncludes foreach dos.writeUTF
+
+        // The encoded state can be larger than what writeUTF supports
+        writeBytes(dos, entry.encodedState.getBytes("UTF-8"))
+        dos.flush()
+    }
+
+    def readEntry(is: InputStream): Entry = {
+        val dis = readVersion(is)
+
+        val bindingsLastModified = dis.readLong()
+        val bindingIncludes      = List.fill(dis.readInt())(dis.readUTF())
+
+        Entry(new String(readBytes(dis), "UTF-8"), bindingIncludes, bindingsLastModified)
+    }
+
+    def writeSourceEntry(os: OutputStream, entry: SourceEntry): Unit = {
+        val dos = new DataOutputStream(os)
+        dos.writeInt(FormatVersion)
+        dos.writeUTF(entry.keyDigest)
+        dos.writeUTF(entry.propertiesDigest)
+        dos.writeUTF(entry.source.digest)
+        writeBytes(dos, entry.source.template.asByteSeq.toArray)
+        dos.flush()
+    }
+
+    def readSourceEntry(is: InputStream): SourceEntry = {
+        val dis = readVersion(is)
+
+        val keyDigest        = dis.readUTF()
+        val propertiesDigest = dis.readUTF()
+        val digest           = dis.readUTF()
+        val template         = AnnotatedTemplate(readBytes(dis).toSeq)
+
+        SourceEntry(keyDigest, propertiesDigest, Source(digest, template))
+    }
+
+    // Digest of the serialized key and validity, as their string form is not always complete
+    // NOTE: Entries only store the digest, so that reading them doesn't deserialize objects from disk.
+    def keyDigest(key: CacheKey, validity: AnyRef) = {
+        val os = new ByteArrayOutputStream
+        useAndClose(new ObjectOutputStream(os)) { oos ⇒
+            oos.writeObject(key)
+            oos.writeObject(validity)
+        }
+        SecureUtils.digestBytes(os.toByteArray, "SHA-1", "hex")
+    }
+
+    // Stop writing files, typically when the web app is destroyed
+    def shutdown(): Unit =
+        WriteExecutor.shutdownNow()
+
+    // Digest of all the properties, so that property values are not written
+    // NOTE: A new property set is created when properties are reloaded, so the digest is computed once per property set.
+    private def currentPropertiesDigest = {
+        val propertySet = Properties.instance.getPropertySet
+        propertiesDigest match {
+            case (`propertySet`, digest) ⇒
+                digest
+            case _ ⇒
+                val properties = propertySet.keySet.asScala.toList.sorted map (name ⇒ name + '=' + propertySet.getObject(name))
+                val digest     = SecureUtils.digestString(properties mkString "\n", "SHA-1", "hex")
+                propertiesDigest = propertySet → digest
+                digest
+        }
+    }
+
+    private def readVersion(is: InputStream) = {
+        val dis = new DataInputStream(is)
+        val version = dis.readInt()
+        if (version != FormatVersion)
+            throw new OXFException("unsupported static state file version: " + version)
+        dis
+    }
+
+    private def writeBytes(dos: DataOutputStream, bytes: Array[Byte]) = {
+        dos.writeInt(bytes.length)
+        dos.write(bytes)
+    }
+
+    private def readBytes(dis: DataInputStream) = {
+        val bytes = new Array[Byte](dis.readInt())
+        dis.readFully(bytes)
+        bytes
+    }
+
+    // Same check as for static states in memory
+    private def bindingsIncludesAreUpToDate(entry: Entry) = {
+        val metadata = new Metadata
+        metadata.bindingIncludes ++= entry.bindingIncludes
+        metadata.updateBindingsLastModified(entry.bindingsLastModified)
+        metadata.bindingsIncludesAreUpToDate
+    }
+
+    // Write to a temporary file, then rename it, so that readers never see a partial file
+    private def writeAtomically(directory: File, file: File)(write: OutputStream ⇒ Unit): Unit = {
+        val tempFile = File.createTempFile(file.getName, TempSuffix, directory)
+        try {
+            useAndClose(new BufferedOutputStream(new FileOutputStream(tempFile)))(write)
+
+            // Renaming fails on some platforms if the destination exists
+            if (! tempFile.renameTo(file) && ! (file.delete() && tempFile.renameTo(file)))
+                throw new OXFException("Cannot rename static state file to: " + file.getAbsolutePath)
+        } finally {
+            if (tempFile.exists)
+                tempFile.delete()
+        }
+    }
+
+    private def setOwnerOnly(directory: File) = {
+        directory.setReadable(false, false)
+        directory.setWritable(false, false)
+        directory.setExecutable(false, false)
+        directory.setReadable(true, true)
+        directory.setWritable(true, true)
+        directory.setExecutable(true, true)
+    }
+}
@@ -67,4 +67,20 @@ public class PropertiesTest extends TestCase {
         assertEquals(propertySet.getString("test.orbeon.*.*"), "value6");
         assertEquals(propertySet.getString("test.*.*.*"), "value7");
     }
+
+    public void testMemoizedWildcards() {
+        final PropertySet propertySet = propertyStore.getGlobalPropertySet();
+
+        // Positive and negative wildcard results are the same when memoized
+        for (int i = 0; i < 2; i++) {
+            assertEquals(propertySet.getString("test.foo.bar.bat"), "value7");
+            assertNull(propertySet.getString("foo.bar"));
+        }
+
+        // Exact matches don't go through wildcard lookups
+        assertEquals(propertySet.getString("test.orbeon.builder.form"), "value0");
+
+        assertEquals(4, propertySet.getWildcardLookupCount());
+        assertEquals(2, propertySet.getWildcardMemoizedCount());
+    }
 }
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.controller
+
+import java.util.regex.Pattern
+import org.junit.Test
+import org.orbeon.oxf.resources.ResourceManagerWrapper
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.xml.Dom4j
+import org.orbeon.oxf.xml.dom4j.Dom4jUtils.extractAttributeValueQName
+import org.scalatest.junit.AssertionsForJUnit
+import PageFlowControllerProcessor._
+import PatternIndex._
+
+class PatternIndexTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+    val ShippedPageFlows = Seq(
+        "/page-flow.xml",
+        "/apps/fr/page-flow.xml",
+        "/apps/home/page-flow.xml",
+        "/apps/xforms-sandbox/page-flow.xml",
+        "/apps/xforms-bookcast/page-flow.xml",
+        "/apps/xforms-todo/page-flow.xml",
+        "/forms/orbeon/service/page-flow.xml",
+        "/config/error-page-flow.xml",
+        "/ops/xforms/xforms-renderer-page-flow.xml"
+    )
+
+    // Route patterns of all the shipped page flows, in order, as if they were in a single page flow
+    lazy val shippedPatterns = (
+        for {
+            path    ← ShippedPageFlows
+            root    = ResourceManagerWrapper.instance.getContentAsDOM4J(path).getRootElement
+            matcher = Option(extractAttributeValueQName(root, MatcherProperty)) getOrElse DefaultMatcher
+            e       ← Dom4j.elements(root)
+            if Set("files", "page", "service")(e.getName)
+        } yield
+            compilePattern(e, getPath(e), matcher)
+    ).toIndexedSeq
+
+    val SamplePaths = Seq(
+        "/",
+        "/welcome",
+        "/home/",
+        "/fr/",
+        "/fr",
+        "/fr/login",
+        "/fr/login-error",
+        "/fr/orbeon/builder/new",
+        "/fr/orbeon/builder/edit/b5a1b6a8d1c6e4f2",
+        "/fr/acme/order/summary",
+        "/fr/acme/order/pdf/123",
+        "/fr/service/persistence/crud/acme/order/form/form.xhtml",
+        "/fr/service/mysql/crud/acme/order/data/123/data.xml",
+        "/fr/service/exist/form/acme",
+        "/fr/service/custom/orbeon/builder/toolbox",
+        "/fr/service/acme/order/pdf/123/0123-abcd.pdf",
+        "/apps/fr/style/form-runner.css",
+        "/ops/yui/yahoo/yahoo-min.js",
+        "/xforms-sandbox/service/upload",
+        "/xforms-todo/",
+        "/not-found",
+        "/unknown/path/with/many/segments",
+        ""
+    )
+
+    def linearFind(patterns: IndexedSeq[Pattern], s: String) =
+        patterns.indexWhere(_.matcher(s).matches) match {
+            case -1    ⇒ None
+            case index ⇒ Some(index)
+        }
+
+    @Test def analyzePatterns(): Unit = {
+        def analyzeRegexp(regexp: String) = analyze(Pattern.compile(regexp))
+
+        assert(analyzeRegexp("/fr/login")                === Literal("/fr/login"))
+        assert(analyzeRegexp("/fr/?")                    === Prefix("/fr"))
+        assert(analyzeRegexp("/fr/service/(a|b)/crud")   === Prefix("/fr/service/"))
+        assert(analyzeRegexp("/a|/b")                    === Prefix(""))
+        assert(analyzeRegexp("/apps/\\.foo/.*\\.css")    === Prefix("/apps/.foo/"))
+        assert(analyzeRegexp("/a\\d+")                   === Prefix("/a"))
+        assert(analyzeRegexp("(?!/service/).+")          === Prefix(""))
+        assert(analyzeRegexp("/ab+")                     === Prefix("/a"))
+        assert(analyze(Pattern.compile("/fr", Pattern.CASE_INSENSITIVE)) === Prefix(""))
+    }
+
+    @Test def sameAsLinearMatching(): Unit = {
+
+        val index = new PatternIndex(shippedPatterns)
+
+        for (path ← SamplePaths)
+            assert(index.findFirst(path) === linearFind(shippedPatterns, path), path)
+
+        // Declaration order wins over literal patterns
+        val patterns = IndexedSeq("/fr/.*", "/fr/login", "/fr/login") map (Pattern.compile(_))
+        assert(new PatternIndex(patterns).findFirst("/fr/login") === Some(0))
+        assert(new PatternIndex(patterns.tail).findFirst("/fr/login") === Some(0))
+    }
+
+    // NOTE: This also serves as a benchmark of route matching: see the logged timings.
+    @Test def benchmarkShippedPageFlows(): Unit = {
+
+        // Simulate a large page flow by repeating the shipped routes under distinct prefixes before the shipped routes
+        val extraPatterns =
+            for {
+                i       ← 1 to 10
+                pattern ← shippedPatterns
+                regexp  = pattern.pattern
+                if regexp.startsWith("/")
+            } yield
+                Pattern.compile("/app" + i + regexp)
+
+        val patterns = extraPatterns ++ shippedPatterns
+        val index    = new PatternIndex(patterns)
+        val Rounds   = 200
+
+        def time(find: String ⇒ Option[Int]) = {
+            val start = System.nanoTime
+            for (_ ← 1 to Rounds; path ← SamplePaths)
+                find(path)
+            (System.nanoTime - start) / 1000000
+        }
+
+        for (path ← SamplePaths)
+            assert(index.findFirst(path) === linearFind(patterns, path), path)
+
+        val linearMs = time(linearFind(patterns, _))
+        val indexMs  = time(index.findFirst)
+
+        ResourceManagerTestBase.logger.info(
+            "matched " + (Rounds * SamplePaths.size) + " paths against " + patterns.size + " routes: " +
+            "linear " + linearMs + " ms, indexed " + indexMs + " ms (" + index.unprefixedCount + " routes without prefix)")
+    }
+}
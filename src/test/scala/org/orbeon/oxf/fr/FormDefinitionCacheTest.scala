@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.fr
+
+import org.junit.Test
+import org.orbeon.oxf.util.{LoggerFactory, IndentedLogger}
+import org.orbeon.scaxon.XML._
+import org.scalatest.junit.AssertionsForJUnit
+import FormDefinitionCache.Key
+
+class FormDefinitionCacheTest extends AssertionsForJUnit {
+
+    private implicit val Logger = new IndentedLogger(LoggerFactory.createLogger(classOf[FormDefinitionCacheTest]), true, "")
+
+    val doc = elemToDocumentInfo(<form/>)
+
+    @Test def evictLeastRecentlyUsed(): Unit = {
+
+        val Key1 = Key("cache-test-1", "form", None)
+        val Key2 = Key("cache-test-1", "form", Some("2"))
+        val Key3 = Key("cache-test-1", "other", None)
+
+        val sizeBefore = FormDefinitionCache.size
+        val maxSize    = sizeBefore + 250
+
+        FormDefinitionCache.miss(Key1, doc, Some(1000L), 100, maxSize)
+        FormDefinitionCache.miss(Key2, doc, Some(1000L), 100, maxSize)
+
+        // Using the first entry makes the second one the least recently used
+        assert(FormDefinitionCache.get(Key1).isDefined)
+        FormDefinitionCache.miss(Key3, doc, Some(1000L), 100, maxSize)
+
+        assert(FormDefinitionCache.get(Key1).isDefined)
+        assert(FormDefinitionCache.get(Key2).isEmpty)
+        assert(FormDefinitionCache.get(Key3).isDefined)
+        assert(FormDefinitionCache.size === sizeBefore + 200)
+
+        // Publishing a form removes all its versions only
+        FormDefinitionCache.invalidate("cache-test-1", "form")
+        assert(FormDefinitionCache.get(Key1).isEmpty)
+        assert(FormDefinitionCache.get(Key3).isDefined)
+        assert(FormDefinitionCache.size === sizeBefore + 100)
+
+        FormDefinitionCache.remove(Key3)
+        assert(FormDefinitionCache.size === sizeBefore)
+    }
+
+    @Test def notCachedWithoutLastModifiedOrOverBudget(): Unit = {
+
+        val Key1 = Key("cache-test-2", "form", None)
+        val Key2 = Key("cache-test-2", "large", None)
+
+        val hitsBefore   = FormDefinitionCache.hitCount
+        val missesBefore = FormDefinitionCache.missCount
+
+        assert(FormDefinitionCache.miss(Key1, doc, None, 100, Long.MaxValue) eq doc)
+        assert(FormDefinitionCache.get(Key1).isEmpty)
+
+        FormDefinitionCache.miss(Key2, doc, Some(1000L), FormDefinitionCache.size + 1000, FormDefinitionCache.size + 999)
+        assert(FormDefinitionCache.get(Key2).isEmpty)
+
+        FormDefinitionCache.miss(Key1, doc, Some(1000L), 100, Long.MaxValue)
+        assert(FormDefinitionCache.hit(FormDefinitionCache.get(Key1).get) eq doc)
+        FormDefinitionCache.remove(Key1)
+
+        assert(FormDefinitionCache.hitCount  === hitsBefore + 1)
+        assert(FormDefinitionCache.missCount === missesBefore + 3)
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor
+
+import java.io.ByteArrayOutputStream
+import org.dom4j.DocumentHelper
+import org.junit.Test
+import org.orbeon.oxf.util.Base64
+import org.scalatest.junit.AssertionsForJUnit
+
+class EmailProcessorTest extends AssertionsForJUnit {
+
+    @Test def decodeInlineBase64(): Unit = {
+
+        // Larger than the decoding buffer, and not a multiple of 3 bytes
+        val bytes   = Array.tabulate[Byte](20000)(_.toByte)
+        val encoded = Base64.encode(bytes, true)
+
+        // Text split at arbitrary points over text and CDATA nodes, with comments which are ignored
+        val part = DocumentHelper.createElement("part")
+        part.addText(encoded.substring(0, 1001))
+        part.addComment("comment")
+        part.addCDATA(encoded.substring(1001, 15003))
+        part.addText(encoded.substring(15003))
+
+        val os = new ByteArrayOutputStream
+        EmailProcessor.decodeBase64Content(part, os)
+
+        assert(os.toByteArray.toSeq === bytes.toSeq)
+    }
+}
@@ -0,0 +1,209 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor
+
+import collection.JavaConverters._
+import java.io.{FileOutputStream, OutputStream, File, ByteArrayInputStream, ByteArrayOutputStream}
+import java.util.concurrent.ConcurrentLinkedQueue
+import javax.mail._
+import javax.mail.internet.{MimeMessage, InternetAddress}
+import org.apache.commons.io.FileUtils
+import org.junit.Test
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.util.ScalaUtils._
+import org.scalatest.junit.AssertionsForJUnit
+import EmailSpool._
+
+// Uses the resource manager for the encryption key
+class EmailSpoolTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+    // Run with a new spool directory, as spools are shared by directory
+    def withDirectory[T](body: File ⇒ T): T = {
+        val directory = File.createTempFile("email-spool", "")
+        directory.delete()
+        try body(directory)
+        finally {
+            EmailSpool.shutdown()
+            FileUtils.deleteDirectory(directory)
+        }
+    }
+
+    // Messages are sent by the stub transport, without retry delay
+    def newSpool(directory: File, maxAttempts: Int = DefaultMaxAttempts) =
+        getInstance(directory, 1, maxAttempts, 0)
+
+    val StubConfig = SMTPConfig(Map("mail.smtp.class" → classOf[StubTransport].getName), None, None)
+
+    def newMessage(recipients: String*) = {
+        val message = new MimeMessage(Session.getInstance(new java.util.Properties))
+        message.setFrom(new InternetAddress("sender@example.org"))
+        message.setRecipients(Message.RecipientType.TO, (recipients map (new InternetAddress(_): Address)).toArray)
+        message.setText("Hello")
+        message
+    }
+
+    def fileNames(directory: File) = directory.list.toSet
+
+    // Sending is asynchronous
+    def waitFor(condition: ⇒ Boolean): Unit = {
+        val end = System.currentTimeMillis + 10000
+        while (! condition && System.currentTimeMillis < end)
+            Thread.sleep(10)
+        assert(condition)
+    }
+
+    @Test def entryRoundTrip(): Unit = {
+
+        def roundTrip(entry: SpoolEntry) = {
+            val os = new ByteArrayOutputStream
+            writeEntry(os, entry)
+            readEntry(new ByteArrayInputStream(os.toByteArray))
+        }
+
+        val withCredentials =
+            SpoolEntry(
+                SMTPConfig(Map("mail.smtp.host" → "smtp.example.org", "mail.smtp.port" → "587"), Some("orbeon"), Some("p=ss:word")),
+                3,
+                1234567890123L
+            )
+
+        val withoutCredentials =
+            SpoolEntry(SMTPConfig(Map("mail.smtp.host" → "localhost"), None, None), 0, 0L)
+
+        val withRecipients =
+            withoutCredentials.copy(recipients = List(new InternetAddress("b@example.org", "Doe, John"), new InternetAddress("c@example.org")))
+
+        assert(roundTrip(withCredentials)    === withCredentials)
+        assert(roundTrip(withoutCredentials) === withoutCredentials)
+        assert(roundTrip(withRecipients)     === withRecipients)
+
+        // The password is not stored in clear
+        locally {
+            val os = new ByteArrayOutputStream
+            writeEntry(os, withCredentials)
+
+            val properties = new java.util.Properties
+            properties.load(new ByteArrayInputStream(os.toByteArray))
+            assert(! properties.containsValue("p=ss:word"))
+        }
+
+        // Transports are reused by configuration
+        assert(roundTrip(withCredentials).config.hashCode === withCredentials.config.hashCode)
+        assert(! withCredentials.config.toString.contains("p=ss:word"))
+    }
+
+    @Test def retries(): Unit = {
+
+        assert(backoffDelay(60000, 1) === 60000)
+        assert(backoffDelay(60000, 2) === 120000)
+        assert(backoffDelay(60000, 4) === 480000)
+        assert(backoffDelay(60000, 20) === 3600000)
+
+        val address = Array[Address](new InternetAddress("info@example.org"))
+
+        assert(isPermanentFailure(new SendFailedException("rejected", null, Array(), Array(), address)))
+        assert(! isPermanentFailure(new SendFailedException("try later", null, Array(), address, Array())))
+        assert(! isPermanentFailure(new MessagingException("connection lost")))
+
+        // Only the recipients which didn't receive the message are retried
+        val other = Array[Address](new InternetAddress("other@example.org"))
+
+        assert(unsentRecipients(new SendFailedException("try later", null, other, address, Array())) === Some(address.toList))
+        assert(unsentRecipients(new SendFailedException("try later", null, Array(), address, Array())) === None)
+        assert(isPermanentFailure(new SendFailedException("rejected", null, other, Array(), address)))
+    }
+
+    @Test def sendAndDelete(): Unit = withDirectory { directory ⇒
+        StubTransport.reset()
+
+        newSpool(directory).enqueue(StubConfig, newMessage("a@example.org", "b@example.org"))
+
+        waitFor(fileNames(directory).isEmpty)
+        assert(StubTransport.sentRecipients === List(List("a@example.org", "b@example.org")))
+    }
+
+    @Test def retryUnsentRecipients(): Unit = withDirectory { directory ⇒
+        StubTransport.reset()
+
+        // The first attempt only reaches a
+        StubTransport.failure = {
+            case (1, recipients) ⇒ new SendFailedException("try later for b", null, recipients take 1, recipients drop 1, Array())
+        }
+
+        newSpool(directory).enqueue(StubConfig, newMessage("a@example.org", "b@example.org"))
+
+        waitFor(fileNames(directory).isEmpty)
+        assert(StubTransport.sentRecipients === List(List("a@example.org", "b@example.org"), List("b@example.org")))
+    }
+
+    @Test def moveToFailedAfterMaxAttempts(): Unit = withDirectory { directory ⇒
+        StubTransport.reset()
+        StubTransport.failure = { case _ ⇒ new MessagingException("connection lost") }
+
+        newSpool(directory, maxAttempts = 3).enqueue(StubConfig, newMessage("a@example.org"))
+
+        // Only the message is left, moved aside
+        waitFor(fileNames(directory).toList match {
+            case List(name) ⇒ name.endsWith(".failed")
+            case _          ⇒ false
+        })
+        assert(StubTransport.sentRecipients.size === 3)
+    }
+
+    @Test def recoverAfterRestart(): Unit = withDirectory { directory ⇒
+        StubTransport.reset()
+        directory.mkdirs()
+
+        def write(name: String)(write: OutputStream ⇒ Unit) =
+            useAndClose(new FileOutputStream(new File(directory, name)))(write)
+
+        // Message left by a previous run, entry without its message, and partially written file
+        write("0000000000001-a.properties")(writeEntry(_, SpoolEntry(StubConfig, 1, 1L)))
+        write("0000000000001-a.eml")(newMessage("a@example.org").writeTo(_))
+        write("0000000000002-b.properties")(writeEntry(_, SpoolEntry(StubConfig, 0, 2L)))
+        write("0000000000003-c.eml123.tmp")(_.write(1))
+
+        newSpool(directory)
+
+        waitFor(fileNames(directory).isEmpty)
+        assert(StubTransport.sentRecipients === List(List("a@example.org")))
+    }
+}
+
+// Transport recording the recipients of each message instead of sending it
+class StubTransport(session: Session, url: URLName) extends Transport(session, url) {
+
+    override protected def protocolConnect(host: String, port: Int, user: String, password: String) = true
+
+    def sendMessage(message: Message, addresses: Array[Address]): Unit = {
+        StubTransport.sent.add(addresses.toList map (_.asInstanceOf[InternetAddress].getAddress))
+        val attempt = StubTransport.sent.size
+        StubTransport.failure.lift((attempt, addresses)) foreach (throw _)
+    }
+}
+
+object StubTransport {
+
+    val sent = new ConcurrentLinkedQueue[List[String]]
+
+    // Exception thrown by the given attempt, if any
+    @volatile var failure: PartialFunction[(Int, Array[Address]), MessagingException] = PartialFunction.empty
+
+    def sentRecipients = sent.asScala.toList
+
+    def reset(): Unit = {
+        sent.clear()
+        failure = PartialFunction.empty
+    }
+}
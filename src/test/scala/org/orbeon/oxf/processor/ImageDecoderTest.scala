@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor
+
+import java.awt.image.BufferedImage
+import java.io.{InputStream, ByteArrayOutputStream, ByteArrayInputStream}
+import java.util.concurrent._
+import javax.imageio.ImageIO
+import org.junit.Test
+import org.orbeon.oxf.common.OXFException
+import org.scalatest.junit.AssertionsForJUnit
+
+class ImageDecoderTest extends AssertionsForJUnit {
+
+    val Memory = 10 * 1024 * 1024
+
+    val png = {
+        val os = new ByteArrayOutputStream
+        ImageIO.write(new BufferedImage(20, 10, BufferedImage.TYPE_INT_RGB), "png", os)
+        os.toByteArray
+    }
+
+    // Stream which must not be read, as the image is expected to come from the cache or from another decode
+    def unusedStream = new InputStream {
+        def read() = throw new IllegalStateException("stream must not be read")
+    }
+
+    // Stream which signals when it is first read, then blocks until released
+    class BlockingStream(bytes: Array[Byte]) extends InputStream {
+
+        val reading = new CountDownLatch(1)
+        val release = new CountDownLatch(1)
+
+        private val is = new ByteArrayInputStream(bytes)
+
+        private def await() = {
+            reading.countDown()
+            release.await(10, TimeUnit.SECONDS)
+        }
+
+        def read() = { await(); is.read() }
+        override def read(b: Array[Byte], off: Int, len: Int) = { await(); is.read(b, off, len) }
+    }
+
+    // Start a first decode which blocks while reading, then a second decode of the same key, and release the first
+    // decode once the second one waits for it
+    def decodeConcurrently(decoder: ImageDecoder, first: BlockingStream) = {
+        val executor = Executors.newFixedThreadPool(2)
+        try {
+            val firstResult = executor.submit(new Callable[BufferedImage] {
+                def call() = decoder.decode("image", first)
+            })
+            assert(first.reading.await(10, TimeUnit.SECONDS))
+
+            val secondResult = executor.submit(new Callable[BufferedImage] {
+                def call() = decoder.decode("image", unusedStream)
+            })
+            while (! decoder.getStatistics.contains("shared decodes: 1"))
+                Thread.sleep(10)
+
+            first.release.countDown()
+
+            (firstResult, secondResult)
+        } finally
+            executor.shutdown()
+    }
+
+    def cacheWeight(decoder: ImageDecoder) =
+        """cached images: \d+ \((\d+) bytes\)""".r.findFirstMatchIn(decoder.getStatistics).get.group(1).toLong
+
+    @Test def sharedDecode(): Unit = {
+        val decoder = new ImageDecoder(Memory, Memory)
+        val (firstResult, secondResult) = decodeConcurrently(decoder, new BlockingStream(png))
+
+        val image = firstResult.get(10, TimeUnit.SECONDS)
+        assert(image.getWidth === 20)
+        assert(secondResult.get(10, TimeUnit.SECONDS) eq image)
+
+        assert(decoder.getStatistics.startsWith("decodes: 1,"))
+        assert(decoder.decode("image", unusedStream) eq image)
+    }
+
+    @Test def sharedDecodeFailure(): Unit = {
+        val decoder = new ImageDecoder(Memory, Memory)
+
+        val (firstResult, secondResult) = decodeConcurrently(decoder, new BlockingStream("not an image".getBytes("UTF-8")))
+
+        // Both requests get the same exception
+        def failure(result: Future[BufferedImage]) =
+            intercept[ExecutionException] {
+                result.get(10, TimeUnit.SECONDS)
+            }.getCause
+
+        val firstFailure = failure(firstResult)
+        assert(firstFailure.isInstanceOf[OXFException])
+        assert(failure(secondResult) eq firstFailure)
+
+        // The failure is not cached
+        assert(decoder.decode("image", new ByteArrayInputStream(png)).getWidth === 20)
+    }
+
+    @Test def evictionByWeight(): Unit = {
+
+        // Weight of one decoded image
+        val weight = {
+            val decoder = new ImageDecoder(Memory, Memory)
+            decoder.decode("a", new ByteArrayInputStream(png))
+            cacheWeight(decoder)
+        }
+        assert(weight > 0)
+
+        // Room for two images
+        val decoder = new ImageDecoder(Memory, weight * 2 + weight / 2)
+
+        val a = decoder.decode("a", new ByteArrayInputStream(png))
+        decoder.decode("b", new ByteArrayInputStream(png))
+        assert(decoder.decode("a", unusedStream) eq a) // a is now more recently used than b
+        decoder.decode("c", new ByteArrayInputStream(png))
+
+        // b was evicted, a and c are still cached
+        assert(cacheWeight(decoder) === weight * 2)
+        assert(decoder.decode("a", unusedStream) eq a)
+        decoder.decode("c", unusedStream)
+        assert(decoder.getStatistics.startsWith("decodes: 3,"))
+
+        decoder.decode("b", new ByteArrayInputStream(png))
+        assert(decoder.getStatistics.startsWith("decodes: 4,"))
+
+        // Images larger than the cache are not cached
+        val smallDecoder = new ImageDecoder(Memory, weight - 1)
+        smallDecoder.decode("a", new ByteArrayInputStream(png))
+        assert(cacheWeight(smallDecoder) === 0)
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor
+
+import java.io.{ByteArrayOutputStream, OutputStream, File}
+import java.util.concurrent._
+import java.util.concurrent.atomic.AtomicInteger
+import org.apache.commons.io.FileUtils
+import org.junit.Test
+import org.scalatest.junit.AssertionsForJUnit
+
+class ImageDiskCacheTest extends AssertionsForJUnit {
+
+    // Run with a new cache directory, as caches are shared by directory
+    def withDirectory[T](body: File ⇒ T): T = {
+        val directory = File.createTempFile("image-disk-cache", "")
+        directory.delete()
+        directory.mkdirs()
+        try body(directory)
+        finally FileUtils.deleteDirectory(directory)
+    }
+
+    def generator(bytes: Array[Byte]) = new ImageDiskCache.Generator {
+        def write(os: OutputStream) = os.write(bytes)
+    }
+
+    def content(cache: ImageDiskCache, file: File) = {
+        val os = new ByteArrayOutputStream
+        cache.serve(file, os)
+        os.toByteArray.toSeq
+    }
+
+    @Test def concurrentGeneration(): Unit = withDirectory { directory ⇒
+
+        val cache = ImageDiskCache.getInstance(directory, 0)
+        val file  = new File(directory, "image.png")
+
+        val writing     = new CountDownLatch(1)
+        val release     = new CountDownLatch(1)
+        val generations = new AtomicInteger
+
+        val first = new ImageDiskCache.Generator {
+            def write(os: OutputStream) = {
+                generations.incrementAndGet()
+                writing.countDown()
+                release.await(10, TimeUnit.SECONDS)
+                os.write(Array[Byte](1, 2, 3))
+            }
+        }
+
+        val second = new ImageDiskCache.Generator {
+            def write(os: OutputStream) = {
+                generations.incrementAndGet()
+                os.write(Array[Byte](4, 5, 6))
+            }
+        }
+
+        def generate(generator: ImageDiskCache.Generator) = new Runnable {
+            def run() = cache.generate(file, generator)
+        }
+
+        val firstThread = new Thread(generate(first))
+        firstThread.start()
+        assert(writing.await(10, TimeUnit.SECONDS))
+
+        // The second generation waits for the first one instead of writing the file again
+        val secondThread = new Thread(generate(second))
+        secondThread.start()
+        while (secondThread.getState != Thread.State.WAITING && secondThread.isAlive)
+            Thread.sleep(10)
+
+        // Readers never see a partial file
+        assert(! file.exists)
+
+        release.countDown()
+        firstThread.join(10000)
+        secondThread.join(10000)
+
+        assert(generations.get === 1)
+        assert(content(cache, file) === Seq[Byte](1, 2, 3))
+
+        // No temporary file is left behind
+        assert(directory.listFiles.toSeq === Seq(file))
+    }
+
+    @Test def cleanupToNinetyPercent(): Unit = withDirectory { directory ⇒
+
+        val cache = ImageDiskCache.getInstance(directory, 1000)
+        val files = 0 to 10 map (i ⇒ new File(directory, "image-" + i + ".png"))
+
+        // Ten files fill the cache, with distinct access times
+        for (file ← files.init) {
+            cache.generate(file, generator(new Array[Byte](100)))
+            Thread.sleep(5)
+        }
+        assert(files.init forall (_.exists))
+
+        // Access the oldest file so that it is kept
+        content(cache, files(0))
+        Thread.sleep(5)
+
+        // Going over the maximum size removes the least recently used files down to 900 bytes
+        cache.generate(files.last, generator(new Array[Byte](100)))
+
+        assert(files filterNot (_.exists) map (_.getName) === Seq("image-1.png", "image-2.png"))
+        assert((files filter (_.exists) map (_.length)).sum === 900)
+    }
+}
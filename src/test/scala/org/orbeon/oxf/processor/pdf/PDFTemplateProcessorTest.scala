@@ -0,0 +1,62 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor.pdf
+
+import com.lowagie.text.{Paragraph, Document}
+import com.lowagie.text.pdf.{PdfReader, PdfWriter}
+import java.io.{OutputStream, ByteArrayOutputStream}
+import org.dom4j.DocumentHelper
+import org.junit.Test
+import org.orbeon.oxf.common.OXFException
+import org.scalatest.junit.AssertionsForJUnit
+
+class PDFTemplateProcessorTest extends AssertionsForJUnit {
+
+    // Instance documents of the form <pages>n</pages>
+    def instance(pages: Int) = {
+        val document = DocumentHelper.createDocument
+        document.addElement("pages").addText(pages.toString)
+        document
+    }
+
+    // Write as many pages as the instance says, in place of the template stamping
+    def stamp(instance: org.dom4j.Document, os: OutputStream): Unit = {
+        val document = new Document
+        PdfWriter.getInstance(document, os)
+        document.open()
+        for (page ← 1 to instance.getRootElement.getText.toInt) {
+            if (page > 1)
+                document.newPage()
+            document.add(new Paragraph("page " + page))
+        }
+        document.close()
+    }
+
+    @Test def batchWithSeveralInstances(): Unit = {
+        val os = new ByteArrayOutputStream
+        PDFTemplateProcessor.writeBatch(Seq(instance(1), instance(3), instance(2)), os)(stamp)
+
+        assert(new PdfReader(os.toByteArray).getNumberOfPages === 6)
+    }
+
+    @Test def batchWithoutInstances(): Unit = {
+        val os = new ByteArrayOutputStream
+        intercept[OXFException] {
+            PDFTemplateProcessor.writeBatch(Nil, os)(stamp)
+        }
+
+        // Nothing written
+        assert(os.size === 0)
+    }
+}
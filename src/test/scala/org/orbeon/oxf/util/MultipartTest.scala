@@ -19,12 +19,14 @@ import org.junit.Test
 import org.mockito.Mockito
 import org.orbeon.oxf.pipeline.api.ExternalContext
 import org.orbeon.oxf.pipeline.api.ExternalContext.Request
+import org.orbeon.oxf.processor.generator.RequestGenerator
 import org.orbeon.oxf.processor.test.TestExternalContext.TestSession
 import org.orbeon.oxf.resources.ResourceManagerWrapper
 import org.orbeon.oxf.test.ResourceManagerTestBase
 import org.scalatest.junit.AssertionsForJUnit
 import org.scalatest.mock.MockitoSugar
 import Multipart._
+import scala.collection.JavaConverters._
 
 class MultipartTest extends ResourceManagerTestBase with AssertionsForJUnit with MockitoSugar {
 
@@ -90,6 +92,37 @@ class MultipartTest extends ResourceManagerTestBase with AssertionsForJUnit with
         }
     }
 
+    @Test def testStreamingFileItem(): Unit = {
+
+        val rm = ResourceManagerWrapper.instance
+        val miserables = NetUtils.inputStreamToByteArray(rm.getContentAsStream("/org/orbeon/oxf/util/miserables-8000.txt"))
+
+        val factory  = new StreamingFileItemFactory(SystemUtils.getTemporaryDirectory, Some("SHA-1"))
+        val fileItem = factory.createItem("xf-5", "text/plain", false, "miserables-8000.txt").asInstanceOf[StreamingFileItem]
+
+        try {
+            ScalaUtils.copyStream(new ByteArrayInputStream(miserables), fileItem.getOutputStream)
+
+            // Content is never kept in memory
+            assert(! fileItem.isInMemory)
+            assert(fileItem.getStoreLocation.length === miserables.length.toLong)
+            assert(fileItem.receivedSize === miserables.length.toLong)
+            assert(fileItem.digest === Some(SecureUtils.digestBytes(miserables, "SHA-1", "hex")))
+            assert(FileItemContent("text/plain", "xf-5", 8000L, "miserables-8000.txt", miserables) === convertFileItemContent(fileItem))
+
+            // The digest is part of the upload metadata output by the request generator
+            val request = mock[ExternalContext.Request]
+            Mockito when request.getParameterMap thenReturn Map("xf-5" → Array[AnyRef](fileItem)).asJava
+
+            val parameterElement = RequestGenerator.readWholeRequestAsDOM4J(request, null).getRootElement.element("parameters").element("parameter")
+            val digestElement    = parameterElement.element("content-digest")
+
+            assert("SHA-1"        === digestElement.attributeValue("algorithm"))
+            assert(fileItem.digest === Some(digestElement.getText))
+        } finally
+            fileItem.delete()
+    }
+
     // NOTE: Use WrappedArray so that Array content comparison works
     case class FileItemContent(contentType: String, fieldName: String, size: Long, filename: String, content: Seq[Byte])
 
@@ -170,5 +170,40 @@ class MIPDependenciesTest extends DocumentTestBase with AssertionsForJUnit {
         }
     }
 
+    // Calculate binds in reverse dependency order must still all be up to date after a single recalculate
+    @Test def calculateDependencyOrder() {
+        Assume.assumeTrue(Version.isPE) // only test this feature if we are the PE version
+
+        this setupDocument
+            <xh:html xmlns:xf="http://www.w3.org/2002/xforms"
+                     xmlns:xh="http://www.w3.org/1999/xhtml"
+                     xmlns:xxf="http://orbeon.org/oxf/xml/xforms">
+                <xh:head>
+                    <xf:model xxf:xpath-analysis="true">
+                        <xf:instance id="instance">
+                            <values>
+                                <a>1</a>
+                                <b/>
+                                <c/>
+                                <d/>
+                            </values>
+                        </xf:instance>
+                        <xf:bind ref="d" calculate="../c * 2"/>
+                        <xf:bind ref="c" calculate="../b + 1"/>
+                        <xf:bind ref="b" calculate="../a * 10"/>
+                    </xf:model>
+                </xh:head>
+                <xh:body>
+                    <xf:input id="a" ref="a"/>
+                    <xf:output id="d" ref="d"/>
+                </xh:body>
+            </xh:html>
+
+        assert("22" === getControlValue("d"))
+
+        setControlValue("a", "2")
+        assert("42" === getControlValue("d"))
+    }
+
     // TODO: more tests
 }
@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.analysis
+
+import org.junit.Test
+import org.orbeon.oxf.xforms.MapSet
+import org.orbeon.saxon.om.NodeInfo
+import org.orbeon.scaxon.XML._
+import org.scalatest.junit.AssertionsForJUnit
+import org.w3c.dom.Node.{ATTRIBUTE_NODE, DOCUMENT_NODE}
+
+class PathIdsTest extends AssertionsForJUnit {
+
+    val Rows = 5000
+
+    // Ids of one static state
+    val pathIds = new PathIds
+
+    val doc = elemToDocumentInfo(
+        <form>
+            <section a="1">
+                { 1 to Rows map (i ⇒ <row b={i.toString}><value>{i}</value></row>) }
+            </section>
+            <other c="2"><value/></other>
+        </form>
+    )
+
+    val root     = (doc / "form").head
+    val section  = (root / "section").head
+    val rows     = section / "row"
+    val values   = rows flatMap (_ / "value")
+    val allNodes = Seq(root, section) ++ (section /@ "a") ++ rows ++ (rows flatMap (_ /@ "b")) ++ values ++ (root / "other") ++ (root / "other" / "value")
+
+    // Reference path, as produced by the static analysis: fingerprints of the ancestor-or-self nodes except the root element
+    def fingerprintedPath(node: NodeInfo) = {
+        var ancestorOrSelf: List[NodeInfo] = Nil
+        var current = node
+        while ((current ne null) && current.getNodeKind != DOCUMENT_NODE) {
+            ancestorOrSelf = current :: ancestorOrSelf
+            current = current.getParent
+        }
+        ancestorOrSelf.tail map (n ⇒ if (n.getNodeKind == ATTRIBUTE_NODE) "@" + n.getFingerprint else n.getFingerprint.toString) mkString "/"
+    }
+
+    def analysisPaths(instance: String, nodes: Seq[NodeInfo]) = {
+        val paths = new MapSet[String, String]
+        nodes foreach (node ⇒ paths += instance → fingerprintedPath(node))
+        paths
+    }
+
+    @Test def sameAsStringPaths(): Unit = {
+        // Register every static path in the instance, one "analysis" per node
+        val pathIdsByNode = (allNodes map (node ⇒ node → pathIds.pathIds(analysisPaths("path-ids-1", Seq(node))))).toMap
+
+        for (node ← allNodes) {
+            val changeset = new PathIdChangeset(pathIds)
+            changeset.addNodeAndAncestors("path-ids-1", node)
+
+            // A change to a node must be seen by the analyses on the node and its ancestors, and only those
+            var ancestorOrSelf = Set.empty[NodeInfo]
+            var current = node
+            while ((current ne null) && current.getNodeKind != DOCUMENT_NODE) {
+                ancestorOrSelf += current
+                current = current.getParent
+            }
+
+            // Nodes with the same path, like rows, are all impacted
+            val ancestorOrSelfPaths = ancestorOrSelf map fingerprintedPath
+            for (other ← Seq(root, section, rows.head, values.last, root / "other" / "value" head))
+                assert((changeset containsAny pathIdsByNode(other)) === ancestorOrSelfPaths(fingerprintedPath(other)))
+        }
+    }
+
+    @Test def unknownPathsAreIgnored(): Unit = {
+        val ids = pathIds.pathIds(analysisPaths("path-ids-2", Seq(section)))
+
+        // Other paths are unknown so they are not in the changeset, but the known ancestor path is
+        val changeset = new PathIdChangeset(pathIds)
+        changeset.addNodeAndAncestors("path-ids-2", values.head)
+        assert(changeset containsAny ids)
+
+        val changesetOther = new PathIdChangeset(pathIds)
+        changesetOther.addNodeAndAncestors("path-ids-2", root / "other" / "value" head)
+        assert(! (changesetOther containsAny ids))
+
+        // Unknown instance
+        val changesetUnknown = new PathIdChangeset(pathIds)
+        changesetUnknown.addNodeAndAncestors("path-ids-unknown", values.head)
+        assert(changesetUnknown.isEmpty)
+    }
+
+    @Test def stringAndNodeAddsAgree(): Unit = {
+        val ids = pathIds.pathIds(analysisPaths("path-ids-3", Seq(rows.head /@ "b" head)))
+
+        val changeset = new PathIdChangeset(pathIds)
+        changeset += "path-ids-3" → fingerprintedPath(rows.last /@ "b" head)
+        assert(changeset containsAny ids)
+
+        changeset.clear()
+        assert(changeset.isEmpty)
+    }
+
+    @Test def structuralChanges(): Unit = {
+        val underRows  = pathIds.prefixPathIds(analysisPaths("path-ids-4", Seq(values.head)))
+        val underOther = pathIds.prefixPathIds(analysisPaths("path-ids-4", Seq(root / "other" / "value" head)))
+
+        // Rows inserted or deleted in the section impact paths going through the section only
+        val parents = new PathIdChangeset(pathIds)
+        parents.addNode("path-ids-4", section)
+        assert(parents containsAny underRows)
+        assert(! (parents containsAny underOther))
+
+        // Content of a row changed
+        parents.clear()
+        parents.addNode("path-ids-4", rows(10))
+        assert(parents containsAny underRows)
+        assert(! (parents containsAny underOther))
+    }
+
+    @Test def idsAreScopedToStaticState(): Unit = {
+        val paths = analysisPaths("path-ids-5", Seq(values.head))
+
+        // Each static state numbers its own paths from 0, so ids don't grow with the number of forms
+        val otherPathIds = new PathIds
+        assert(otherPathIds.prefixPathIds(paths).toSeq === (0 to 3))
+        assert(pathIds.prefixPathIds(paths).toSeq      === (0 to 3))
+
+        // Paths interned in other static states are unknown
+        val changeset = new PathIdChangeset(new PathIds)
+        changeset.addNodeAndAncestors("path-ids-5", values.head)
+        assert(changeset.isEmpty)
+    }
+}
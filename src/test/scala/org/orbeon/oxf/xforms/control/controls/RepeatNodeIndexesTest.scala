@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.control.controls
+
+import org.junit.Test
+import org.orbeon.oxf.xforms.XFormsUtils
+import org.orbeon.saxon.om.Item
+import org.orbeon.saxon.value.{DoubleValue, Int64Value, StringValue}
+import org.orbeon.scaxon.XML._
+import org.scalatest.junit.AssertionsForJUnit
+import XFormsRepeatControl.findNodeIndexes
+
+// NOTE: The large repeats below also serve as a benchmark of updateIterations() matching: see the test timings.
+class RepeatNodeIndexesTest extends AssertionsForJUnit {
+
+    val Rows = 5000
+
+    // Each call returns new NodeInfo objects for the same underlying nodes, as happens across refreshes
+    val doc = elemToDocumentInfo(<rows>{ 1 to Rows map (i ⇒ <row>{i}</row>) }</rows>)
+    def rows: Seq[Item] = doc / "rows" / "row"
+
+    // Reference implementation
+    def naiveIndexes(nodeset1: Seq[Item], nodeset2: Seq[Item]) =
+        nodeset1.map(item ⇒ nodeset2 indexWhere (XFormsUtils.compareItems(_, item))).toArray
+
+    def assertSameAsNaive(nodeset1: Seq[Item], nodeset2: Seq[Item]) =
+        assert(findNodeIndexes(nodeset1, nodeset2).toList === naiveIndexes(nodeset1, nodeset2).toList)
+
+    @Test def insertAtTop(): Unit = {
+        val oldItems = rows.tail
+        val newItems = rows
+
+        val newIndexes = findNodeIndexes(oldItems, newItems)
+        assert(newIndexes.toList === (1 until Rows).toList)
+
+        val oldIndexes = findNodeIndexes(newItems, oldItems)
+        assert(oldIndexes.head === -1)
+        assert(oldIndexes.tail.toList === (0 until Rows - 1).toList)
+    }
+
+    @Test def deleteInMiddle(): Unit = {
+        val newItems = rows.take(Rows / 2) ++ rows.drop(Rows / 2 + 1)
+
+        val newIndexes = findNodeIndexes(rows, newItems)
+        assert(newIndexes(Rows / 2) === -1)
+        assert(newIndexes.count(_ == -1) === 1)
+        assert(newIndexes.last === Rows - 2)
+    }
+
+    @Test def reorder(): Unit = {
+        val newItems = rows.reverse
+
+        val newIndexes = findNodeIndexes(rows, newItems)
+        assert(newIndexes.toList === (Rows - 1 to 0 by -1).toList)
+    }
+
+    @Test def sameAsNaiveForSmallNodesets(): Unit = {
+        val small = rows.take(10)
+        assertSameAsNaive(small, small.reverse)
+        assertSameAsNaive(small.take(1), small)
+        assertSameAsNaive(small, small.take(1))
+        assertSameAsNaive(Seq(), small)
+        assertSameAsNaive(small, Seq())
+    }
+
+    @Test def atomicValues(): Unit = {
+        val values1: Seq[Item] = Seq(new StringValue("a"), new Int64Value(1), new DoubleValue(2.0), new StringValue("1"), new StringValue("a"))
+        val values2: Seq[Item] = Seq(new DoubleValue(1.0), new StringValue("a"), new Int64Value(2), new StringValue("b"), new StringValue("a"))
+
+        assertSameAsNaive(values1, values2)
+        assertSameAsNaive(values2, values1)
+        assert(findNodeIndexes(values1, values2).toList === List(1, 0, 2, -1, 1))
+    }
+
+    @Test def mixedNodesAndValues(): Unit = {
+        val mixed: Seq[Item] = rows.take(3) ++ Seq(new StringValue("1"))
+        assertSameAsNaive(mixed, mixed.reverse)
+    }
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.state
+
+import java.io.{File, ByteArrayInputStream, ByteArrayOutputStream}
+import java.util.concurrent.Callable
+import org.apache.commons.io.FileUtils
+import org.junit.Test
+import org.orbeon.oxf.cache.{CompoundOutputCacheKey, CacheKey, InternalCacheKey}
+import org.orbeon.oxf.processor.ProcessorUtils
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.util.{LoggerFactory, IndentedLogger}
+import org.orbeon.oxf.xforms.{XFormsStaticStateImpl, XFormsStaticState}
+import org.scalatest.junit.AssertionsForJUnit
+import XFormsStaticStateDiskCache._
+
+class XFormsStaticStateDiskCacheTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+    implicit val logger = new IndentedLogger(LoggerFactory.createLogger(classOf[XFormsStaticStateDiskCacheTest]), "")
+
+    // Run with a new cache directory, as caches are shared by directory
+    def withDirectory[T](body: File ⇒ T): T = {
+        val directory = File.createTempFile("static-state-disk-cache", "")
+        directory.delete()
+        try body(directory)
+        finally FileUtils.deleteDirectory(directory)
+    }
+
+    def createStaticState() = {
+        val (template, staticState) =
+            XFormsStaticStateImpl.createFromDocument(ProcessorUtils.createDocumentFromURL("oxf:/org/orbeon/oxf/xforms/analysis/form.xhtml", null))
+        (AnnotatedTemplate(template), staticState)
+    }
+
+    @Test def entryRoundTrip(): Unit = {
+
+        def roundTrip(entry: Entry) = {
+            val os = new ByteArrayOutputStream
+            writeEntry(os, entry)
+            readEntry(new ByteArrayInputStream(os.toByteArray))
+        }
+
+        // Encoded state larger than what DataOutput.writeUTF supports
+        val withIncludes =
+            Entry(
+                "X3" * 50000,
+                List("/xbl/orbeon/dialog/dialog.xbl", "/xbl/acme/é/custom.xbl"),
+                1234567890123L
+            )
+
+        val withoutIncludes = Entry("X3abc", Nil, -1L)
+
+        assert(roundTrip(withIncludes)    === withIncludes)
+        assert(roundTrip(withoutIncludes) === withoutIncludes)
+    }
+
+    @Test def restoreThroughGetOrCreateDocument(): Unit = withDirectory { directory ⇒
+
+        val diskCache        = getInstance(directory, 0)
+        val (_, staticState) = createStaticState()
+        val digest           = staticState.digest
+
+        var statuses = List[Boolean]()
+        val tracer = new XFormsStaticStateCache.CacheTracer {
+            def digestAndTemplateStatus(digestIfFound: Option[String]) = ()
+            def staticStateStatus(found: Boolean, digest: String) = statuses :+= found
+        }
+
+        def getOrCreateDocument(create: ⇒ XFormsStaticState) =
+            XFormsStaticStateCache.getOrCreateDocument(digest, tracer, logger, Some(diskCache), readFromDisk = true,
+                new Callable[XFormsStaticState] { def call() = create })
+
+        // Other tests may have cached the same form
+        XFormsStaticStateCache.removeDocument(digest)
+
+        // The static state is created and written to disk
+        assert(getOrCreateDocument(staticState) eq staticState)
+        diskCache.awaitWrites()
+        assert(new File(directory, digest + ".static-state").exists)
+
+        // As after a restart, the static state is not in memory and is restored from disk
+        XFormsStaticStateCache.removeDocument(digest)
+        val restored = getOrCreateDocument(throw new IllegalStateException("static state must be restored from disk"))
+
+        assert(restored ne staticState)
+        assert(restored.digest       === digest)
+        assert(restored.encodedState === staticState.encodedState)
+        assert(statuses === List(false, true))
+
+        // The restored static state is now in memory
+        assert(XFormsStaticStateCache.findDocument(digest) exists (_ eq restored))
+    }
+
+    @Test def sourceLookup(): Unit = withDirectory { directory ⇒
+
+        val diskCache               = getInstance(directory, 0)
+        val (template, staticState) = createStaticState()
+
+        diskCache.storeSource(new InternalCacheKey("test", "form"), Long.box(42), Source(staticState.digest, template))
+        diskCache.awaitWrites()
+
+        // Keys are compared by value, as after a restart
+        def findSource(key: String, validity: Long) =
+            diskCache.findSource(new InternalCacheKey("test", key), Long.box(validity))
+
+        val source = findSource("form", 42)
+        assert((source map (_.digest))            === Some(staticState.digest))
+        assert((source map (_.template.asBase64)) === Some(template.asBase64))
+
+        // Changed source or other source
+        assert(findSource("form", 43)  === None)
+        assert(findSource("other", 42) === None)
+    }
+
+    @Test def keyDigestIsStable(): Unit = {
+
+        def key() = new CompoundOutputCacheKey(classOf[XFormsStaticStateDiskCacheTest], "data", Array[CacheKey](new InternalCacheKey("test", "form")))
+
+        // The digest doesn't depend on whether hash codes have been computed, as they change between JVMs
+        val before = keyDigest(key(), Long.box(42))
+        val used   = key()
+        used.hashCode
+
+        assert(keyDigest(used, Long.box(42)) === before)
+        assert(keyDigest(key(), Long.box(43)) != before)
+    }
+
+    @Test def memoryHitUpdatesLastUse(): Unit = withDirectory { directory ⇒
+
+        val diskCache     = getInstance(directory, 0)
+        val (template, _) = createStaticState()
+        val key           = new InternalCacheKey("test", "memory")
+
+        diskCache.storeSource(key, Long.box(1), Source("memory", template))
+        diskCache.awaitWrites()
+
+        val file    = directory.listFiles.head
+        val lastUse = System.currentTimeMillis - 10000
+
+        // The first lookup reads the file, the second one finds the source in memory
+        assert(diskCache.findSource(key, Long.box(1)).isDefined)
+        file.setLastModified(lastUse)
+        assert(diskCache.findSource(key, Long.box(1)).isDefined)
+
+        assert(file.lastModified > lastUse)
+    }
+
+    @Test def evictionBySize(): Unit = withDirectory { directory ⇒
+
+        val (template, _) = createStaticState()
+
+        def key(name: String) = new InternalCacheKey("test", name)
+
+        // Files are written with distinct last use times, in order
+        var lastUsed = System.currentTimeMillis - 10000
+        def storeSource(diskCache: XFormsStaticStateDiskCache, name: String) = {
+            val existingFiles = directory.listFiles.toSet
+            diskCache.storeSource(key(name), Long.box(1), Source(name, template))
+            diskCache.awaitWrites()
+            directory.listFiles.toSet -- existingFiles foreach (_.setLastModified(lastUsed))
+            lastUsed += 1000
+        }
+
+        // Size of one file
+        val size = {
+            val diskCache = getInstance(directory, 0)
+            storeSource(diskCache, "a")
+            directory.listFiles.head.length
+        }
+
+        // Room for three files and a half
+        val diskCache = getInstance(directory, size * 3 + size / 2)
+        storeSource(diskCache, "b")
+        storeSource(diskCache, "c")
+
+        // Using a makes it the most recently used file
+        assert(diskCache.findSource(key("a"), Long.box(1)).isDefined)
+
+        // Going over the maximum size removes the least recently used file
+        storeSource(diskCache, "d")
+
+        def isStored(name: String) = diskCache.findSource(key(name), Long.box(1)).isDefined
+
+        assert(directory.listFiles.length === 3)
+        assert((Seq("a", "b", "c", "d") filter isStored) === Seq("a", "c", "d"))
+    }
+}